@@ -29,9 +29,11 @@ public class AppWebApplication extends AbstractWebApplication {
     public Set<Class<?>> getClasses() {
         return getClasses(
                 CacheNorthbound.class,
+                CacheUtilizationNorthbound.class,
                 CachesNorthbound.class,
                 IcnNorthbound.class,
                 IcnServiceNorthbound.class,
+                MetricsNorthbound.class,
                 ProviderNorthbound.class,
                 ProvidersNorthbound.class,
                 ProxiesNorthbound.class,
@@ -0,0 +1,77 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.onosproject.rest.AbstractWebResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Utilization pushed by the caches, e.g. {"utilization": 0.8}, from 0 (idle)
+ * to 1 (saturated). Taken into account by ICNs with load aware policies.
+ */
+@Path("cacheutilization")
+public class CacheUtilizationNorthbound extends AbstractWebResource {
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    private static final String UTILIZATION_FIELD = "utilization";
+
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response report(@QueryParam("name") String icnName, @QueryParam("cname") String cacheName, InputStream stream) {
+        IIcnService icnService = getService(IIcnService.class);
+        Icn icn = icnService.retrieveIcn(icnName);
+        if (icn == null) {
+            // 404 Not Found if there's no icn with this name
+            log.error("Unable to locate icn {}", icnName);
+            return Response.status(Response.Status.NOT_FOUND).entity("Unable to locate icn " + icnName).build();
+        }
+        if (icnService.retrieveCache(icn, cacheName) == null) {
+            // 404 Not Found if there's no cache with this name
+            log.error("Unable to locate cache {}", cacheName);
+            return Response.status(Response.Status.NOT_FOUND).entity("Unable to locate cache " + cacheName).build();
+        }
+        JsonNode utilization;
+        try {
+            utilization = mapper().readTree(stream).get(UTILIZATION_FIELD);
+        } catch (IOException e) {
+            log.error("Unable to parse utilization of cache {} {}", cacheName, e.toString());
+            return Response.status(Response.Status.BAD_REQUEST).entity("Unable to parse utilization").build();
+        }
+        if (utilization == null || !utilization.isNumber()) {
+            log.error("No utilization reported by cache {}", cacheName);
+            return Response.status(Response.Status.BAD_REQUEST).entity("Missing numeric field " + UTILIZATION_FIELD).build();
+        }
+        if (!icn.reportCacheUtilization(cacheName, utilization.asDouble()))
+            log.debug("ICN {} does not use the utilization of cache {}", icnName, cacheName);
+        return Response.status(Response.Status.OK).build();
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import java.util.Map;
+
+/**
+ * Runtime counters of the ICN application.
+ */
+public interface IIcnMetricsService {
+
+    /**
+     * @return Current value of every counter, indexed by counter name.
+     */
+    public Map<String, Long> retrieveMetrics();
+}
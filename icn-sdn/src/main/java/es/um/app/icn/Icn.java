@@ -4,6 +4,8 @@ import org.onosproject.net.DeviceId;
 import org.onosproject.net.PortNumber;
 
 import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by nenjordi on 6/10/17.
@@ -28,6 +30,7 @@ public interface Icn {
     ResourceHTTP retrieveResource(String id);
     ResourceHTTP createResource(ResourceHTTP resourceHTTP);
     ResourceHTTP createResource(ResourceHTTP resourceHTTP, Proxy proxy);
+    void resourceRequested(ResourceHTTP resourceHTTP, Proxy proxy);
     ResourceHTTP updateResource(ResourceHTTP resourceHTTP);
     ResourceHTTP removeResource(String name);
     String getName();
@@ -35,5 +38,10 @@ public interface Icn {
     String getDescription();
     void setDescription(String description);
     void setIcnService(IcnService service);
+    void shutdown();
+    void middleboxDistancesChanged(Set<DeviceId> switches);
+    void flowExpired(IcnFlowKey flow);
+    boolean reportCacheUtilization(String cacheName, double utilization);
+    Map<String, Long> retrieveMetrics();
     String getType();
 }
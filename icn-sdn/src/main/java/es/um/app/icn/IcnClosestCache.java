@@ -21,7 +21,10 @@
 package es.um.app.icn;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.onosproject.net.DeviceId;
@@ -35,6 +38,8 @@ public class IcnClosestCache implements Icn {
     protected HashMap<String, Cache> caches;
     protected ConcurrentHashMap<String, ResourceHTTP> resources;
     protected IcnService icnservice;
+    /** Caches ranked by distance from every edge switch, once registered in the service */
+    protected MiddleboxRanking<Cache> cacheRanking;
 
     static public final String DESCRIPTION = "CLOSEST";
 
@@ -55,6 +60,8 @@ public class IcnClosestCache implements Icn {
      */
     public Cache findCacheForNewResource(IcnService service,
                                             String resourceName, DeviceId sw, PortNumber inPort) {
+        if (cacheRanking != null)
+            return cacheRanking.closest(sw);
         return (Cache) service.findClosestMiddlebox(caches.values(), sw, inPort);
     }
 
@@ -72,6 +79,8 @@ public class IcnClosestCache implements Icn {
         ResourceHTTP resourceHTTP = resources.get(resourceName);
         if (resourceHTTP == null)
             return null;
+        if (cacheRanking != null)
+            return cacheRanking.closest(sw, resourceHTTP.getCaches()::contains);
         return (Cache) service.findClosestMiddlebox(resourceHTTP.getCaches(), sw, inPort);
     }
 
@@ -112,16 +121,35 @@ public class IcnClosestCache implements Icn {
 
     public Cache createCache(Cache cache) {
         caches.put(cache.name, cache);
+        if (cacheRanking != null)
+            cacheRanking.put(cache);
+        cachesChanged();
         return cache;
     }
 
     public Cache updateCache(Cache cache) {
         caches.put(cache.name, cache);
+        if (cacheRanking != null)
+            cacheRanking.put(cache);
+        cachesChanged();
         return cache;
     }
 
     public Cache removeCache(String name) {
-        return caches.remove(name);
+        Cache cache = caches.remove(name);
+        if (cacheRanking != null)
+            cacheRanking.remove(name);
+        cachesChanged();
+        return cache;
+    }
+
+    /**
+     * Keep the service cache index up to date. Caches added before the ICN
+     * is registered in the service are indexed by IcnService.createIcn().
+     */
+    protected void cachesChanged() {
+        if (icnservice != null)
+            icnservice.reindexCaches();
     }
 
     public Collection<ResourceHTTP> retrieveResources() {
@@ -142,6 +170,12 @@ public class IcnClosestCache implements Icn {
         return resourceHTTP;
     }
 
+    /**
+     * A proxy requested a resource already in the ICN.
+     */
+    public void resourceRequested(ResourceHTTP resourceHTTP, Proxy proxy) {
+    }
+
     public ResourceHTTP updateResource(ResourceHTTP resourceHTTP) {
         resources.put(resourceHTTP.getName(), resourceHTTP);
         return resourceHTTP;
@@ -169,6 +203,52 @@ public class IcnClosestCache implements Icn {
 
     @Override
     public void setIcnService(IcnService service) {
+        if (service != icnservice) {
+            cacheRanking = null;
+            if (service != null) {
+                MiddleboxRanking<Cache> ranking = new MiddleboxRanking<>(service::middleboxDistance);
+                ranking.reset(caches.values());
+                cacheRanking = ranking;
+            }
+        }
         icnservice = service;
     }
+
+    /**
+     * The ICN is removed or replaced, stop any background work.
+     */
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public void middleboxDistancesChanged(Set<DeviceId> switches) {
+        if (cacheRanking != null)
+            cacheRanking.invalidate(switches);
+    }
+
+    /**
+     * A flow installed by the service expired.
+     */
+    @Override
+    public void flowExpired(IcnFlowKey flow) {
+    }
+
+    /**
+     * A cache reported how busy it is, from 0 (idle) to 1 (saturated).
+     * @return Whether the ICN takes utilization into account.
+     */
+    @Override
+    public boolean reportCacheUtilization(String cacheName, double utilization) {
+        return false;
+    }
+
+    /**
+     * @return Counters of the ICN, reported by the service prefixed with
+     * the ICN name.
+     */
+    @Override
+    public Map<String, Long> retrieveMetrics() {
+        return Collections.emptyMap();
+    }
 }
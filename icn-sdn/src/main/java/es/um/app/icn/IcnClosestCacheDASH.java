@@ -21,39 +21,23 @@
 package es.um.app.icn;
 
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.onlab.packet.Ip4Address;
 import org.onosproject.net.DeviceId;
 import org.onosproject.net.PortNumber;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import java.io.BufferedInputStream;
-import java.io.DataOutputStream;
+
+import javax.xml.stream.XMLStreamException;
 import java.io.IOException;
-import java.io.StringReader;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.AbstractMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 
 public class IcnClosestCacheDASH extends IcnClosestCache {
@@ -61,114 +45,226 @@ public class IcnClosestCacheDASH extends IcnClosestCache {
 
     static final String DESCRIPTION = "CLOSESTDASH";
     static private final int PREFETCHER_PORT = 8080;
-    static private final Long MIN_PREFETCHING_IP = 2886729729L; //172.16.0.1
-    static private final Long MAX_PREFETCHING_IP = 2887778303L; //172.31.255.255
-    static private final short MIN_PREFETCHING_PORT = 1025;
-    static private final short MAX_PREFETCHING_PORT = 31999;
     private final ExecutorService pool;
-
-    private long prefetching_ip = MIN_PREFETCHING_IP;
-    private short prefetching_port = MIN_PREFETCHING_PORT;
+    /** Segments of every DASH resource of the ICN */
+    protected final SegmentIndex segmentIndex = new SegmentIndex();
+    /** Refreshes the manifests of live resources */
+    protected final ManifestRefresher refresher = new ManifestRefresher(this::segmentsAdded);
+    /** Segments prefetched ahead of every proxy */
+    protected final PrefetchWindow prefetchWindow = new PrefetchWindow();
+    /** Dispatches the segments of the windows */
+    protected final PrefetchScheduler prefetchScheduler;
+    /** Sends the prefetch requests to the proxies */
+    protected final PrefetchClient prefetchClient;
+    /** Prefetching paths shared by the segments going from a proxy into a cache */
+    protected final PrefetchTunnels prefetchTunnels = new PrefetchTunnels(this::openPrefetchTunnel,
+            this::prefetchAddresses);
 
     private long serviceId = 1L;
 
     public IcnClosestCacheDASH() {
         super();
         pool = Executors.newFixedThreadPool(48);
+        prefetchScheduler = new PrefetchScheduler(pool);
+        prefetchClient = new PrefetchClient(pool);
+    }
+
+    @Override
+    public ResourceHTTP createResource(ResourceHTTP resourceHTTP, Proxy proxy) {
+        log.info("Create Resource {}", resourceHTTP);
+        ResourceHTTPDASH resourceDASH = null;
+        if (resourceHTTP.getFilename().endsWith(".mpd") || resourceHTTP.getFilename().endsWith("*.MPD")) {
+            // It is an MPD. Let's download it and populate caches
+            log.info("Downloading MPD file {}", resourceHTTP.getFullurl());
+            try {
+                URL url = new URL(resourceHTTP.getFullurl());
+
+                resourceDASH = new ResourceHTTPDASH(resourceHTTP, segmentIndex);
+                // Registered right away with its manifest pending, the request does not wait for it
+                pool.execute(new MPDParser(url, resourceDASH));
+                resourceDASH.manifest().whenComplete((r, e) -> {
+                    if (e == null && !r.isRemoved())
+                        manifestParsed(r);
+                });
+            } catch (MalformedURLException e) {
+                log.error("Malformed URL: {}", resourceHTTP.getFullurl());
+                e.printStackTrace();
+            }
+        } else {
+            // It is not an MPD, let's see if we can prefetch
+            prefetch(resourceHTTP, proxy);
+        }
+
+        if (resourceDASH != null)
+            forgetSegments(resources.get(resourceDASH.getName()));
+        return super.createResource(resourceDASH == null ? resourceHTTP : resourceDASH);
     }
 
     /**
-     * Internal tuple
-     * @param <X> key
-     * @param <Y> value
+     * Called once the manifest of a DASH resource has been parsed, so that
+     * prefetch and distribution logic can act on its representations.
      */
-    public class Tuple<X, Y> {
-        public final X x;
-        public final Y y;
-        public Tuple(X x, Y y) {
-            this.x = x;
-            this.y = y;
+    protected void manifestParsed(ResourceHTTPDASH resourceDASH) {
+        log.info("Manifest {} parsed with {} representations",
+                resourceDASH.getFullurl(), resourceDASH.getRepresentationCount());
+    }
+
+    @Override
+    public void resourceRequested(ResourceHTTP resourceHTTP, Proxy proxy) {
+        prefetch(resourceHTTP, proxy);
+    }
+
+    /**
+     * Slide the prefetch window of the proxy if the resource is a segment
+     * of a parsed manifest. Segments of a manifest still being parsed just
+     * take the closest cache path.
+     */
+    private void prefetch(ResourceHTTP resourceHTTP, Proxy proxy) {
+        if (proxy == null)
+            return;
+        SegmentIndex.Segment segment = segmentIndex.get(resourceHTTP.getFullurl());
+        if (segment == null || segment.resource.isManifestPending())
+            return;
+        ResourceHTTPDASH r = segment.resource;
+        RepresentationDASH representationDASH = r.getRepresentation(segment.representation);
+        if (representationDASH == null)
+            return;
+        PrefetchWindow.Slide slide = prefetchWindow.requested(r, representationDASH, proxy, segment.number, this::isKnown);
+        if (!slide.tasks.isEmpty())
+            log.info("Prefetching {} chunks after {}", slide.tasks.size(), resourceHTTP.getFullurl());
+        schedule(slide);
+    }
+
+    /**
+     * New segments announced by a live manifest are prefetched for the
+     * proxies whose window reaches them.
+     */
+    protected void segmentsAdded(ResourceHTTPDASH resourceDASH, RepresentationDASH rep, List<String> urls) {
+        for (PrefetchWindow.Slide slide : prefetchWindow.refresh(resourceDASH, rep, this::isKnown)) {
+            log.info("Prefetching {} new live chunks of representation {}", slide.tasks.size(), rep.getId());
+            schedule(slide);
         }
     }
 
+    private boolean isKnown(String url) {
+        return retrieveResource(url) != null;
+    }
+
+    /**
+     * Queue the segments of a window, dropping the ones the playback of
+     * the proxy went past. Every representation and proxy is a stream.
+     */
+    private void schedule(PrefetchWindow.Slide slide) {
+        prefetchScheduler.submit(new AbstractMap.SimpleImmutableEntry<>(slide.representation, slide.proxy),
+                slide.position, slide.tasks, new SegmentPrefetcher(this, slide.proxy));
+    }
+
+    /**
+     * Stop refreshing manifests and prefetching, the ICN is no longer
+     * registered in the service.
+     */
+    @Override
+    public void shutdown() {
+        refresher.shutdown();
+        prefetchScheduler.cancel();
+        pool.shutdownNow();
+        prefetchTunnels.closeAll();
+        super.shutdown();
+    }
+
+    private synchronized long nextServiceId() {
+        return serviceId++;
+    }
+
     /**
-     * Advances first the port until the limit. Then the ip until the limit and rotates.
-     * @return
+     * @return Prefetching addresses shared by the ICNs of the service, null
+     * while the ICN is not registered.
      */
-    private synchronized Tuple<Long, Short> generateNewPrefetchingIpandPort() {
-        prefetching_port++;
-        if (prefetching_port == MAX_PREFETCHING_PORT) {
-            prefetching_port = MIN_PREFETCHING_PORT;
-            prefetching_ip++;
-            if (prefetching_ip == MAX_PREFETCHING_IP)
-                prefetching_ip = MIN_PREFETCHING_IP;
+    private PrefetchAddresses prefetchAddresses() {
+        IcnService icnservice = this.icnservice;
+        return icnservice == null ? null : icnservice.getPrefetchAddresses();
+    }
+
+    /**
+     * Install the paths of a new prefetching address and port between a
+     * proxy and a cache.
+     */
+    private boolean openPrefetchTunnel(Proxy proxy, Cache cache, PrefetchTunnels.Tunnel tunnel) {
+        IcnService icnservice = this.icnservice;
+        if (icnservice == null) {
+            log.debug("ICN {} is not registered, not opening prefetching tunnels", name);
+            return false;
         }
-        return new Tuple<Long, Short>(prefetching_ip, prefetching_port);
+        if (!icnservice.createPrefetchingPath("prefetch" + nextServiceId(), proxy, proxy.location, cache,
+                Ip4Address.valueOf(tunnel.address), tunnel.port)) {
+            log.error("Unable to create prefetching path. Aborting\n {} {} {} {}",
+                    proxy, proxy.location, cache, tunnel);
+            return false;
+        }
+        log.debug("Prefetching tunnel {} from {} to {}", tunnel, proxy, cache);
+        return true;
     }
 
-    private Long getPrefetchingIp() {
-        return prefetching_ip;
+    /**
+     * The address and port of a tunnel are free again once the flows
+     * from the proxy into the tunnel expire.
+     */
+    @Override
+    public void flowExpired(IcnFlowKey flow) {
+        int port = flow.tcpSrc();
+        if (port >= 0 && prefetchTunnels.expired(flow.ipDst(), port))
+            log.debug("Prefetching tunnel {}:{} expired", Ip4Address.valueOf(flow.ipDst()), port);
     }
 
-    private short getPrefetchingPort() {
-        return prefetching_port;
+    @Override
+    public Map<String, Long> retrieveMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        metrics.put("prefetchTunnelsOpened", prefetchTunnels.opened());
+        metrics.put("prefetchTunnelsReused", prefetchTunnels.reused());
+        metrics.put("prefetchTunnelsExpired", prefetchTunnels.expired());
+        metrics.put("prefetchTunnelsLeaked", prefetchTunnels.leaked());
+        return metrics;
     }
 
-    private String Ip2Str(Long ip) {
-            return ((ip >> 24) & 0xFF) + "."
-                    + ((ip >> 16) & 0xFF) + "."
-                    + ((ip >> 8) & 0xFF) + "."
-                    + (ip & 0xFF);
+    @Override
+    public Cache updateCache(Cache cache) {
+        Cache previous = caches.get(cache.name);
+        if (previous != null)
+            prefetchTunnels.forget(previous);
+        return super.updateCache(cache);
+    }
 
+    @Override
+    public Cache removeCache(String name) {
+        Cache cache = super.removeCache(name);
+        if (cache != null)
+            prefetchTunnels.forget(cache);
+        return cache;
     }
 
     @Override
-    public ResourceHTTP createResource(ResourceHTTP resourceHTTP, Proxy proxy) {
-        log.info("Create Resource {}", resourceHTTP);
-        ResourceHTTPDASH resourceDASH = null;
-        if (resourceHTTP.getFilename().endsWith(".mpd") || resourceHTTP.getFilename().endsWith("*.MPD")) {
-            // It is an MPD. Let's download it and populate caches
-            log.info("Downloading MPD file {}", resourceHTTP.getFullurl());
-            try {
-                URL url = new URL(resourceHTTP.getFullurl());
+    public ResourceHTTP updateResource(ResourceHTTP resourceHTTP) {
+        ResourceHTTP previous = resources.get(resourceHTTP.getName());
+        if (previous != resourceHTTP)
+            forgetSegments(previous);
+        return super.updateResource(resourceHTTP);
+    }
 
-                resourceDASH = new ResourceHTTPDASH(resourceHTTP);
-                // Here we can make actions for the mpd in url form
-                pool.execute(new MPDParser(url, resourceDASH));
-                try {
-                    pool.awaitTermination(2, TimeUnit.SECONDS);
-                } catch (InterruptedException e) {
-                    log.error("The MPD parsing took more than 2 seconds");  
-                }
-            } catch (MalformedURLException e) {
-                log.error("Malformed URL: {}", resourceHTTP.getFullurl());
-                e.printStackTrace();
-            }
-        } else {
-            // It is not an MPD, let's see if we can prefetch. See if the MPD has been already parsed
-            resources.values().parallelStream().filter(x -> {
-                if (!x.getType().equals(ResourceHTTPDASH.DESCRIPTION))
-                    return false;
-                ResourceHTTPDASH r = (ResourceHTTPDASH) x;
-                RepresentationDASH representationDASH = r.representation4URL(resourceHTTP);
-                if (representationDASH != null)
-                    return true;
-                return false;
-            }).findFirst().ifPresent(x -> {
-                ResourceHTTPDASH r = (ResourceHTTPDASH) x;
-                RepresentationDASH representationDASH = r.representation4URL(resourceHTTP);
-                if (representationDASH != null && !representationDASH.isPrefetched()) {
-                    // prefetch Representation if not prefetched already (Avoid two prefetches parallel for same resources)
-                    log.info("Prefetching chunks related to {}", resourceHTTP.getFullurl());
-                    pool.execute(new RepresentationPrefecther(this, serviceId, representationDASH, proxy, r));
-                    representationDASH.setPrefetched(true);
-                }
-                if (representationDASH != null)
-                    serviceId += representationDASH.getFullUrls().size() + 1L;
-            });
-        }
+    @Override
+    public ResourceHTTP removeResource(String name) {
+        ResourceHTTP res = super.removeResource(name);
+        forgetSegments(res);
+        return res;
+    }
 
-        return super.createResource(resourceDASH == null ? resourceHTTP : resourceDASH);
+    private void forgetSegments(ResourceHTTP res) {
+        if (res instanceof ResourceHTTPDASH) {
+            ResourceHTTPDASH resourceDASH = (ResourceHTTPDASH) res;
+            // Marked removed first, a manifest still being fetched checks it
+            resourceDASH.removeSegments();
+            refresher.stop(resourceDASH);
+            prefetchWindow.forget(resourceDASH);
+        }
     }
 
     public boolean addPrefetchedResource(ResourceHTTP res) {
@@ -185,228 +281,84 @@ public class IcnClosestCacheDASH extends IcnClosestCache {
             this.resource = resource;
         }
 
-        private RepresentationDASH parseRepresentation(Node item) {
-            int id = 0;
-            int width = 0;
-            int height = 0;
-            int frameRate = 0;
-            long bandwidth = 0L;
-            String codec = "";
-            String dependencyId = "";
-            String mimetype = null;
-
-            NamedNodeMap attributes = item.getAttributes();
-            id = Integer.parseInt(attributes.getNamedItem("id").getNodeValue());
-            width = Integer.parseInt(attributes.getNamedItem("width").getNodeValue());
-            height = Integer.parseInt(attributes.getNamedItem("height").getNodeValue());
-            frameRate = Integer.parseInt(attributes.getNamedItem("frameRate").getNodeValue());
-            bandwidth = Long.parseLong(attributes.getNamedItem("bandwidth").getNodeValue());
-            codec = attributes.getNamedItem("codecs").getNodeValue();
-
-            RepresentationDASH r = new RepresentationDASH(id, width, height, frameRate, bandwidth, codec, mimetype);
-
-            if (attributes.getNamedItem("dependencyId") != null) {
-                dependencyId = attributes.getNamedItem("dependencyId").getNodeValue();
-                String[] split = dependencyId.split(" ");
-                for (String did : split) {
-                    r.setDependency(Integer.parseInt(did));
-                }
-            }
-
-            NodeList childNodes = item.getChildNodes();
-            for (int idx = 0; idx < childNodes.getLength(); idx++) {
-                Node child = childNodes.item(idx);
-                if (child.getNodeName().equals("SegmentList")) {
-                    for (int idx2 = 0; idx2 < child.getChildNodes().getLength(); idx2++) {
-                        Node child2 = child.getChildNodes().item(idx2);
-                        if (child2.getNodeName().equalsIgnoreCase("SegmentURL")) {
-                            Node media = child2.getAttributes().getNamedItem("media");
-                            String url = media.getNodeValue();
-                            r.putResource(url);
-                        }
-                    }
-                }
-            }
-
-
-            return r;
-        }
-
         @Override
         public void run() {
             log.info("Start download and parse: {}", url);
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            DocumentBuilder db = null;
-            StringBuilder mpd = new StringBuilder("");
-            byte []buffer = new byte[5192];
-            buffer[5191] = '\0';
+            ManifestRefresher.Fetch fetch;
             try {
-                URLConnection connection = url.openConnection();
-                connection.connect();
-
-                BufferedInputStream bis = new BufferedInputStream(connection.getInputStream());
-                int numberOfBytes;
-                do {
-                    numberOfBytes = bis.read(buffer, 0, 5191);
-                    if (numberOfBytes > 0)
-                        mpd.append(new String(buffer, 0, numberOfBytes));
-                } while (numberOfBytes >= 0);
-                bis.close();
-            } catch (IOException e) {
-                log.error("Impossible to connect {}", url);
-                return;
-            }
-
-            try {
-                db = dbf.newDocumentBuilder();
-                Document doc = db.parse(new InputSource(new StringReader(mpd.toString())));
-                NodeList baseURL = doc.getElementsByTagName("BaseURL");
-                if (baseURL.getLength() == 0)
-                    log.error("Unable to recover BaseURL from MPD");
-                String baseURLStr = baseURL.item(0).getFirstChild().getNodeValue();
-
-                NodeList representation = doc.getElementsByTagName("Representation");
-                for (int i = 0; i < representation.getLength(); i++) {
-                    Node item = representation.item(i);
-                    RepresentationDASH representationDASH = parseRepresentation(item);
-                    representationDASH.setBaseURL(baseURLStr);
+                fetch = ManifestRefresher.fetch(url, null, null, representationDASH -> {
                     log.debug("Putting Representation: {}", representationDASH.getId());
                     resource.putRepresentation(representationDASH.getId(), representationDASH);
-                }
-            } catch (ParserConfigurationException e) {
-                log.error("MPD:: Impossible to configure XML Parser {}", e);
-            } catch (SAXException e) {
+                });
+            } catch (XMLStreamException | RuntimeException e) {
                 log.error("MPD:: Parse error {}", e);
+                resource.manifest().completeExceptionally(e);
+                return;
             } catch (IOException e) {
-                log.error("MPD:: Problem with MPD in XML form {}", e);
+                log.error("Impossible to connect {}", url);
+                resource.manifest().completeExceptionally(e);
+                return;
             }
             log.info("Finish download and parse: {}", url);
+            resource.manifest().complete(resource);
+            refresher.start(resource, url, fetch);
+            // Removed while fetching: forgetSegments found nothing to stop
+            if (resource.isRemoved())
+                refresher.stop(resource);
         }
     }
 
-    class RepresentationPrefecther implements Runnable {
+    /**
+     * Prefetches the segments of a proxy: asks the proxy prefetcher to
+     * retrieve every segment through the prefetching tunnel from the proxy
+     * to the cache chosen for it.
+     */
+    class SegmentPrefetcher implements PrefetchScheduler.Action {
 
-        long serviceId;
-        RepresentationDASH rep;
         Proxy proxy;
-        ResourceHTTPDASH res;
         IcnClosestCacheDASH caller;
 
-        public RepresentationPrefecther(IcnClosestCacheDASH caller, long serviceId, RepresentationDASH rep, Proxy p, ResourceHTTPDASH r) {
-            this.serviceId = serviceId;
-            this.rep = rep;
+        public SegmentPrefetcher(IcnClosestCacheDASH caller, Proxy p) {
             this.proxy = p;
-            this.res = r;
             this.caller = caller;
         }
 
-        public boolean postHTTP(String uri, String icnAddress, short icnPort, short cachePort) {
-            try {
-                log.debug("Prefetch postHTTP {} {} {}", uri, icnAddress, icnPort);
-                log.error("PREFETCHER IP IS FIXED TO 192.168.100.101!!!!");
-                URL url = new URL("http://192.168.100.101:" + proxy.getPrefetch_port() + "/prefetch");
-                log.debug("Connecting... {}", url);
-                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-                connection.setDoOutput(true);
-                connection.setRequestMethod("POST");
-                connection.setRequestProperty("Content-Type", "application/json");
-
-
-                ObjectMapper objectMapper = new ObjectMapper();
-                ObjectNode paramurl = objectMapper.createObjectNode();
-                paramurl.put("url", uri);
-                paramurl.put("server", icnAddress);
-                paramurl.put("port", icnPort);
-                paramurl.put("cacheport", cachePort);
-                connection.setRequestProperty("Content-Length", Integer.valueOf(paramurl.toString().getBytes().length).toString());
-                log.debug("Sending prefetch request to {} with {}", url, paramurl.toString());
-                try( DataOutputStream wr = new DataOutputStream( connection.getOutputStream())) {
-                    wr.writeBytes( paramurl.toString() );
-                }
-                int responseCode = connection.getResponseCode();
-
-            } catch (MalformedURLException e) {
-                log.error("Malformed URL: {}", uri);
-                e.printStackTrace();
-                return false;
-            } catch (IOException e) {
-                log.error("Impossible to connect {}", uri);
-                e.printStackTrace();
-                return false;
-            }
-            return true;
+        @Override
+        public void finished(PrefetchScheduler.Task task) {
+            prefetchWindow.done(task.url);
         }
 
         @Override
-        public void run() {
-            ConcurrentHashMap<Integer, List<String>> urls = new ConcurrentHashMap<>();
-
-            urls.put(rep.getId(), res.getRepresentation(rep.getId()).getFullUrls().stream().sorted(new LengthFirstComparator()).collect(Collectors.toList()));
-            log.info("Prefetching id {} with {} chunks", rep.getId(), urls.get(rep.getId()).size());
-            for (Integer id : rep.getDependencies()) {
-                log.info("Prefetching dependant id: {} with {} chunks", id, res.getRepresentation(id).getFullUrls().size());
-                urls.put(id, res.getRepresentation(id).getFullUrls().stream().sorted(new LengthFirstComparator()).collect(Collectors.toList()));
-                res.getRepresentation(id).setPrefetched(true);
+        public CompletionStage<?> prefetch(PrefetchScheduler.Task task) {
+            String url = task.url;
+            log.debug("Prefetching Url: {}", url);
+            if (retrieveResource(url) != null) {
+                log.debug("Content was cached, no need to precache");
+                return null;
             }
-
-            boolean finish = false;
-            while(!finish) {
-                Collections.list(urls.keys()).parallelStream().forEach(id -> {
-                    if (urls.get(id).size() == 0)
-                        return;
-                    String url = urls.get(id).get(0);
-                    urls.get(id).remove(0);
-                    log.debug("Prefetching Id: {} Url: {}", id, url);
-                    ResourceHTTP resourceHTTP = retrieveResource(url);
-                    Cache c = null;
-                    if (resourceHTTP == null) {
-                        c = findCacheForNewResource(icnservice, url, DeviceId.deviceId(proxy.getLocation().getDpid()),
-                                PortNumber.portNumber(proxy.getLocation().getPort()));
-                    } else {
-                        log.debug("Content was cached, no need to precache");
-                        return;
-                    }
-
-                    // Generate a new icn
-                    Tuple<Long, Short> prefetchipandportpair = generateNewPrefetchingIpandPort();
-                    String icnAddressStr = Ip2Str(prefetchipandportpair.x);
-                    Ip4Address icnAddress = Ip4Address.valueOf(icnAddressStr);
-                    short icnPort = prefetchipandportpair.y;
-                    if (!icnservice.createPrefetchingPath("prefetch" + serviceId, proxy, proxy.location, c, icnAddress, icnPort)) {
-                        log.error("Unable to create prefetching path. Aborting\n {} {} {} {} {}",
-                                proxy, proxy.location, c, icnAddressStr, icnPort);
-                        return;
-                    }
-                    serviceId++;
-                    if (postHTTP(url, icnAddressStr, icnPort, (short) c.getPort())) {
-                        //Insert Resource
-                        ResourceHTTP res = new ResourceHTTP(UtilIcn.resourceId(caller.getName(), url), url);
-                        res.setRequests(1);
-                        res.addCache(c);
-                        res.setFullurl(url);
-                        caller.addPrefetchedResource(res);
-                    } else {
-                        log.error("Unable to Send request to prefetcher for url {}", url);
-                    }
-                });
-
-                // Check if there are urls pending
-                if (Collections.list(urls.keys()).parallelStream().noneMatch(id -> urls.get(id).size() != 0))
-                    finish = true;
-
-            }
-        }
-
-        public class LengthFirstComparator implements Comparator<String> {
-            @Override
-            public int compare(String o1, String o2) {
-                if (o1.length()!=o2.length()) {
-                    return o1.length()-o2.length(); //overflow impossible since lengths are non-negative
+            IcnService icnservice = caller.icnservice;
+            if (icnservice == null)
+                return null;
+            Cache c = findCacheForNewResource(icnservice, url, DeviceId.deviceId(proxy.getLocation().getDpid()),
+                    PortNumber.portNumber(proxy.getLocation().getPort()));
+
+            // Segments into the same cache share the tunnel while its flows live
+            PrefetchTunnels.Tunnel tunnel = prefetchTunnels.acquire(proxy, c);
+            if (tunnel == null)
+                return null;
+            PrefetchClient.Request request = new PrefetchClient.Request(url, tunnel.address, tunnel.port, (short) c.getPort());
+            return prefetchClient.prefetch(proxy, request).thenAccept(ok -> {
+                if (ok) {
+                    //Insert Resource
+                    ResourceHTTP res = new ResourceHTTP(UtilIcn.resourceId(caller.getName(), url), url);
+                    res.setRequests(1);
+                    res.addCache(c);
+                    res.setFullurl(url);
+                    caller.addPrefetchedResource(res);
+                } else {
+                    log.error("Unable to Send request to prefetcher for url {}", url);
                 }
-                return o1.compareTo(o2);
-            }
+            });
         }
-
     }
 }
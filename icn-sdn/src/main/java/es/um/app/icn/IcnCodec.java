@@ -34,6 +34,12 @@ public class IcnCodec extends JsonCodec<Icn> {
             case IcnClosestCache.DESCRIPTION:
                 type = IcnClosestCache.DESCRIPTION;
                 break;
+            case IcnConsistentHashCache.DESCRIPTION:
+                type = IcnConsistentHashCache.DESCRIPTION;
+                break;
+            case IcnLoadAwareCache.DESCRIPTION:
+                type = IcnLoadAwareCache.DESCRIPTION;
+                break;
             default:
                 log.error("Unknown ICN Type: {}", icn.getType());
                 return null;
@@ -84,6 +90,14 @@ public class IcnCodec extends JsonCodec<Icn> {
                     log.info("ICN Type {}", IcnDistributedCacheSVCDASH.DESCRIPTION);
                     icn = new IcnDistributedCacheSVCDASH();
                     break;
+                case IcnConsistentHashCache.DESCRIPTION:
+                    log.info("ICN Type {}", IcnConsistentHashCache.DESCRIPTION);
+                    icn = new IcnConsistentHashCache();
+                    break;
+                case IcnLoadAwareCache.DESCRIPTION:
+                    log.info("ICN Type {}", IcnLoadAwareCache.DESCRIPTION);
+                    icn = new IcnLoadAwareCache();
+                    break;
                 default:
                     log.error("Unknown ICN Type: {}", json.get(TYPE_FIELD).asText());
                     return null;
@@ -0,0 +1,210 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Places every resource in a cache chosen by rendezvous hashing of its
+ * name: each cache scores the resource with a hash of both and the highest
+ * score wins. The choice needs no state per resource, and adding or
+ * removing a cache only moves the resources that it wins or won, 1/N of
+ * them.
+ * <p>
+ * Popular hashes are kept from piling onto one cache with bounded loads:
+ * a cache hosting more than BALANCE times the mean of resources per cache
+ * is passed over for the next highest score.
+ */
+public class IcnConsistentHashCache extends IcnClosestCache {
+    private final static Logger log = LoggerFactory.getLogger(IcnConsistentHashCache.class);
+
+    static public final String DESCRIPTION = "CONSISTENTHASH";
+    /** Load allowed to a cache over the mean, 1.25 keeps moves low under skew */
+    static final double BALANCE = 1.25;
+
+    /** Caches with the seed of their name, replaced whenever caches change */
+    private volatile Candidate[] candidates = new Candidate[0];
+    /** Resources hosted by every cache, by cache name */
+    private final ConcurrentHashMap<String, AtomicLong> loads = new ConcurrentHashMap<>();
+    private final AtomicLong hosted = new AtomicLong();
+    private final AtomicLong overloaded = new AtomicLong();
+
+    private static final class Candidate {
+        private final Cache cache;
+        private final long seed;
+        private final AtomicLong load;
+
+        Candidate(Cache cache, AtomicLong load) {
+            this.cache = cache;
+            this.seed = hash(cache.getName());
+            this.load = load;
+        }
+    }
+
+    public IcnConsistentHashCache() {
+        super();
+    }
+
+    /**
+     * The cache with the highest score for the resource among the ones
+     * under the load bound and reachable from the switch.
+     */
+    @Override
+    public Cache findCacheForNewResource(IcnService service, String resourceName, DeviceId sw, PortNumber inPort) {
+        Candidate[] cs = candidates;
+        int n = cs.length;
+        if (n == 0)
+            return null;
+        long key = hash(resourceName);
+        long[] scores = new long[n];
+        for (int i = 0; i < n; i++)
+            scores[i] = mix(key ^ cs[i].seed);
+        long bound = (long) Math.ceil(BALANCE * (hosted.get() + 1) / n);
+        boolean[] passed = new boolean[n];
+        Cache fallback = null;
+        for (int tries = 0; tries < n; tries++) {
+            int best = -1;
+            for (int i = 0; i < n; i++) {
+                if (!passed[i] && (best < 0 || Long.compareUnsigned(scores[i], scores[best]) > 0))
+                    best = i;
+            }
+            Candidate c = cs[best];
+            if (service == null || service.middleboxDistance(sw, c.cache) != IcnPathCache.UNREACHABLE) {
+                if (c.load.get() < bound)
+                    return c.cache;
+                if (fallback == null)
+                    fallback = c.cache;
+            }
+            // Passed over, the next highest score is tried
+            passed[best] = true;
+        }
+        if (fallback != null) {
+            overloaded.incrementAndGet();
+            log.debug("Every cache over {} resources, using {} for {}", bound, fallback.getName(), resourceName);
+        }
+        return fallback;
+    }
+
+    /**
+     * Hash of a string spread over 64 bits, stable across controllers.
+     */
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * Finalizer of SplitMix64, every input bit flips half the output bits.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    protected void cachesChanged() {
+        Candidate[] cs = new Candidate[caches.size()];
+        int i = 0;
+        for (Cache cache : caches.values())
+            cs[i++] = new Candidate(cache, loads.computeIfAbsent(cache.getName(), k -> new AtomicLong()));
+        loads.entrySet().removeIf(e -> {
+            if (caches.containsKey(e.getKey()))
+                return false;
+            hosted.addAndGet(-e.getValue().get());
+            return true;
+        });
+        candidates = cs;
+        super.cachesChanged();
+    }
+
+    @Override
+    public ResourceHTTP createResource(ResourceHTTP resourceHTTP) {
+        hosting(resourceHTTP, resources.put(resourceHTTP.getName(), resourceHTTP));
+        return resourceHTTP;
+    }
+
+    @Override
+    public ResourceHTTP createResource(ResourceHTTP resourceHTTP, Proxy proxy) {
+        return createResource(resourceHTTP);
+    }
+
+    @Override
+    public ResourceHTTP updateResource(ResourceHTTP resourceHTTP) {
+        return createResource(resourceHTTP);
+    }
+
+    @Override
+    public ResourceHTTP removeResource(String name) {
+        ResourceHTTP res = resources.remove(name);
+        hosting(null, res);
+        return res;
+    }
+
+    /**
+     * Move the load of a resource replaced by another one.
+     */
+    private void hosting(ResourceHTTP added, ResourceHTTP removed) {
+        if (added == removed)
+            return;
+        if (removed != null)
+            count(removed, -1);
+        if (added != null)
+            count(added, 1);
+    }
+
+    private void count(ResourceHTTP res, int delta) {
+        for (Cache cache : res.getCaches()) {
+            AtomicLong load = loads.get(cache.getName());
+            if (load != null) {
+                load.addAndGet(delta);
+                hosted.addAndGet(delta);
+            }
+        }
+    }
+
+    @Override
+    public String getType() {
+        return DESCRIPTION;
+    }
+
+    @Override
+    public Map<String, Long> retrieveMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        metrics.put("hostedResources", hosted.get());
+        metrics.put("overloadedPlacements", overloaded.get());
+        for (Candidate c : candidates)
+            metrics.put("cacheLoad." + c.cache.getName(), c.load.get());
+        return metrics;
+    }
+}
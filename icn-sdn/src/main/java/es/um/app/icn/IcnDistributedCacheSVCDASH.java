@@ -6,87 +6,139 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 public class IcnDistributedCacheSVCDASH extends IcnClosestCacheDASH {
     private final static Logger log = LoggerFactory.getLogger(IcnDistributedCacheSVCDASH.class);
     static final String DESCRIPTION = "DISTRIBUTEDSVCDASH";
 
-    private ConcurrentHashMap<String, ConcurrentHashMap<String, IMiddlebox>> precomputedCachesXresourceXurl;
+    /**
+     * Placement of the representations of the assets, by manifest URL and
+     * edge switch. Representations are sorted by id, the base layer first,
+     * and spread over the caches sorted by distance from the switch, so
+     * lower layers go to the caches closer to every client population.
+     */
+    private final PlacementTable placements;
+    /** Bumped whenever caches or every distance change, so placements are computed again */
+    private final AtomicLong placementVersion = new AtomicLong();
+    /** Bumped for a switch when its distances change, so only its placements are computed again */
+    private final ConcurrentHashMap<DeviceId, Long> switchVersions = new ConcurrentHashMap<>();
 
     public IcnDistributedCacheSVCDASH() {
         super();
-        precomputedCachesXresourceXurl = new ConcurrentHashMap<>();
+        placements = new PlacementTable();
     }
 
     @Override
     public Cache findCacheForNewResource(IcnService service, String uri, DeviceId sw, PortNumber inPort) {
-        Map<IMiddlebox, Integer> middleBoxesDistance = service.getMiddleBoxesDistance(caches.values(), sw);
-        Stream<Map.Entry<IMiddlebox, Integer>> sorted = middleBoxesDistance.entrySet().stream().sorted(new IntegerValueComparator());
-
         // IF it is an MPD just use the nearest cache
-        if (uri.endsWith(".mpd") || uri.endsWith("*.MPD")) {
-            Map.Entry<IMiddlebox, Integer> iMiddleboxIntegerEntry = middleBoxesDistance.entrySet().stream().min(new IntegerValueComparator()).orElse(null);
-            if (iMiddleboxIntegerEntry != null)
-                return (Cache)iMiddleboxIntegerEntry.getKey();
-            return null;
-        }
+        if (uri.endsWith(".mpd") || uri.endsWith("*.MPD"))
+            return closestCache(service, sw);
 
-        ResourceHTTP resourceHTTP = new ResourceHTTP();
-        resourceHTTP.setFullurl(uri);
-        Optional<ResourceHTTP> resourceOpt = resources.values().parallelStream().filter(x -> {
-            if (!x.getType().equals(ResourceHTTPDASH.DESCRIPTION))
-                return false;
-            ResourceHTTPDASH r = (ResourceHTTPDASH) x;
-            return r.containsURL(uri);
-        }).findFirst();
-
-        ResourceHTTPDASH rfull = (ResourceHTTPDASH)resourceOpt.orElse(null);
+        SegmentIndex.Segment segment = segmentIndex.get(uri);
+        ResourceHTTPDASH rfull = segment == null ? null : segment.resource;
         if (rfull == null) {
             log.error("There is no resource available for uri {}", uri);
             return null;
         }
-
-        // Look for precomputed cache
-        ConcurrentHashMap<String, IMiddlebox> precomputedCaches = precomputedCachesXresourceXurl.getOrDefault(rfull.getFullurl(), null);
-        if (precomputedCaches != null) {
-            log.info("Locating precomputed cache");
-            IMiddlebox precomputedcache = precomputedCaches.getOrDefault(uri, null);
-            if (precomputedcache != null) {
-                return (Cache)precomputedcache;
-            }
+        if (rfull.isManifestPending()) {
+            // Do not distribute on a partial set of representations
+            log.info("Manifest of {} still pending, using the closest cache", rfull.getFullurl());
+            return closestCache(service, sw);
         }
+        return placement(service, rfull, sw).cache(segment.representation);
+    }
 
-        // Precompute all caches
-        log.info("Precomputing caches for {}", rfull.getFullurl());
-        ConcurrentHashMap<String, IMiddlebox> cacheXurl = new ConcurrentHashMap<>();
-        ConcurrentHashMap<String, Integer> fullUrlsRepresentationIds = rfull.getFullUrlsRepresentationIds();
+    private Cache closestCache(IcnService service, DeviceId sw) {
+        List<? extends IMiddlebox> orderedcachelist = rankCaches(service, sw);
+        return orderedcachelist.isEmpty() ? null : (Cache) orderedcachelist.get(0);
+    }
 
-        Integer representationCount = rfull.getRepresentationCount();
-        Double dependencycacheratio = Math.ceil(representationCount / caches.size()); // Next integer
-        log.debug("DependenciesCache Ratio: {}", dependencycacheratio);
+    /**
+     * @return The placement of the asset for the switch, computed the
+     * first time it is needed and again once caches or distances change.
+     */
+    private PlacementTable.Placement placement(IcnService service, ResourceHTTPDASH rfull, DeviceId sw) {
+        long version = placementVersion.get() + switchVersions.getOrDefault(sw, 0L);
+        PlacementTable.Placement placement = placements.get(rfull.getFullurl(), sw);
+        if (placement != null && placement.version == version &&
+                placement.size() == rfull.getRepresentationCount())
+            return placement;
+
+        log.info("Placing representations of {} for {}", rfull.getFullurl(), sw);
+        List<? extends IMiddlebox> orderedcachelist = rankCaches(service, sw);
         List<Integer> representationIds = rfull.getRepresentationIds();
-        List<IMiddlebox> orderedcachelist = middleBoxesDistance.entrySet().stream().sorted(new IntegerValueComparator()).map(Map.Entry::getKey).collect(Collectors.toList());
-        log.debug("Cache list: {}", orderedcachelist.toString());
-
-        fullUrlsRepresentationIds.entrySet().parallelStream().forEach(x -> {
-            int representationIdx = representationIds.indexOf(x.getValue());
-            log.debug("Request representation index {} of {}", representationIdx, representationCount);
-            Double position = Math.floor(representationIdx / dependencycacheratio); // Previous integer
-            log.debug("Position selected {}", position.intValue());
-            IMiddlebox iMiddlebox = orderedcachelist.get(position.intValue());
-            log.debug("Selected cache {}", iMiddlebox.getName());
-            cacheXurl.put(x.getKey(), iMiddlebox);
-        });
-
-        precomputedCachesXresourceXurl.put(rfull.getFullurl(), cacheXurl);
-
-        return (Cache)cacheXurl.getOrDefault(uri, null);
+        int representationCount = representationIds.size();
+        int[] ids = new int[representationCount];
+        Cache[] caches = new Cache[representationCount];
+        // Enough representations per cache to fit them all in the caches we have
+        int perCache = orderedcachelist.isEmpty() ? 1 :
+                Math.max(1, (representationCount + orderedcachelist.size() - 1) / orderedcachelist.size());
+        log.debug("Representations per cache: {}", perCache);
+        for (int i = 0; i < representationCount; i++) {
+            ids[i] = representationIds.get(i);
+            if (!orderedcachelist.isEmpty())
+                caches[i] = (Cache) orderedcachelist.get(i / perCache);
+        }
+        placement = new PlacementTable.Placement(ids, caches, version);
+        placements.put(rfull.getFullurl(), sw, placement);
+        return placement;
+    }
+
+    @Override
+    protected void cachesChanged() {
+        placementVersion.incrementAndGet();
+        super.cachesChanged();
+    }
+
+    @Override
+    public void middleboxDistancesChanged(Set<DeviceId> switches) {
+        super.middleboxDistancesChanged(switches);
+        if (switches == null)
+            placementVersion.incrementAndGet();
+        else
+            switches.forEach(sw -> switchVersions.merge(sw, 1L, Long::sum));
+    }
+
+    @Override
+    protected void manifestParsed(ResourceHTTPDASH resourceDASH) {
+        super.manifestParsed(resourceDASH);
+        // The resource may replace a previous one with other representations
+        placements.remove(resourceDASH.getFullurl());
+    }
+
+    @Override
+    public ResourceHTTP removeResource(String name) {
+        ResourceHTTP res = super.removeResource(name);
+        if (res instanceof ResourceHTTPDASH)
+            placements.remove(res.getFullurl());
+        return res;
+    }
+
+    @Override
+    public Map<String, Long> retrieveMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<>(super.retrieveMetrics());
+        metrics.put("placements", (long) placements.size());
+        metrics.put("placementBytes", placements.bytes());
+        metrics.put("placementHits", placements.getHits());
+        metrics.put("placementMisses", placements.getMisses());
+        metrics.put("placementEvictions", placements.getEvictions());
+        return metrics;
+    }
+    /**
+     * Every cache sorted by distance from the switch.
+     */
+    private List<? extends IMiddlebox> rankCaches(IcnService service, DeviceId sw) {
+        if (cacheRanking != null)
+            return cacheRanking.ranked(sw);
+        Map<IMiddlebox, Integer> middleBoxesDistance = service.getMiddleBoxesDistance(caches.values(), sw);
+        return middleBoxesDistance.entrySet().stream().sorted(new IntegerValueComparator()).map(Map.Entry::getKey).collect(Collectors.toList());
     }
 
     class IntegerValueComparator implements Comparator<Map.Entry<IMiddlebox, Integer>> {
@@ -0,0 +1,143 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import org.onosproject.core.ApplicationId;
+import org.onosproject.net.flow.DefaultFlowRule;
+import org.onosproject.net.flow.FlowRule;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleOperationsContext;
+import org.onosproject.net.flow.FlowRuleService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Flow rules required by one request (every hop of every direction),
+ * submitted to the flow rule service as a single operation. The flow rule
+ * manager splits it in one batch per device, so a client connection costs
+ * one southbound batch per switch instead of one message per rule.
+ * <p>
+ * Rules already requested by another batch still in flight are not added
+ * again, the batch awaits that one instead, so a retransmitted packet is
+ * not released before the rules of the first one are confirmed.
+ */
+public class IcnFlowBatch {
+    private final ApplicationId appId;
+    private final int priority;
+    private final List<IcnFlowKey> keys = new ArrayList<>();
+    private final FlowRuleOperations.Builder operations = FlowRuleOperations.builder();
+    private final CompletableFuture<Boolean> completion = new CompletableFuture<>();
+    /** Batches installing rules this one needs */
+    private final List<CompletableFuture<Boolean>> awaited = new ArrayList<>();
+    private boolean submitted;
+
+    public IcnFlowBatch(ApplicationId appId, int priority) {
+        this.appId = appId;
+        this.priority = priority;
+    }
+
+    /**
+     * Add the rule described by the key to the batch.
+     * @param timeout Idle timeout in seconds, 0 for a permanent rule.
+     */
+    public void add(IcnFlowKey key, int timeout) {
+        operations.add(flowRule(key, appId, priority, timeout));
+        keys.add(key);
+    }
+
+    /**
+     * Wait for a rule requested by another batch before reporting this one
+     * as installed.
+     * @param installation Completion of the other batch, null if the rule
+     *                     is already confirmed.
+     */
+    public void await(CompletableFuture<Boolean> installation) {
+        if (installation != null && installation != completion)
+            awaited.add(installation);
+    }
+
+    /**
+     * Flow rules that will be installed when the batch is submitted.
+     */
+    public List<IcnFlowKey> keys() {
+        return keys;
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    /**
+     * Apply every rule of the batch. Can only be called once.
+     * @return Future completed with true once every rule has been
+     * confirmed, as well as the ones of the awaited batches, or false if
+     * any of them failed.
+     */
+    public CompletableFuture<Boolean> submit(FlowRuleService flowRuleService) {
+        if (submitted)
+            throw new IllegalStateException("Flow batch already submitted");
+        submitted = true;
+        CompletableFuture<Boolean> result = completion;
+        for (CompletableFuture<Boolean> other : awaited)
+            result = result.thenCombine(other, (mine, theirs) -> mine && theirs);
+        if (keys.isEmpty()) {
+            completion.complete(true);
+            return result;
+        }
+        flowRuleService.apply(operations.build(new FlowRuleOperationsContext() {
+            @Override
+            public void onSuccess(FlowRuleOperations ops) {
+                completion.complete(true);
+            }
+
+            @Override
+            public void onError(FlowRuleOperations ops) {
+                completion.complete(false);
+            }
+        }));
+        return result;
+    }
+
+    /**
+     * @return Future completed once the rules of this batch alone are
+     * confirmed.
+     */
+    public CompletableFuture<Boolean> completion() {
+        return completion;
+    }
+
+    static FlowRule flowRule(IcnFlowKey key, ApplicationId appId, int priority, int timeout) {
+        FlowRule.Builder builder = DefaultFlowRule.builder()
+                .forDevice(key.device())
+                .withSelector(key.selector())
+                .withTreatment(key.treatment())
+                .withPriority(priority)
+                .fromApp(appId);
+        if (timeout > 0) {
+            builder.makeTemporary(timeout);
+        } else {
+            builder.makePermanent();
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,335 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.IPv4;
+import org.onlab.packet.Ip4Address;
+import org.onlab.packet.IpPrefix;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.TpPort;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficSelector;
+import org.onosproject.net.flow.TrafficTreatment;
+import org.onosproject.net.flow.criteria.Criterion;
+import org.onosproject.net.flow.criteria.IPCriterion;
+import org.onosproject.net.flow.criteria.PortCriterion;
+import org.onosproject.net.flow.criteria.TcpPortCriterion;
+
+/**
+ * One flow rule installed by the ICN service in a device, stored as
+ * primitives: the match (in port, IPv4 addresses and optional TCP ports)
+ * and the actions (optional rewrites and output port). Selector and
+ * treatment are rebuilt on demand, so keeping thousands of flows does not
+ * retain ONOS objects nor the packet that triggered them.
+ * Like flow rules in a switch, two keys are equal when they have the same
+ * device and match; actions are compared with {@link #sameActions}.
+ */
+public final class IcnFlowKey {
+
+    private static final int MATCH_TCP_SRC = 1;
+    private static final int MATCH_TCP_DST = 1 << 1;
+    private static final int RW_IP_SRC = 1 << 2;
+    private static final int RW_MAC_SRC = 1 << 3;
+    private static final int RW_TCP_SRC = 1 << 4;
+    private static final int RW_IP_DST = 1 << 5;
+    private static final int RW_MAC_DST = 1 << 6;
+    private static final int RW_TCP_DST = 1 << 7;
+    private static final int MATCH_FLAGS = MATCH_TCP_SRC | MATCH_TCP_DST;
+
+    private final DeviceId device;
+    private final long inPort;
+    private final long outPort;
+    private final int ipSrc;
+    private final int ipDst;
+    /** TCP source port in the high half, destination in the low half */
+    private final int tcpPorts;
+    private final int rwIpSrc;
+    private final int rwIpDst;
+    private final long rwMacSrc;
+    private final long rwMacDst;
+    private final int rwTcpPorts;
+    private final int flags;
+    private final int hash;
+
+    private IcnFlowKey(Builder b) {
+        device = b.device;
+        inPort = b.inPort;
+        outPort = b.outPort;
+        ipSrc = b.ipSrc;
+        ipDst = b.ipDst;
+        tcpPorts = b.tcpPorts;
+        rwIpSrc = b.rwIpSrc;
+        rwIpDst = b.rwIpDst;
+        rwMacSrc = b.rwMacSrc;
+        rwMacDst = b.rwMacDst;
+        rwTcpPorts = b.rwTcpPorts;
+        flags = b.flags;
+        hash = computeHash();
+    }
+
+    public static Builder builder(DeviceId device) {
+        return new Builder(device);
+    }
+
+    /**
+     * Decode the match part of a flow rule as installed by
+     * {@link #selector()}. Actions are left empty.
+     * @return The key or null if the selector was not built by us.
+     */
+    public static IcnFlowKey fromSelector(DeviceId device, TrafficSelector selector) {
+        Builder b = new Builder(device);
+        boolean inPort = false, ipSrc = false, ipDst = false;
+        for (Criterion c : selector.criteria()) {
+            switch (c.type()) {
+                case IN_PORT:
+                    b.inPort(((PortCriterion) c).port().toLong());
+                    inPort = true;
+                    break;
+                case IPV4_SRC:
+                    b.matchIpSrc(((IPCriterion) c).ip().address().getIp4Address().toInt());
+                    ipSrc = true;
+                    break;
+                case IPV4_DST:
+                    b.matchIpDst(((IPCriterion) c).ip().address().getIp4Address().toInt());
+                    ipDst = true;
+                    break;
+                case TCP_SRC:
+                    b.matchTcpSrc(((TcpPortCriterion) c).tcpPort().toInt());
+                    break;
+                case TCP_DST:
+                    b.matchTcpDst(((TcpPortCriterion) c).tcpPort().toInt());
+                    break;
+                default:
+                    break;
+            }
+        }
+        return inPort && ipSrc && ipDst ? b.build() : null;
+    }
+
+    public TrafficSelector selector() {
+        TrafficSelector.Builder builder = DefaultTrafficSelector.builder()
+                .matchEthType(Ethernet.TYPE_IPV4)
+                .matchIPProtocol(IPv4.PROTOCOL_TCP);
+        if ((flags & MATCH_TCP_DST) != 0)
+            builder.matchTcpDst(TpPort.tpPort(tcpPorts & 0xFFFF));
+        if ((flags & MATCH_TCP_SRC) != 0)
+            builder.matchTcpSrc(TpPort.tpPort(tcpPorts >>> 16));
+        return builder.matchInPort(PortNumber.portNumber(inPort))
+                .matchIPSrc(IpPrefix.valueOf(ipSrc, 32))
+                .matchIPDst(IpPrefix.valueOf(ipDst, 32))
+                .build();
+    }
+
+    public TrafficTreatment treatment() {
+        TrafficTreatment.Builder builder = DefaultTrafficTreatment.builder();
+        if ((flags & RW_IP_SRC) != 0)
+            builder.setIpSrc(Ip4Address.valueOf(rwIpSrc)).immediate();
+        if ((flags & RW_MAC_SRC) != 0)
+            builder.setEthSrc(MacAddress.valueOf(rwMacSrc)).immediate();
+        if ((flags & RW_TCP_SRC) != 0)
+            builder.setTcpSrc(TpPort.tpPort(rwTcpPorts >>> 16)).immediate();
+        if ((flags & RW_IP_DST) != 0)
+            builder.setIpDst(Ip4Address.valueOf(rwIpDst)).immediate();
+        if ((flags & RW_MAC_DST) != 0)
+            builder.setEthDst(MacAddress.valueOf(rwMacDst)).immediate();
+        if ((flags & RW_TCP_DST) != 0)
+            builder.setTcpDst(TpPort.tpPort(rwTcpPorts & 0xFFFF)).immediate();
+        return builder.setOutput(PortNumber.portNumber(outPort)).build();
+    }
+
+    /**
+     * Whether both keys would produce the same treatment.
+     */
+    public boolean sameActions(IcnFlowKey other) {
+        return outPort == other.outPort && flags == other.flags &&
+                rwIpSrc == other.rwIpSrc && rwIpDst == other.rwIpDst &&
+                rwMacSrc == other.rwMacSrc && rwMacDst == other.rwMacDst &&
+                rwTcpPorts == other.rwTcpPorts;
+    }
+
+    public DeviceId device() {
+        return device;
+    }
+
+    public int ipDst() {
+        return ipDst;
+    }
+
+    /**
+     * @return The address the destination is rewritten to, e.g. the cache
+     * of a flow from a proxy, or 0 if it is not rewritten.
+     */
+    public int rewrittenIpDst() {
+        return (flags & RW_IP_DST) != 0 ? rwIpDst : 0;
+    }
+
+    /**
+     * @return The matched TCP source port or -1 if any port matches.
+     */
+    public int tcpSrc() {
+        return (flags & MATCH_TCP_SRC) != 0 ? tcpPorts >>> 16 : -1;
+    }
+
+    private int computeHash() {
+        int result = device.hashCode();
+        result = 31 * result + Long.hashCode(inPort);
+        result = 31 * result + ipSrc;
+        result = 31 * result + ipDst;
+        result = 31 * result + tcpPorts;
+        result = 31 * result + (flags & MATCH_FLAGS);
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof IcnFlowKey)) return false;
+
+        IcnFlowKey that = (IcnFlowKey) o;
+        return hash == that.hash && inPort == that.inPort &&
+                ipSrc == that.ipSrc && ipDst == that.ipDst && tcpPorts == that.tcpPorts &&
+                (flags & MATCH_FLAGS) == (that.flags & MATCH_FLAGS) &&
+                device.equals(that.device);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("IcnFlowKey{")
+                .append(device).append(" in ").append(inPort).append(' ')
+                .append(Ip4Address.valueOf(ipSrc)).append(':')
+                .append((flags & MATCH_TCP_SRC) != 0 ? String.valueOf(tcpPorts >>> 16) : "any")
+                .append(" -> ").append(Ip4Address.valueOf(ipDst)).append(':')
+                .append((flags & MATCH_TCP_DST) != 0 ? String.valueOf(tcpPorts & 0xFFFF) : "any");
+        if ((flags & RW_IP_SRC) != 0)
+            sb.append(" ipsrc=").append(Ip4Address.valueOf(rwIpSrc));
+        if ((flags & RW_MAC_SRC) != 0)
+            sb.append(" ethsrc=").append(MacAddress.valueOf(rwMacSrc));
+        if ((flags & RW_TCP_SRC) != 0)
+            sb.append(" tcpsrc=").append(rwTcpPorts >>> 16);
+        if ((flags & RW_IP_DST) != 0)
+            sb.append(" ipdst=").append(Ip4Address.valueOf(rwIpDst));
+        if ((flags & RW_MAC_DST) != 0)
+            sb.append(" ethdst=").append(MacAddress.valueOf(rwMacDst));
+        if ((flags & RW_TCP_DST) != 0)
+            sb.append(" tcpdst=").append(rwTcpPorts & 0xFFFF);
+        return sb.append(" out ").append(outPort).append('}').toString();
+    }
+
+    public static final class Builder {
+        private final DeviceId device;
+        private long inPort;
+        private long outPort;
+        private int ipSrc;
+        private int ipDst;
+        private int tcpPorts;
+        private int rwIpSrc;
+        private int rwIpDst;
+        private long rwMacSrc;
+        private long rwMacDst;
+        private int rwTcpPorts;
+        private int flags;
+
+        private Builder(DeviceId device) {
+            this.device = device;
+        }
+
+        public Builder inPort(long port) {
+            inPort = port;
+            return this;
+        }
+
+        public Builder outPort(long port) {
+            outPort = port;
+            return this;
+        }
+
+        public Builder matchIpSrc(int ip) {
+            ipSrc = ip;
+            return this;
+        }
+
+        public Builder matchIpDst(int ip) {
+            ipDst = ip;
+            return this;
+        }
+
+        public Builder matchTcpSrc(int port) {
+            tcpPorts = (tcpPorts & 0xFFFF) | ((port & 0xFFFF) << 16);
+            flags |= MATCH_TCP_SRC;
+            return this;
+        }
+
+        public Builder matchTcpDst(int port) {
+            tcpPorts = (tcpPorts & 0xFFFF0000) | (port & 0xFFFF);
+            flags |= MATCH_TCP_DST;
+            return this;
+        }
+
+        public Builder rewriteIpSrc(int ip) {
+            rwIpSrc = ip;
+            flags |= RW_IP_SRC;
+            return this;
+        }
+
+        public Builder rewriteMacSrc(long mac) {
+            rwMacSrc = mac;
+            flags |= RW_MAC_SRC;
+            return this;
+        }
+
+        public Builder rewriteTcpSrc(int port) {
+            rwTcpPorts = (rwTcpPorts & 0xFFFF) | ((port & 0xFFFF) << 16);
+            flags |= RW_TCP_SRC;
+            return this;
+        }
+
+        public Builder rewriteIpDst(int ip) {
+            rwIpDst = ip;
+            flags |= RW_IP_DST;
+            return this;
+        }
+
+        public Builder rewriteMacDst(long mac) {
+            rwMacDst = mac;
+            flags |= RW_MAC_DST;
+            return this;
+        }
+
+        public Builder rewriteTcpDst(int port) {
+            rwTcpPorts = (rwTcpPorts & 0xFFFF0000) | (port & 0xFFFF);
+            flags |= RW_TCP_DST;
+            return this;
+        }
+
+        public IcnFlowKey build() {
+            return new IcnFlowKey(this);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Flow rules currently installed by the ICN service. Used to avoid
+ * requesting the same rule twice and to know what to remove on shutdown.
+ * Flows are indexed by device and match, the same identity the switch
+ * uses, so a removed rule is found from its selector in constant time.
+ * Flows are also counted by the address their destination is rewritten
+ * to, which tells how many flows are being served by every cache, and
+ * the flows not confirmed yet by the batch installing them.
+ */
+public class IcnFlowTable {
+    private final ConcurrentHashMap<IcnFlowKey, IcnFlowKey> flows = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, AtomicInteger> towards = new ConcurrentHashMap<>();
+    /** Completion of the batches installing the flows not confirmed yet */
+    private final ConcurrentHashMap<IcnFlowKey, CompletableFuture<Boolean>> pending = new ConcurrentHashMap<>();
+
+    private static final CompletableFuture<Boolean> INSTALLED = CompletableFuture.completedFuture(true);
+
+    /**
+     * Register a flow that is about to be installed. A flow with the same
+     * match and different actions replaces the previous one, as the new
+     * rule overwrites it in the device.
+     * @return false if the flow was already installed.
+     */
+    public boolean add(IcnFlowKey key) {
+        IcnFlowKey previous = flows.put(key, key);
+        count(previous, -1);
+        count(key, 1);
+        return previous == null || !previous.sameActions(key);
+    }
+
+    /**
+     * Register a flow about to be installed by a batch, in the same step
+     * as its completion, unless the same rule was already requested.
+     * @param completion Completion of the rules of the batch.
+     * @return null if the batch has to install the flow, otherwise the
+     * completion of the batch installing it, already completed with true
+     * if the flow is confirmed.
+     */
+    public CompletableFuture<Boolean> request(IcnFlowKey key, CompletableFuture<Boolean> completion) {
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Boolean>[] installation = new CompletableFuture[1];
+        IcnFlowKey[] previous = new IcnFlowKey[1];
+        flows.compute(key, (k, current) -> {
+            if (current != null && current.sameActions(key)) {
+                CompletableFuture<Boolean> pendingInstallation = pending.get(key);
+                installation[0] = pendingInstallation != null ? pendingInstallation : INSTALLED;
+                return current;
+            }
+            previous[0] = current;
+            pending.put(key, completion);
+            return key;
+        });
+        if (installation[0] != null)
+            return installation[0];
+        count(previous[0], -1);
+        count(key, 1);
+        // A failed flow stays pending, and failing, until it is removed
+        completion.thenAccept(installed -> {
+            if (installed)
+                pending.remove(key, completion);
+        });
+        return null;
+    }
+
+    public boolean contains(IcnFlowKey key) {
+        IcnFlowKey current = flows.get(key);
+        return current != null && current.sameActions(key);
+    }
+
+    /**
+     * Remove the flow with the same device and match as the given key,
+     * as a rule removed from a device only tells us its selector.
+     * @return The flow removed or null if it was unknown.
+     */
+    public IcnFlowKey remove(IcnFlowKey match) {
+        IcnFlowKey removed = flows.remove(match);
+        count(removed, -1);
+        return removed;
+    }
+
+    /**
+     * Remove the flow only if it still has the actions of the given key,
+     * so a newer rule with the same match is kept. Used for the flows that
+     * could not be installed.
+     */
+    public boolean removeExact(IcnFlowKey key) {
+        boolean[] removed = new boolean[1];
+        flows.computeIfPresent(key, (k, current) -> {
+            removed[0] = current.sameActions(key);
+            if (removed[0])
+                pending.remove(key);
+            return removed[0] ? null : current;
+        });
+        if (removed[0])
+            count(key, -1);
+        return removed[0];
+    }
+
+    public void forEach(Consumer<IcnFlowKey> action) {
+        flows.values().forEach(action);
+    }
+
+    private void count(IcnFlowKey key, int delta) {
+        int ip = key == null ? 0 : key.rewrittenIpDst();
+        if (ip != 0)
+            towards.computeIfAbsent(ip, k -> new AtomicInteger()).addAndGet(delta);
+    }
+
+    /**
+     * @return Flows whose destination is rewritten to the address.
+     */
+    public int towards(int ip) {
+        AtomicInteger count = towards.get(ip);
+        return count == null ? 0 : Math.max(0, count.get());
+    }
+
+    public int size() {
+        return flows.size();
+    }
+
+    public void clear() {
+        flows.clear();
+        towards.clear();
+        pending.clear();
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Places new resources weighing the distance to every cache with how busy
+ * it is, so the closest cache stops taking new content once it saturates.
+ * <p>
+ * The choice is between two caches, the closest one and another one at
+ * random, as in the power of two choices: looking at two caches keeps the
+ * decision O(1) and is enough to steer load away from the busy ones. The
+ * one with the lowest (1 + hops) x (1 + pressure) wins, where the pressure
+ * of a cache is the highest of:
+ * <ul>
+ *     <li>Its request rate, from the requests of the resources it hosts,
+ *     over RATE_CAPACITY.</li>
+ *     <li>Its active flows, from the flow table of the service, over
+ *     FLOW_CAPACITY.</li>
+ *     <li>The utilization it last reported, if not older than
+ *     UTILIZATION_TTL_MS.</li>
+ * </ul>
+ */
+public class IcnLoadAwareCache extends IcnClosestCache {
+    private final static Logger log = LoggerFactory.getLogger(IcnLoadAwareCache.class);
+
+    static public final String DESCRIPTION = "LOADAWARE";
+    /** Requests per second a cache serves at full load */
+    static final double RATE_CAPACITY = 200;
+    /** Client flows a cache serves at full load */
+    static final int FLOW_CAPACITY = 1000;
+    /** Utilization reports are ignored once this old */
+    static final long UTILIZATION_TTL_MS = 10000;
+    /** Time constant of the request rates */
+    static final long RATE_WINDOW_MS = 10000;
+
+    private final LongSupplier clock;
+    private final ConcurrentHashMap<String, CacheLoad> loads = new ConcurrentHashMap<>();
+    /** Loads of the current caches, replaced whenever caches change */
+    private volatile CacheLoad[] candidates = new CacheLoad[0];
+    private final AtomicLong diverted = new AtomicLong();
+
+    /**
+     * Load signals of a cache.
+     */
+    static final class CacheLoad {
+        final Cache cache;
+        /** Requests decayed with RATE_WINDOW_MS */
+        private double requests;
+        private long requestsTime;
+        private volatile double utilization;
+        private volatile long utilizationTime;
+
+        CacheLoad(Cache cache, long now) {
+            this.cache = cache;
+            this.requestsTime = now;
+        }
+
+        synchronized void request(long now) {
+            decay(now);
+            requests++;
+        }
+
+        /**
+         * @return Requests per second, averaged over about RATE_WINDOW_MS.
+         */
+        synchronized double rate(long now) {
+            decay(now);
+            return requests * 1000 / RATE_WINDOW_MS;
+        }
+
+        private void decay(long now) {
+            if (now > requestsTime) {
+                requests *= Math.exp(-(double) (now - requestsTime) / RATE_WINDOW_MS);
+                requestsTime = now;
+            }
+        }
+
+        void utilization(double utilization, long now) {
+            this.utilization = utilization;
+            this.utilizationTime = now;
+        }
+
+        double utilization(long now) {
+            return now - utilizationTime <= UTILIZATION_TTL_MS ? utilization : 0;
+        }
+    }
+
+    public IcnLoadAwareCache() {
+        this(System::currentTimeMillis);
+    }
+
+    IcnLoadAwareCache(LongSupplier clock) {
+        super();
+        this.clock = clock;
+    }
+
+    @Override
+    public Cache findCacheForNewResource(IcnService service, String resourceName, DeviceId sw, PortNumber inPort) {
+        CacheLoad[] cs = candidates;
+        if (cs.length == 0)
+            return null;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Cache closest = cacheRanking != null ? cacheRanking.closest(sw) : null;
+        CacheLoad first = closest != null ? loads.get(closest.getName()) : null;
+        if (first == null)
+            first = cs[random.nextInt(cs.length)];
+        CacheLoad second = cs[random.nextInt(cs.length)];
+        if (second == first && cs.length > 1) {
+            // Another cache, equally likely
+            int i = random.nextInt(cs.length - 1);
+            second = cs[i] == first ? cs[cs.length - 1] : cs[i];
+        }
+        long now = clock.getAsLong();
+        double firstCost = cost(service, first, sw, now);
+        double secondCost = cost(service, second, sw, now);
+        if (firstCost == Double.POSITIVE_INFINITY && secondCost == Double.POSITIVE_INFINITY)
+            return closest;
+        if (secondCost < firstCost) {
+            if (first.cache == closest)
+                diverted.incrementAndGet();
+            log.debug("Placing {} in {} instead of {}, cost {} over {}",
+                    resourceName, second.cache.getName(), first.cache.getName(), firstCost, secondCost);
+            return second.cache;
+        }
+        return first.cache;
+    }
+
+    private double cost(IcnService service, CacheLoad load, DeviceId sw, long now) {
+        int hops = 0;
+        int flows = 0;
+        if (service != null) {
+            hops = service.middleboxDistance(sw, load.cache);
+            if (hops == IcnPathCache.UNREACHABLE)
+                return Double.POSITIVE_INFINITY;
+            flows = service.activeFlows(load.cache);
+        }
+        double pressure = Math.max(load.utilization(now),
+                Math.max(load.rate(now) / RATE_CAPACITY, (double) flows / FLOW_CAPACITY));
+        return (1 + hops) * (1 + pressure);
+    }
+
+    @Override
+    protected void cachesChanged() {
+        long now = clock.getAsLong();
+        CacheLoad[] cs = new CacheLoad[caches.size()];
+        int i = 0;
+        for (Cache cache : caches.values()) {
+            CacheLoad load = loads.get(cache.getName());
+            if (load == null || load.cache != cache) {
+                load = new CacheLoad(cache, now);
+                loads.put(cache.getName(), load);
+            }
+            cs[i++] = load;
+        }
+        loads.keySet().retainAll(caches.keySet());
+        candidates = cs;
+        super.cachesChanged();
+    }
+
+    @Override
+    public ResourceHTTP createResource(ResourceHTTP resourceHTTP, Proxy proxy) {
+        requested(resourceHTTP);
+        return super.createResource(resourceHTTP, proxy);
+    }
+
+    @Override
+    public void resourceRequested(ResourceHTTP resourceHTTP, Proxy proxy) {
+        requested(resourceHTTP);
+    }
+
+    private void requested(ResourceHTTP resourceHTTP) {
+        long now = clock.getAsLong();
+        for (Cache cache : resourceHTTP.getCaches()) {
+            CacheLoad load = loads.get(cache.getName());
+            if (load != null)
+                load.request(now);
+        }
+    }
+
+    @Override
+    public boolean reportCacheUtilization(String cacheName, double utilization) {
+        CacheLoad load = loads.get(cacheName);
+        if (load == null)
+            return false;
+        load.utilization(Math.max(0, utilization), clock.getAsLong());
+        return true;
+    }
+
+    @Override
+    public String getType() {
+        return DESCRIPTION;
+    }
+
+    @Override
+    public Map<String, Long> retrieveMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        long now = clock.getAsLong();
+        metrics.put("divertedFromClosest", diverted.get());
+        for (CacheLoad load : candidates) {
+            String name = load.cache.getName();
+            metrics.put("cacheRequestRate." + name, Math.round(load.rate(now)));
+            metrics.put("cacheUtilizationPercent." + name, Math.round(100 * load.utilization(now)));
+            if (icnservice != null)
+                metrics.put("cacheFlows." + name, (long) icnservice.activeFlows(load.cache));
+        }
+        return metrics;
+    }
+}
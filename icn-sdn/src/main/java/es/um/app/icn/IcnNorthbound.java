@@ -32,6 +32,7 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.regex.PatternSyntaxException;
 
 @Path("icn")
 public class IcnNorthbound extends AbstractWebResource {
@@ -84,6 +85,9 @@ public class IcnNorthbound extends AbstractWebResource {
             e.printStackTrace();
             log.error("Unable to parse jsonized icn in param updatedicn when calling update method {}", e.toString());
             return Response.status(Response.Status.NOT_FOUND).entity("Unable to parse jsonized icn in param updatedicn when calling update method").build();
+        } catch (PatternSyntaxException e) {
+            log.error("Invalid pattern in a provider of jsonized icn {}", e.toString());
+            return Response.status(Response.Status.BAD_REQUEST).entity("Invalid pattern in a provider of jsonized icn: " + e.getDescription()).build();
         }
         return Response.status(Response.Status.OK).build();
 	}
@@ -0,0 +1,189 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fast path classification of packet-ins working on the raw frame. Nothing
+ * is allocated until the frame is known to be an HTTP SYN over IPv4, and
+ * every accessor reads the fields with absolute gets, so the position and
+ * limit of the frame are never modified.
+ * Offsets are relative to the buffer position, L3 offsets as returned by
+ * {@link #classifyHttpSyn(ByteBuffer, int)}.
+ */
+public final class IcnPacketClassifier {
+
+    public static final int NOT_INTERESTING = -1;
+
+    private static final int ETH_HEADER_LEN = 14;
+    private static final int VLAN_HEADER_LEN = 4;
+    private static final int ETHERTYPE_IPV4 = 0x0800;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+    private static final int IPV4_MIN_HEADER_LEN = 20;
+    private static final int TCP_MIN_HEADER_LEN = 20;
+    private static final int TCP_FLAG_SYN = 0x02;
+
+    private IcnPacketClassifier() {
+    }
+
+    /**
+     * Check whether the frame is an IPv4 TCP SYN towards the given port.
+     * @param frame Raw ethernet frame.
+     * @param port TCP destination port of interest.
+     * @return Offset of the IPv4 header or NOT_INTERESTING.
+     */
+    public static int classifyHttpSyn(ByteBuffer frame, int port) {
+        int base = frame.position();
+        int limit = frame.limit();
+        if (limit - base < ETH_HEADER_LEN + IPV4_MIN_HEADER_LEN + TCP_MIN_HEADER_LEN)
+            return NOT_INTERESTING;
+        int l3 = base + ETH_HEADER_LEN;
+        int ethertype = frame.getShort(base + 12) & 0xFFFF;
+        if (ethertype == ETHERTYPE_VLAN) {
+            ethertype = frame.getShort(base + 16) & 0xFFFF;
+            l3 += VLAN_HEADER_LEN;
+        }
+        if (ethertype != ETHERTYPE_IPV4)
+            return NOT_INTERESTING;
+
+        int versionIhl = frame.get(l3) & 0xFF;
+        int ihl = (versionIhl & 0x0F) * 4;
+        if ((versionIhl >> 4) != 4 || ihl < IPV4_MIN_HEADER_LEN)
+            return NOT_INTERESTING;
+        if ((frame.get(l3 + 9) & 0xFF) != UtilIcn.IPPROTO_TCP)
+            return NOT_INTERESTING;
+        // Non first fragments do not carry the TCP header
+        if ((frame.getShort(l3 + 6) & 0x1FFF) != 0)
+            return NOT_INTERESTING;
+
+        int l4 = l3 + ihl;
+        if (limit - l4 < TCP_MIN_HEADER_LEN)
+            return NOT_INTERESTING;
+        if ((frame.getShort(l4 + 2) & 0xFFFF) != (port & 0xFFFF))
+            return NOT_INTERESTING;
+        if ((frame.get(l4 + 13) & TCP_FLAG_SYN) == 0)
+            return NOT_INTERESTING;
+        return l3;
+    }
+
+    public static long destinationMac(ByteBuffer frame) {
+        return mac(frame, frame.position());
+    }
+
+    public static long sourceMac(ByteBuffer frame) {
+        return mac(frame, frame.position() + 6);
+    }
+
+    public static int sourceIp(ByteBuffer frame, int l3) {
+        return frame.getInt(l3 + 12);
+    }
+
+    public static int destinationIp(ByteBuffer frame, int l3) {
+        return frame.getInt(l3 + 16);
+    }
+
+    public static int sourcePort(ByteBuffer frame, int l3) {
+        return frame.getShort(l4(frame, l3)) & 0xFFFF;
+    }
+
+    public static int destinationPort(ByteBuffer frame, int l3) {
+        return frame.getShort(l4(frame, l3) + 2) & 0xFFFF;
+    }
+
+    /**
+     * Copy the frame rewriting the destination MAC and IPv4 address. IPv4
+     * and TCP checksums are recomputed in the copy.
+     * @param frame Original frame, it is not modified.
+     * @param l3 Offset of the IPv4 header.
+     * @param dstMac New destination MAC.
+     * @param dstIp New destination IPv4 address.
+     * @return The rewritten frame.
+     */
+    public static byte[] rewriteDestination(ByteBuffer frame, int l3, long dstMac, int dstIp) {
+        int base = frame.position();
+        byte[] out = new byte[frame.limit() - base];
+        for (int i = 0; i < out.length; i++)
+            out[i] = frame.get(base + i);
+        l3 -= base;
+
+        for (int i = 5; i >= 0; i--) {
+            out[i] = (byte) dstMac;
+            dstMac >>>= 8;
+        }
+        putInt(out, l3 + 16, dstIp);
+
+        int ihl = (out[l3] & 0x0F) * 4;
+        int totalLen = getShort(out, l3 + 2);
+        int l4 = l3 + ihl;
+        int tcpLen = Math.min(totalLen, out.length - l3) - ihl;
+
+        putShort(out, l3 + 10, 0);
+        putShort(out, l3 + 10, checksum(out, l3, ihl, 0));
+
+        // TCP checksum includes the pseudo header: addresses, protocol and length
+        int pseudo = 0;
+        for (int i = 12; i < 20; i += 2)
+            pseudo += getShort(out, l3 + i);
+        pseudo += UtilIcn.IPPROTO_TCP + tcpLen;
+        putShort(out, l4 + 16, 0);
+        putShort(out, l4 + 16, checksum(out, l4, tcpLen, pseudo));
+        return out;
+    }
+
+    private static int l4(ByteBuffer frame, int l3) {
+        return l3 + (frame.get(l3) & 0x0F) * 4;
+    }
+
+    private static long mac(ByteBuffer frame, int offset) {
+        long mac = 0;
+        for (int i = 0; i < 6; i++)
+            mac = (mac << 8) | (frame.get(offset + i) & 0xFF);
+        return mac;
+    }
+
+    private static int checksum(byte[] data, int offset, int len, int initial) {
+        long sum = initial;
+        int end = offset + len;
+        int i = offset;
+        for (; i + 1 < end; i += 2)
+            sum += getShort(data, i);
+        if (i < end)
+            sum += (data[i] & 0xFF) << 8;
+        while ((sum >>> 16) != 0)
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        return (int) (~sum & 0xFFFF);
+    }
+
+    private static int getShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static void putShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        putShort(data, offset, value >>> 16);
+        putShort(data, offset + 2, value);
+    }
+}
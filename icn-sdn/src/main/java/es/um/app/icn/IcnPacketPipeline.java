@@ -0,0 +1,201 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.onlab.util.Tools.groupedThreads;
+
+/**
+ * Second stage of the packet-in processing. Work is handed off from the
+ * packet dispatcher thread to a fixed set of single threaded shards. The
+ * shard is chosen from the client 5-tuple hash so packets of the same flow
+ * are always handled in order by the same worker.
+ */
+public class IcnPacketPipeline {
+    private static final Logger log = LoggerFactory.getLogger(IcnPacketPipeline.class);
+
+    /** What to do when the shard queue is full */
+    public enum OverflowPolicy {
+        /** Drop the packet right away, never stall the dispatcher */
+        DROP,
+        /** Wait up to blockTimeout for room in the queue, then drop */
+        BLOCK
+    }
+
+    private final Shard[] shards;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutMs;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public IcnPacketPipeline(int workers, int queueSize, OverflowPolicy policy, long blockTimeoutMs) {
+        if (workers < 1 || queueSize < 1)
+            throw new IllegalArgumentException("Workers and queue size must be positive");
+        this.policy = policy;
+        this.blockTimeoutMs = blockTimeoutMs;
+        ThreadFactory factory = groupedThreads("onos/icn", "packet-worker-%d", log);
+        shards = new Shard[workers];
+        for (int i = 0; i < workers; i++) {
+            shards[i] = new Shard(queueSize);
+            shards[i].thread = factory.newThread(shards[i]);
+            shards[i].thread.start();
+        }
+    }
+
+    /**
+     * Queue a task in the shard owning the flow.
+     * @param flowHash Hash of the client 5-tuple.
+     * @param task Work to be done in the shard thread.
+     * @return false if the task was dropped or the pipeline is shut down.
+     */
+    public boolean submit(int flowHash, Runnable task) {
+        Shard shard = shards[(flowHash & Integer.MAX_VALUE) % shards.length];
+        if (!shard.running)
+            return false;
+        boolean queued = false;
+        if (policy == OverflowPolicy.BLOCK) {
+            try {
+                queued = shard.queue.offer(task, blockTimeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            queued = shard.queue.offer(task);
+        }
+        if (!queued) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        // Shut down while offering, the worker may be gone and leave the task behind
+        if (!shard.running && shard.queue.remove(task))
+            return false;
+        submitted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Stop the workers once the tasks already queued have been processed.
+     */
+    public void shutdown() {
+        for (Shard shard : shards) {
+            shard.running = false;
+            shard.thread.interrupt();
+        }
+    }
+
+    /**
+     * @return Whether the pipeline was shut down and refuses new tasks.
+     */
+    public boolean isShutdown() {
+        return !shards[0].running;
+    }
+
+    /**
+     * Mix the client 5-tuple into a hash used to select the shard.
+     */
+    public static int flowHash(int saddr, int daddr, int proto, int sport, int dport) {
+        int h = saddr;
+        h = 31 * h + daddr;
+        h = 31 * h + proto;
+        h = 31 * h + ((sport << 16) | (dport & 0xFFFF));
+        return h ^ (h >>> 16);
+    }
+
+    public int getWorkers() {
+        return shards.length;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getQueueDepth() {
+        long depth = 0;
+        for (Shard shard : shards)
+            depth += shard.queue.size();
+        return depth;
+    }
+
+    public long getMaxShardQueueDepth() {
+        long max = 0;
+        for (Shard shard : shards)
+            max = Math.max(max, shard.queue.size());
+        return max;
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    private class Shard implements Runnable {
+        private final BlockingQueue<Runnable> queue;
+        private volatile boolean running = true;
+        private Thread thread;
+
+        Shard(int queueSize) {
+            queue = new ArrayBlockingQueue<>(queueSize);
+        }
+
+        @Override
+        public void run() {
+            while (running || !queue.isEmpty()) {
+                Runnable task;
+                try {
+                    task = running ? queue.take() : queue.poll();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (task == null)
+                    break;
+                try {
+                    task.run();
+                    processed.incrementAndGet();
+                } catch (RuntimeException e) {
+                    failed.incrementAndGet();
+                    log.error("Packet worker task failed", e);
+                }
+            }
+        }
+    }
+}
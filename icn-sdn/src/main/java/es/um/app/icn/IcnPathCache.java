@@ -0,0 +1,282 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import org.onosproject.event.Event;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.Path;
+import org.onosproject.net.device.DeviceEvent;
+import org.onosproject.net.link.LinkEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+
+/**
+ * Shortest path and hop count between pairs of devices. The ICN service
+ * always asks for the same few pairs (edge switch to proxy or cache switch),
+ * so paths are kept until a topology event affects them:
+ * <ul>
+ *     <li>A link, port or device going away invalidates the paths using it.</li>
+ *     <li>A link or device coming up invalidates the paths that could get
+ *     shorter, i.e. those longer than one hop and the unreachable ones.</li>
+ * </ul>
+ */
+public class IcnPathCache {
+    private static final Logger log = LoggerFactory.getLogger(IcnPathCache.class);
+
+    public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+    private final BiFunction<DeviceId, DeviceId, Set<Path>> pathLoader;
+    private final ConcurrentHashMap<DevicePair, Entry> paths = new ConcurrentHashMap<>();
+    /** Bumped on every invalidation so in flight loads are not cached */
+    private final AtomicLong epoch = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param pathLoader Shortest paths between two devices in the current
+     *                   topology, e.g. PathService::getPaths.
+     */
+    public IcnPathCache(BiFunction<DeviceId, DeviceId, Set<Path>> pathLoader) {
+        this.pathLoader = pathLoader;
+    }
+
+    /**
+     * @return Shortest path between two different devices or null if there
+     * is none.
+     */
+    public Path path(DeviceId src, DeviceId dst) {
+        return entry(src, dst).path;
+    }
+
+    /**
+     * @return Links between both devices, 0 if they are the same device or
+     * UNREACHABLE.
+     */
+    public int hops(DeviceId src, DeviceId dst) {
+        if (src.equals(dst))
+            return 0;
+        return entry(src, dst).hops;
+    }
+
+    private Entry entry(DeviceId src, DeviceId dst) {
+        DevicePair key = new DevicePair(src, dst);
+        Entry entry = paths.get(key);
+        if (entry != null) {
+            hits.incrementAndGet();
+            return entry;
+        }
+        misses.incrementAndGet();
+        long loadEpoch = epoch.get();
+        entry = load(src, dst);
+        if (epoch.get() == loadEpoch) {
+            paths.putIfAbsent(key, entry);
+            // An invalidation may have run between the check and the put
+            if (epoch.get() != loadEpoch)
+                paths.remove(key, entry);
+        }
+        return entry;
+    }
+
+    private Entry load(DeviceId src, DeviceId dst) {
+        Path shortest = null;
+        for (Path p : pathLoader.apply(src, dst)) {
+            if (shortest == null || p.links().size() < shortest.links().size())
+                shortest = p;
+        }
+        return new Entry(shortest);
+    }
+
+    /**
+     * Drop the paths affected by the events that caused a topology change.
+     * @param reasons Events attached to the topology event, null or empty
+     *                if unknown.
+     * @return Source devices of the paths dropped, null if all of them.
+     */
+    public Set<DeviceId> topologyChanged(List<? extends Event<?, ?>> reasons) {
+        if (reasons == null || reasons.isEmpty()) {
+            clear();
+            return null;
+        }
+        Set<DeviceId> sources = new HashSet<>();
+        for (Event<?, ?> reason : reasons) {
+            if (reason instanceof LinkEvent) {
+                linkChanged((LinkEvent) reason, sources);
+            } else if (reason instanceof DeviceEvent) {
+                deviceChanged((DeviceEvent) reason, sources);
+            } else {
+                clear();
+                return null;
+            }
+        }
+        return sources;
+    }
+
+    private void linkChanged(LinkEvent event, Set<DeviceId> sources) {
+        Link link = event.subject();
+        switch (event.type()) {
+            case LINK_REMOVED:
+                invalidate(e -> e.uses(link), sources);
+                break;
+            case LINK_ADDED:
+            case LINK_UPDATED:
+            default:
+                invalidate(e -> e.uses(link) || e.couldShrink(), sources);
+                break;
+        }
+    }
+
+    private void deviceChanged(DeviceEvent event, Set<DeviceId> sources) {
+        DeviceId device = event.subject().id();
+        switch (event.type()) {
+            case DEVICE_REMOVED:
+            case DEVICE_SUSPENDED:
+                invalidate(e -> e.uses(device), sources);
+                break;
+            case DEVICE_AVAILABILITY_CHANGED:
+                invalidate(e -> e.uses(device) || e.couldShrink(), sources);
+                break;
+            case PORT_UPDATED:
+            case PORT_REMOVED:
+                if (event.port() != null) {
+                    ConnectPoint cp = new ConnectPoint(device, event.port().number());
+                    invalidate(e -> e.uses(cp), sources);
+                }
+                break;
+            default:
+                // Devices and ports being added do not change any path by themselves
+                break;
+        }
+    }
+
+    private void invalidate(Predicate<Entry> affected, Set<DeviceId> sources) {
+        epoch.incrementAndGet();
+        int removed = 0;
+        for (Iterator<Map.Entry<DevicePair, Entry>> it = paths.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<DevicePair, Entry> e = it.next();
+            if (affected.test(e.getValue())) {
+                it.remove();
+                sources.add(e.getKey().src);
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            invalidations.addAndGet(removed);
+            log.debug("Invalidated {} cached paths", removed);
+        }
+    }
+
+    public void clear() {
+        epoch.incrementAndGet();
+        invalidations.addAndGet(paths.size());
+        paths.clear();
+    }
+
+    public int size() {
+        return paths.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    private static final class Entry {
+        private final Path path;
+        private final int hops;
+
+        Entry(Path path) {
+            this.path = path;
+            this.hops = path == null ? UNREACHABLE : path.links().size();
+        }
+
+        boolean uses(Link link) {
+            return uses(l -> l.src().equals(link.src()) && l.dst().equals(link.dst()));
+        }
+
+        boolean uses(ConnectPoint cp) {
+            return uses(l -> l.src().equals(cp) || l.dst().equals(cp));
+        }
+
+        boolean uses(DeviceId device) {
+            return uses(l -> l.src().deviceId().equals(device) || l.dst().deviceId().equals(device));
+        }
+
+        private boolean uses(Predicate<Link> test) {
+            if (path == null)
+                return false;
+            for (Link l : path.links()) {
+                if (test.test(l))
+                    return true;
+            }
+            return false;
+        }
+
+        /** A new link can only shorten paths of two or more hops */
+        boolean couldShrink() {
+            return hops > 1;
+        }
+    }
+
+    private static final class DevicePair {
+        private final DeviceId src;
+        private final DeviceId dst;
+
+        DevicePair(DeviceId src, DeviceId dst) {
+            this.src = src;
+            this.dst = dst;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof DevicePair)) return false;
+
+            DevicePair that = (DevicePair) o;
+            return src.equals(that.src) && dst.equals(that.dst);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * src.hashCode() + dst.hashCode();
+        }
+    }
+}
@@ -22,41 +22,47 @@ package es.um.app.icn;
 
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.felix.scr.annotations.*;
 import org.onlab.packet.*;
+import org.onlab.util.Tools;
+import org.onosproject.cfg.ComponentConfigService;
 import org.onosproject.core.ApplicationId;
 import org.onosproject.core.CoreService;
+import org.onosproject.event.Event;
 import org.onosproject.net.*;
 import org.onosproject.net.flow.DefaultTrafficSelector;
 import org.onosproject.net.flow.DefaultTrafficTreatment;
 import org.onosproject.net.flow.FlowRule;
 import org.onosproject.net.flow.FlowRuleEvent;
 import org.onosproject.net.flow.FlowRuleListener;
+import org.onosproject.net.flow.FlowRuleOperations;
 import org.onosproject.net.flow.FlowRuleService;
 import org.onosproject.net.flow.TrafficSelector;
 import org.onosproject.net.flow.TrafficTreatment;
-import org.onosproject.net.flowobjective.DefaultForwardingObjective;
 import org.onosproject.net.flowobjective.FlowObjectiveService;
-import org.onosproject.net.flowobjective.ForwardingObjective;
+import org.onosproject.net.host.HostEvent;
+import org.onosproject.net.host.HostListener;
 import org.onosproject.net.host.HostService;
 import org.onosproject.net.intent.IntentService;
 import org.onosproject.net.packet.*;
 import org.onosproject.net.topology.PathService;
-import org.onosproject.net.topology.Topology;
+import org.onosproject.net.topology.TopologyEvent;
+import org.onosproject.net.topology.TopologyListener;
 import org.onosproject.net.topology.TopologyService;
+import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import static java.util.stream.Collectors.toList;
-import static java.util.stream.Collectors.toMap;
 
 
 @Component(immediate = true)
 @Service
 public class IcnService implements
-        IIcnService, IIcnPrivateService {
+        IIcnService, IIcnPrivateService, IIcnMetricsService {
 
     protected static final Logger log = LoggerFactory.getLogger(IcnService.class);
     protected static final String IPV4_ETHERTYPE = "0x0800";
@@ -74,6 +80,26 @@ public class IcnService implements
     protected static final int INTENT_PRIORITY_LOW = 100;
     protected static final int DEFAULT_FLOW_TIMEOUT = 30;
     protected static final int PROXYPATH_FLOW_TIMEOUT = 60;
+    protected static final int DEFAULT_PACKET_WORKERS = 4;
+    protected static final int DEFAULT_PACKET_QUEUE_SIZE = 1024;
+    protected static final String DEFAULT_PACKET_OVERFLOW_POLICY = "DROP";
+    protected static final int DEFAULT_PACKET_BLOCK_TIMEOUT = 10;	// ms
+
+    @Property(name = "packetWorkers", intValue = DEFAULT_PACKET_WORKERS,
+            label = "Number of worker shards processing HTTP SYN packet-ins")
+    private int packetWorkers = DEFAULT_PACKET_WORKERS;
+
+    @Property(name = "packetQueueSize", intValue = DEFAULT_PACKET_QUEUE_SIZE,
+            label = "Maximum number of packet-ins queued per worker shard")
+    private int packetQueueSize = DEFAULT_PACKET_QUEUE_SIZE;
+
+    @Property(name = "packetOverflowPolicy", value = DEFAULT_PACKET_OVERFLOW_POLICY,
+            label = "Policy when a worker shard queue is full: DROP or BLOCK")
+    private String packetOverflowPolicy = DEFAULT_PACKET_OVERFLOW_POLICY;
+
+    @Property(name = "packetBlockTimeout", intValue = DEFAULT_PACKET_BLOCK_TIMEOUT,
+            label = "Milliseconds the dispatcher waits for room with the BLOCK policy")
+    private int packetBlockTimeout = DEFAULT_PACKET_BLOCK_TIMEOUT;
 
     /** Onos Services */
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
@@ -100,33 +126,60 @@ public class IcnService implements
     @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
     protected FlowRuleService flowRuleService;
 
+    @Reference(cardinality = ReferenceCardinality.MANDATORY_UNARY)
+    protected ComponentConfigService cfgService;
+
 
 
     /** APPId */
     private ApplicationId appId;
 
     /** We need to register with the provider to receive OF messages */
-    protected HashMap<String, Icn> icns;
+    protected ConcurrentHashMap<String, Icn> icns;
     protected HashMap<String, Proxy> proxies;
-    protected ConcurrentHashMap<PathIndex, InternalIcnFlow> flows;
+    protected IcnFlowTable flows;
+    /** Proxies and caches of every ICN by MAC and IP address */
+    protected MiddleboxIndex<Proxy> proxyIndex = new MiddleboxIndex<>();
+    protected MiddleboxIndex<Cache> cacheIndex = new MiddleboxIndex<>();
+    /** Providers of every ICN compiled for request matching, replaced when they change */
+    protected volatile ProviderMatcher providerMatcher = ProviderMatcher.EMPTY;
+    /** Proxies ranked by distance from every edge switch */
+    protected MiddleboxRanking<Proxy> proxyRanking = new MiddleboxRanking<>(this::middleboxDistance);
 
     private IcnPacketProcessor icnPacketProcessor = new IcnPacketProcessor();
     private InternalFlowListener flowListener = new InternalFlowListener();
+    private InternalTopologyListener topologyListener = new InternalTopologyListener();
+    private InternalHostListener hostListener = new InternalHostListener();
+    /** Shortest paths between device pairs, kept until the topology changes */
+    protected IcnPathCache pathCache;
+    /** Flow batches submitted, rules in them and batches that failed */
+    private final AtomicLong flowBatches = new AtomicLong();
+    private final AtomicLong flowBatchRules = new AtomicLong();
+    private final AtomicLong flowBatchesFailed = new AtomicLong();
+    /** Addresses and ports of the prefetching tunnels of every ICN */
+    private final PrefetchAddresses prefetchAddresses = new PrefetchAddresses();
+    /** Workers where HTTP SYNs are processed out of the packet dispatcher */
+    private volatile IcnPacketPipeline packetPipeline;
 
     private long proxyReqServiceId = 1L;
     @Activate
-    public void activate() {
+    public void activate(ComponentContext context) {
 
         appId = coreService.registerApplication("es.um.app.icn");
+        cfgService.registerProperties(getClass());
 
         // Initialize our data structures
-        icns = new HashMap<String, Icn>();
+        icns = new ConcurrentHashMap<String, Icn>();
         proxies = new HashMap<String, Proxy>();
-        flows  = new ConcurrentHashMap<>();
+        flows = new IcnFlowTable();
+        pathCache = new IcnPathCache((src, dst) -> pathService.getPaths(src, dst));
+        readComponentConfiguration(context);
         // Install Processor
         packetService.addProcessor(icnPacketProcessor, PacketProcessor.director(PROCESSOR_PRIORITY));
 
         flowRuleService.addListener(flowListener);
+        topologyService.addListener(topologyListener);
+        hostService.addListener(hostListener);
 
         requestPackets();
 
@@ -134,17 +187,68 @@ public class IcnService implements
 
     @Deactivate
     public void deactivate() {
+        cfgService.unregisterProperties(getClass(), false);
         withdrawIntercepts();
         packetService.removeProcessor(icnPacketProcessor);
+        packetPipeline.shutdown();
         flowRuleService.removeListener(flowListener);
+        topologyService.removeListener(topologyListener);
+        hostService.removeListener(hostListener);
+        for (Icn icn : icns.values())
+            detachIcn(icn);
         clearFlows();
     }
 
     @Modified
-    public void modified() {
+    public void modified(ComponentContext context) {
+        readComponentConfiguration(context);
         requestPackets();
     }
 
+    /**
+     * Extract the packet pipeline properties and rebuild the pipeline if
+     * any of them changed.
+     */
+    private void readComponentConfiguration(ComponentContext context) {
+        Dictionary<?, ?> properties = context != null ? context.getProperties() : new Hashtable<>();
+
+        int workers = Tools.getIntegerProperty(properties, "packetWorkers", DEFAULT_PACKET_WORKERS);
+        int queueSize = Tools.getIntegerProperty(properties, "packetQueueSize", DEFAULT_PACKET_QUEUE_SIZE);
+        int blockTimeout = Tools.getIntegerProperty(properties, "packetBlockTimeout", DEFAULT_PACKET_BLOCK_TIMEOUT);
+        String policyStr = Tools.get(properties, "packetOverflowPolicy");
+        IcnPacketPipeline.OverflowPolicy policy;
+        try {
+            policy = IcnPacketPipeline.OverflowPolicy.valueOf(
+                    policyStr == null ? DEFAULT_PACKET_OVERFLOW_POLICY : policyStr.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            log.warn("Unknown packet overflow policy {}, using {}", policyStr, DEFAULT_PACKET_OVERFLOW_POLICY);
+            policy = IcnPacketPipeline.OverflowPolicy.valueOf(DEFAULT_PACKET_OVERFLOW_POLICY);
+        }
+        if (workers < 1 || queueSize < 1) {
+            log.warn("Invalid packet pipeline size {}x{}, using defaults", workers, queueSize);
+            workers = DEFAULT_PACKET_WORKERS;
+            queueSize = DEFAULT_PACKET_QUEUE_SIZE;
+        }
+
+        if (packetPipeline != null && workers == packetWorkers && queueSize == packetQueueSize &&
+                blockTimeout == packetBlockTimeout && policy.name().equals(packetOverflowPolicy)) {
+            return;
+        }
+        packetWorkers = workers;
+        packetQueueSize = queueSize;
+        packetBlockTimeout = blockTimeout;
+        packetOverflowPolicy = policy.name();
+
+        IcnPacketPipeline old = packetPipeline;
+        packetPipeline = new IcnPacketPipeline(workers, queueSize, policy, blockTimeout);
+        if (old != null) {
+            // Tasks already queued are still processed by the old workers
+            old.shutdown();
+        }
+        log.info("Packet pipeline: {} workers, queue size {}, overflow policy {}",
+                workers, queueSize, policy);
+    }
+
     /**
      * Request packet in via PacketService.
      */
@@ -173,24 +277,63 @@ public class IcnService implements
 
 
     private void clearFlows() {
-        flows.forEach((k,v) -> removeFlowPath(k,v));
+        FlowRuleOperations.Builder operations = FlowRuleOperations.builder();
+        flows.forEach(key -> operations.remove(
+                IcnFlowBatch.flowRule(key, appId, INTENT_PRIORITY_HIGH, DEFAULT_FLOW_TIMEOUT)));
+        flowRuleService.apply(operations.build());
+        flows.clear();
     }
 
-    private boolean removeFlowPath(PathIndex idx, InternalIcnFlow flow) {
-        DefaultForwardingObjective.Builder builder = DefaultForwardingObjective.builder()
-                .withSelector(flow.getSelector())
-                .withTreatment(flow.getTreatment())
-                .withPriority(INTENT_PRIORITY_HIGH)
-                .makeTemporary(DEFAULT_FLOW_TIMEOUT)
-                .fromApp(appId)
-                .withFlag(ForwardingObjective.Flag.SPECIFIC);
-        flowObjectiveService.forward(idx.getNode(), builder.remove());
-        return true;
+    /**
+     * Install every rule of the batch and keep track of the outcome.
+     * Rules that could not be installed are forgotten, so they are
+     * requested again by the next packet of the flow. Only the rules of
+     * this batch are forgotten when it fails, not when a batch it awaits
+     * does.
+     * @return Future completed with true once all the rules are confirmed,
+     * including the ones requested by the awaited batches.
+     */
+    private CompletableFuture<Boolean> submitFlows(IcnFlowBatch batch) {
+        if (!batch.isEmpty()) {
+            flowBatches.incrementAndGet();
+            flowBatchRules.addAndGet(batch.keys().size());
+        }
+        CompletableFuture<Boolean> installed = batch.submit(flowRuleService);
+        batch.completion().whenComplete((own, error) -> {
+            if (!Boolean.TRUE.equals(own)) {
+                flowBatchesFailed.incrementAndGet();
+                log.warn("Unable to install flows {}", batch.keys());
+                discardFlows(batch);
+            }
+        });
+        return installed;
+    }
+
+    /**
+     * Forget the rules of a batch that will not be installed. A batch
+     * abandoned before being submitted is completed as failed, so the
+     * batches awaiting its rules do not wait forever.
+     */
+    private void discardFlows(IcnFlowBatch batch) {
+        batch.completion().complete(false);
+        batch.keys().forEach(flows::removeExact);
     }
 
-    protected boolean createPath(String service, int timeout, ApplicationId appId, PathService pathService, FlowObjectiveService flowObjectiveService,
+    private static IcnFlowKey.Builder flowMatch(DeviceId device, PortNumber inport, int matchIpsrc, int matchIpDst,
+                                                boolean matchPortSrc, int srcport, boolean matchPortDst, int dstport) {
+        IcnFlowKey.Builder builder = IcnFlowKey.builder(device)
+                .inPort(inport.toLong())
+                .matchIpSrc(matchIpsrc)
+                .matchIpDst(matchIpDst);
+        if (matchPortSrc)
+            builder.matchTcpSrc(srcport);
+        if (matchPortDst)
+            builder.matchTcpDst(dstport);
+        return builder;
+    }
+
+    protected boolean createPath(IcnFlowBatch batch, String service, int timeout, PathService pathService,
                                         int matchIpsrc, int matchIpDst, boolean matchPortSrc, int srcport, boolean matchPortDst, int dstport,
-                                        Ethernet ethIn, IPv4 ipIn, TCP tcpIn,
                                         ConnectPoint source, ConnectPoint destination,
                                         boolean rewriteSourceIP, IpAddress rwsourceAddr,
                                         boolean rewriteSourceMAC, MacAddress rwsourcel2Addr,
@@ -219,77 +362,33 @@ public class IcnService implements
         log.debug("rewriteSource {} {} {}", rewriteSourceIP, rwsourceAddr, rwsourcel2Addr);
         log.debug("rewriteDestination {} {} {}", rewriteDestinationIP, rwdestinationAddr, rwdestinationl2Addr);
         PortNumber sourceport = source.port();
-        PortNumber destinationport = destination.port();
-
-        TrafficSelector.Builder trafficSelectorBuilder = DefaultTrafficSelector.builder()
-                .matchEthType(Ethernet.TYPE_IPV4)
-                .matchIPProtocol(IPv4.PROTOCOL_TCP);
-        if (matchPortDst) {
-            trafficSelectorBuilder
-                    .matchTcpDst(TpPort.tpPort(dstport));
-        }
-        if (matchPortSrc) {
-            trafficSelectorBuilder
-                    .matchTcpSrc(TpPort.tpPort(srcport));
-        }
 
         if (!source.deviceId().equals(destination.deviceId())) {
             log.debug("Indirect connection, Looking for paths");
-            Set<Path> paths = pathService.getPaths(source.elementId(), destination.elementId());
-            if (paths.isEmpty()) {
+            Path path = pathCache.path(source.deviceId(), destination.deviceId());
+            if (path == null) {
                 log.error("Unable to locate any path");
                 return false;
             }
 
-
-            Optional<Path> first = paths.stream().findFirst();
-            if (first.isPresent()) {
-                Path path = first.get();
-                String linkstr = "";
-                for (Link link : path.links()) {
-                    linkstr += link + " - ";
+            log.info("Using path: {}", path.links());
+            for (Link link : path.links()) {
+                PortNumber destinationport = link.src().port();
+                IcnFlowKey key = flowMatch(link.src().deviceId(), sourceport, matchIpsrc, matchIpDst,
+                        matchPortSrc, srcport, matchPortDst, dstport)
+                        .outPort(destinationport.toLong())
+                        .build();
+                log.debug("Treating link {} for device {} inport {} outport {}",
+                        link, link.src().deviceId(), sourceport, destinationport);
+                sourceport = link.dst().port();
+                CompletableFuture<Boolean> installation = flows.request(key, batch.completion());
+                if (installation != null) {
+                    log.debug("Flow {} was already requested, ignoring.", key);
+                    batch.await(installation);
+                    continue;
                 }
-                log.info("Using path: " + linkstr);
-                for (Link link : path.links()) {
-                    PathIndex idx = new PathIndex(service, link.src().deviceId(), appId, matchIpsrc, matchIpDst, matchPortSrc, srcport, matchPortDst, dstport, ethIn, ipIn, tcpIn,
-                            source, destination,
-                            rewriteSourceIP, rwsourceAddr, rewriteSourceMAC, rwsourcel2Addr, rewriteSourcePort, rwsourceport,
-                            rewriteDestinationIP, rwdestinationAddr, rewriteDestinationMAC, rwdestinationl2Addr, rewriteDestinationPort, rwdestport);
-                    if (flows.containsKey(idx)) {
-                        log.debug("Flow {} was already requested, ignoring.", idx);
-                        continue;
-                    }
-                    destinationport = link.src().port();
-                    log.debug("Treating link {} for device {} inport {} outport {}",
-                            link, link.src().deviceId(), sourceport, destinationport);
-                    TrafficSelector selector = trafficSelectorBuilder
-                            .matchIPSrc(IpPrefix.valueOf(matchIpsrc, 32))
-                            .matchIPDst(IpPrefix.valueOf(matchIpDst, 32))
-                            .matchInPort(sourceport)
-                            .build();
-
-
-                    TrafficTreatment.Builder builder = DefaultTrafficTreatment.builder();
-                    builder.setOutput(destinationport);
-                    TrafficTreatment treatment = builder.build();
-
-                    ForwardingObjective.Builder fobuilder = DefaultForwardingObjective.builder()
-                            .withSelector(selector)
-                            .withTreatment(treatment)
-                            .withPriority(INTENT_PRIORITY_HIGH)
-                            .fromApp(appId)
-                            .withFlag(ForwardingObjective.Flag.SPECIFIC);
-                    if (timeout > 0) {
-                        fobuilder.makeTemporary(timeout);
-                    }
-                    flowObjectiveService.forward(link.src().deviceId(), fobuilder.add());
-                    log.debug("Preparing path: {} {} {}", link.src().deviceId(), selector, treatment);
-                    InternalIcnFlow icnflow = new InternalIcnFlow(selector, treatment);
-                    flows.put(idx, icnflow);
-                    sourceport = link.dst().port();
-                }
-            } else {
-                log.debug("Direct connection, same switch");
+                batch.add(key, timeout);
+                log.debug("Preparing path: {}", key);
             }
         }
         // Now we need to treat last jump
@@ -297,83 +396,63 @@ public class IcnService implements
             log.debug("Same device");
             sourceport = source.port();
         }
-        PathIndex idx = new PathIndex(service, destination.deviceId(), appId, matchIpsrc, matchIpDst, matchPortSrc, srcport, matchPortDst, dstport, ethIn, ipIn, tcpIn,
-                source, destination,
-                rewriteSourceIP, rwsourceAddr, rewriteSourceMAC,rwsourcel2Addr, rewriteSourcePort, rwsourceport,
-                rewriteDestinationIP, rwdestinationAddr, rewriteDestinationMAC, rwdestinationl2Addr, rewriteDestinationPort, rwdestport);
-        if (flows.containsKey(idx)) {
-            log.debug("Flow {} was already requested, ignoring.", idx);
-            return true;
-        }
-
-        destinationport = destination.port();
-        TrafficSelector selector = trafficSelectorBuilder
-                .matchInPort(sourceport)
-                .matchIPSrc(IpPrefix.valueOf(matchIpsrc, 32))
-                .matchIPDst(IpPrefix.valueOf(matchIpDst, 32))
-                .build();
-
-        TrafficTreatment treatment = null;
-
-
-
-        TrafficTreatment.Builder builder = DefaultTrafficTreatment.builder();
-
+        IcnFlowKey.Builder builder = flowMatch(destination.deviceId(), sourceport, matchIpsrc, matchIpDst,
+                matchPortSrc, srcport, matchPortDst, dstport)
+                .outPort(destination.port().toLong());
         if (rewriteSourceIP) {
-            builder.setIpSrc(rwsourceAddr);
-            builder.immediate();
+            builder.rewriteIpSrc(rwsourceAddr.getIp4Address().toInt());
         }
         if (rewriteSourceMAC) {
-            builder.setEthSrc(rwsourcel2Addr);
-            builder.immediate();
+            builder.rewriteMacSrc(rwsourcel2Addr.toLong());
         }
         if (rewriteSourcePort) {
-            builder.setTcpSrc(rwsourceport);
-            builder.immediate();
+            builder.rewriteTcpSrc(rwsourceport.toInt());
         }
         if (rewriteDestinationIP) {
-            builder.setIpDst(rwdestinationAddr);
-            builder.immediate();
+            builder.rewriteIpDst(rwdestinationAddr.getIp4Address().toInt());
         }
         if(rewriteDestinationMAC) {
-            builder.setEthDst(rwdestinationl2Addr);
-            builder.immediate();
+            builder.rewriteMacDst(rwdestinationl2Addr.toLong());
         }
         if(rewriteDestinationPort) {
-            builder.setTcpDst(rwdestport);
-            builder.immediate();
+            builder.rewriteTcpDst(rwdestport.toInt());
         }
-        builder.setOutput(destinationport);
-        treatment = builder.build();
-
-        ForwardingObjective.Builder fobuilder = DefaultForwardingObjective.builder()
-                .withSelector(selector)
-                .withTreatment(treatment)
-                .withPriority(INTENT_PRIORITY_HIGH)
-                .fromApp(appId)
-                .withFlag(ForwardingObjective.Flag.SPECIFIC);
-        if (timeout > 0) {
-            fobuilder.makeTemporary(timeout);
+        IcnFlowKey key = builder.build();
+        CompletableFuture<Boolean> installation = flows.request(key, batch.completion());
+        if (installation != null) {
+            log.debug("Flow {} was already requested, ignoring.", key);
+            batch.await(installation);
+            return true;
         }
-        flowObjectiveService.forward(destination.deviceId(), fobuilder.add());
-        log.debug("Preparing final jump: {} {}", selector, treatment);
-        InternalIcnFlow icnflow = new InternalIcnFlow(selector, treatment);
-        flows.put(idx, icnflow);
+
+        batch.add(key, timeout);
+        log.debug("Preparing final jump: {}", key);
 
         return true;
     }
 
-    public boolean flowExpired(DeviceId device, InternalIcnFlow flow) {
-        Map<PathIndex, InternalIcnFlow> collectedEntries = flows.entrySet().parallelStream().filter(e -> e.getKey().getNode().equals(device) && e.getValue().equals(flow)).collect(toMap(HashMap.Entry::getKey, HashMap.Entry::getValue));
+    /**
+     * @return Addresses and ports of the prefetching tunnels, shared by
+     * every ICN so their tunnels never get the same pair.
+     */
+    public PrefetchAddresses getPrefetchAddresses() {
+        return prefetchAddresses;
+    }
 
-        if (collectedEntries.size() == 0) {
-            log.warn("Internal flow expired and not found {}", flow);
+    public boolean flowExpired(DeviceId device, TrafficSelector selector) {
+        IcnFlowKey match = IcnFlowKey.fromSelector(device, selector);
+        if (match == null) {
+            log.warn("Expired flow was not installed by the ICN service {}", selector);
             return false;
         }
-        if (collectedEntries.size() != 1) {
-            log.warn("More than one internal flow coincide {}", collectedEntries.keySet());
+        IcnFlowKey removed = flows.remove(match);
+        if (removed == null) {
+            log.warn("Internal flow expired and not found {}", match);
+            return false;
         }
-        flows.keySet().removeAll(collectedEntries.keySet());
+        log.debug("Internal flow expired {}", removed);
+        for (Icn icn : icns.values())
+            icn.flowExpired(removed);
 
         return true;
     }
@@ -387,53 +466,25 @@ public class IcnService implements
         log.info("Process resource request from proxy {} for host {} and flow {}",
                 req.proxy, req.hostname, req.flow.toString());
 
-        Optional<Proxy> optproxy = proxies.values().stream().filter(p -> p.getMacaddr().equalsIgnoreCase(req.getProxy())).findFirst();
-        if (!optproxy.isPresent()) {
+        Proxy p = findProxy(req.getProxy());
+        if (p == null) {
             log.error("Unable to find a proxy in icn for mac{}", req.getProxy());
             return false;
         }
 
 
-        // Get the providers related to this request (if any)
-        Collection<Provider> providers =
-                findProvidersFromAddress(IPv4.toIPv4Address(req.flow.daddr));
-        if (providers.isEmpty()) {
-            log.warn("No provider for proxy request: proxy {} hostname {}",
-                    req.proxy, req.hostname);
+        // Get the provider of this request (if any) and its ICN
+        int daddr = IPv4.toIPv4Address(req.flow.daddr);
+        ProviderMatcher.Match match = providerMatcher.match(daddr, req.getHostname(), req.uri);
+        if (match == null) {
+            log.info("Not matching provider for proxy {} hostname {} url {}",
+                    req.proxy, req.hostname, req.uri);
             return false;
         }
-
-        String resourceName = req.uri;
-        int idx = resourceName.indexOf('?');
-        if (idx > 0)
-            resourceName = resourceName.substring(0, idx);
-
-        Proxy p = optproxy.get();
-        List<Provider> providerList = providers.parallelStream()
-                .filter(prov -> (prov.matchUriPattern(req.uri) != null) &&
-                        (prov.matchHostPattern(req.getHostname()) != null))
-                .limit(1).collect(toList());
-        if (providerList.isEmpty()) {
-            log.info("Not matching provider for url {}", req.uri);
-            return false;
-        }
-        Provider provider = providerList.get(0);
+        Icn icn = match.icn;
+        Provider provider = match.provider;
         log.info("Checking provider: {}", provider.getName());
-        String uri = provider.matchUriPattern(req.uri);
-
-        Optional<Icn> icnfirst = icns.values().parallelStream().filter(x -> {
-            Cache c = null;
-            if (!x.retrieveProviders().contains(provider))
-                return false;
-            return true;
-        }).findFirst();
-        if (!icnfirst.isPresent()) {
-            log.error("No ICN found for provider {}", provider);
-            return false;
-        }
-
-        // We have in icnfirst the first ICN that accomplishes previous checks
-        Icn icn = icnfirst.get();
+        String uri = match.resource;
 
         Cache c = null;
         ResourceHTTP resourceHTTP = null;
@@ -463,6 +514,7 @@ public class IcnService implements
         // Resource management
         if (resourceHTTP != null) {
             resourceHTTP.incrRequests();
+            icn.resourceRequested(resourceHTTP, p);
             req.flow.setDmac(c.macaddr);
         } else {
             ResourceHTTP res = new ResourceHTTP(UtilIcn.resourceId(icn.getName(), uri), uri);
@@ -506,11 +558,11 @@ public class IcnService implements
         IpAddress ipdestprefix = Ip4Address.valueOf(originalreq.daddr);
         log.debug("prefix origin (proxy) {} destination (provider) {}", proxyprefix, originaldestprefix);
 
-        if (!createPath(service, DEFAULT_FLOW_TIMEOUT, appId, pathService, flowObjectiveService,
+        IcnFlowBatch batch = new IcnFlowBatch(appId, INTENT_PRIORITY_HIGH);
+        if (!createPath(batch, service, DEFAULT_FLOW_TIMEOUT, pathService,
                 cacheprefix,
                 proxyprefix,
                 true, mbox.getPort(), true, proxysrcport,
-                null, null, null,
                 new ConnectPoint(DeviceId.deviceId(mbox.getLocation().getDpid()), PortNumber.portNumber(mbox.getLocation().getPort())),
                 new ConnectPoint(DeviceId.deviceId(origin.getDpid()), PortNumber.portNumber(origin.getPort())),
                 true, ipdestprefix,
@@ -520,15 +572,15 @@ public class IcnService implements
                 false, null,
                 false, null)) {
             log.error("programProxyPath(): Unable to create path from cache to proxy");
+            discardFlows(batch);
             return false;
         }
 
 
-        if(!createPath(service, DEFAULT_FLOW_TIMEOUT, appId, pathService, flowObjectiveService,
+        if(!createPath(batch, service, DEFAULT_FLOW_TIMEOUT, pathService,
                 proxyprefix,
                 originaldestprefix,
                 true, proxysrcport, true, UtilIcn.HTTP_PORT,
-                null, null, null,
                 new ConnectPoint(DeviceId.deviceId(origin.getDpid()), PortNumber.portNumber(origin.getPort())),
                 new ConnectPoint(DeviceId.deviceId(mbox.getLocation().getDpid()), PortNumber.portNumber(mbox.getLocation().getPort())),
                 false, null,
@@ -538,9 +590,11 @@ false,null,
 true, cacheMac,
                 true, TpPort.tpPort(mbox.getPort()))) {
             log.error("programProxyPath(): Unable to create path from proxy to cache");
+            discardFlows(batch);
         return false;
         }
 
+        submitFlows(batch);
         log.debug("Proxy paths created successfully");
 
         return true;
@@ -555,31 +609,32 @@ true, cacheMac,
 
         Ip4Address ipcacheprefix = Ip4Address.valueOf(mbox.getIpaddr());
 
-
-        if(!createPath(service, DEFAULT_FLOW_TIMEOUT, appId, pathService, flowObjectiveService,
+        IcnFlowBatch batch = new IcnFlowBatch(appId, INTENT_PRIORITY_HIGH);
+        if(!createPath(batch, service, DEFAULT_FLOW_TIMEOUT, pathService,
                 ipcacheprefix.toInt(), proxyprefix,
                 true, (short)mbox.getPort(), true, icnPort,
-                null, null, null,
                 new ConnectPoint(DeviceId.deviceId(mbox.getLocation().getDpid()), PortNumber.portNumber(mbox.getLocation().getPort())),
                 new ConnectPoint(DeviceId.deviceId(origin.getDpid()), PortNumber.portNumber(origin.getPort())),
                 true, icnAddress, false, null, false, TpPort.tpPort(icnPort),
                 false, null, false, null, false, null)) {
             log.error("createPrefetchingPath: Unable to create path between cache and proxy");
+            discardFlows(batch);
             return false;
         }
 
-        if(!createPath(service, DEFAULT_FLOW_TIMEOUT, appId, pathService, flowObjectiveService,
+        if(!createPath(batch, service, DEFAULT_FLOW_TIMEOUT, pathService,
                 proxyprefix, icnAddress.toInt(),
                 true, icnPort, false, (short) 0,
-                null, null, null,
                 new ConnectPoint(DeviceId.deviceId(origin.getDpid()), PortNumber.portNumber(origin.getPort())),
                 new ConnectPoint(DeviceId.deviceId(mbox.getLocation().getDpid()), PortNumber.portNumber(mbox.getLocation().getPort())),
                 false, null, false, null, false, null,
                 true, ipcacheprefix, true, cacheMac, false, TpPort.tpPort(mbox.getPort()))) {
             log.error("createPrefetchingPath: Unable to create path between proxy and cache");
+            discardFlows(batch);
             return false;
         }
 
+        submitFlows(batch);
         return true;
     }
 
@@ -602,22 +657,20 @@ true, cacheMac,
     }
 
     protected Collection<Provider> findProvidersFromAddress(int ip) {
-        Collection<Provider> providers = new HashSet<Provider>();
-        for (Icn c : icns.values()) {
-            for (Provider p: c.retrieveProviders()) {
-                if (p.containsIpAddress(ip))
-                    providers.add(p);
-            }
-        }
-        return providers;
+        return providerMatcher.providersOf(ip);
     }
 
     protected Proxy findProxy(String macaddr) {
-        for (Proxy p: proxies.values()) {
-            if (macaddr.equalsIgnoreCase(p.macaddr))
-                return p;
-        }
-        return null;
+        long mac = UtilIcn.macToLong(macaddr);
+        return mac < 0 ? null : proxyIndex.findByMac(mac);
+    }
+
+    protected Proxy findProxy(long macaddr) {
+        return proxyIndex.findByMac(macaddr);
+    }
+
+    protected Proxy findProxyByIp(int ipaddr) {
+        return proxyIndex.findByIp(ipaddr);
     }
 
     private String getDeviceId4HostHelper(IMiddlebox m) {
@@ -633,37 +686,39 @@ true, cacheMac,
         return mboxDeviceId;
     }
 
+    /**
+     * Hops from a switch to the switch where the middlebox is attached.
+     * @return Distance or IcnPathCache.UNREACHABLE.
+     */
+    protected int middleboxDistance(DeviceId sw, IMiddlebox m) {
+        String mboxDeviceId = null;
+        if (m.getLocation() == null) {
+            // There was no info in the config json about location. Try to find the host
+            mboxDeviceId = getDeviceId4HostHelper(m);
+        } else {
+            // Get info about middlebox location from config
+            mboxDeviceId = m.getLocation().dpid;
+        }
+        // Not located yet, no host with its MAC address
+        if (mboxDeviceId == null || mboxDeviceId.isEmpty())
+            return IcnPathCache.UNREACHABLE;
+        if (sw.toString().equals(mboxDeviceId)) {
+            // Middlebox and host on the same device. No path needed.
+            return 0;
+        }
+        return pathCache.hops(sw, DeviceId.deviceId(mboxDeviceId));
+    }
+
     protected IMiddlebox findClosestMiddlebox(Collection<? extends IMiddlebox> middleboxes,
                                               DeviceId sw, PortNumber inPort) {
         IMiddlebox mbox = null;
-        int minLen = Integer.MAX_VALUE;
-        Topology topology = topologyService.currentTopology();
+        int minLen = IcnPathCache.UNREACHABLE;
 
         for (IMiddlebox m: middleboxes) {
-            String mboxDeviceId = null;
-            if (m.getLocation() == null) {
-                // There was no info in the config json about location. Try to find the host
-                mboxDeviceId = getDeviceId4HostHelper(m);
-            } else {
-                // Get info about middlebox location from config
-                mboxDeviceId = m.getLocation().dpid;
-            }
-
-            log.debug("Paths in topology: {}", topologyService.getPaths(topology, sw, DeviceId.deviceId(mboxDeviceId)));
-
-            Set<Path> paths = topologyService.getPaths(topology, sw, DeviceId.deviceId(mboxDeviceId));
-            if (sw.toString().equals(mboxDeviceId))
-            {
-                // Middlebox and host on the same device. No path needed. No need to look for best path.
+            int hops = middleboxDistance(sw, m);
+            if (hops < minLen) { // TODO: Here we could take into account other metrics rather than number of links
+                minLen = hops;
                 mbox = m;
-                continue;
-            } else {
-                for (Path path : paths) {
-                    if (path.links().size() < minLen) { // TODO: Here we could take into account other metrics rather than number of links
-                        minLen = path.links().size();
-                        mbox = m;
-                    }
-                }
             }
         }
         return mbox;
@@ -671,43 +726,57 @@ true, cacheMac,
 
     protected Map<IMiddlebox, Integer> getMiddleBoxesDistance(Collection<? extends IMiddlebox> middleboxes,
                                                                       DeviceId sw) {
-        Topology topology = topologyService.currentTopology();
         ConcurrentHashMap<IMiddlebox, Integer> resultpaths =  new ConcurrentHashMap<>();
 
         for (IMiddlebox m: middleboxes) {
-            String mboxDeviceId = null;
-            if (m.getLocation() == null) {
-                // There was no info in the config json about location. Try to find the host
-                mboxDeviceId = getDeviceId4HostHelper(m);
-            } else {
-                // Get info about middlebox location from config
-                mboxDeviceId = m.getLocation().dpid;
-            }
-            log.debug("Paths in topology: {}", topologyService.getPaths(topology, sw, DeviceId.deviceId(mboxDeviceId)));
-
-            if (sw.toString().equals(mboxDeviceId)) {
-                resultpaths.put(m, 0);
-            } else {
-                Set<Path> paths = topologyService.getPaths(topology, sw, DeviceId.deviceId(mboxDeviceId));
-                Integer jumps = Integer.MAX_VALUE;
-                for (Path p : paths) {
-                    if (p.links().size() < jumps)
-                        jumps = p.links().size();
-                }
-                resultpaths.put(m, jumps);
-            }
+            resultpaths.put(m, middleboxDistance(sw, m));
         }
         return resultpaths;
     }
 
+    /**
+     * Rankings of the middleboxes must be recomputed for these switches.
+     * @param switches Affected switches, null if all of them.
+     */
+    protected void middleboxDistancesChanged(Set<DeviceId> switches) {
+        proxyRanking.invalidate(switches);
+        for (Icn icn : icns.values())
+            icn.middleboxDistancesChanged(switches);
+    }
+
+    /**
+     * @return Flows currently directed to the middlebox, one per client
+     * connection being served.
+     */
+    public int activeFlows(IMiddlebox m) {
+        return flows.towards(Ip4Address.valueOf(m.getIpaddr()).toInt());
+    }
+
     protected Cache findCache(String macaddr) {
-        for (Icn icn : icns.values()) {
-            for (Cache cache: icn.retrieveCaches()) {
-                if (macaddr.equalsIgnoreCase(cache.macaddr))
-                    return cache;
-            }
-        }
-        return null;
+        long mac = UtilIcn.macToLong(macaddr);
+        return mac < 0 ? null : cacheIndex.findByMac(mac);
+    }
+
+    protected Cache findCache(long macaddr) {
+        return cacheIndex.findByMac(macaddr);
+    }
+
+    protected Cache findCacheByIp(int ipaddr) {
+        return cacheIndex.findByIp(ipaddr);
+    }
+
+    /**
+     * Rebuild the cache index after a cache or ICN change.
+     */
+    protected void reindexCaches() {
+        List<Cache> caches = new ArrayList<>();
+        for (Icn icn : icns.values())
+            caches.addAll(icn.retrieveCaches());
+        cacheIndex.rebuild(caches);
+    }
+
+    protected synchronized void reindexProviders() {
+        providerMatcher = new ProviderMatcher(icns.values());
     }
 
     @Override
@@ -723,19 +792,43 @@ true, cacheMac,
     @Override
     public Icn createIcn(Icn icn) {
         icn.setIcnService(this);
-        icns.put(icn.getName(), icn);
+        // An ICN created with the name of an existing one replaces it
+        Icn previous = icns.put(icn.getName(), icn);
+        reindexCaches();
+        reindexProviders();
+        if (previous != null && previous != icn)
+            detachIcn(previous);
         return icn;
     }
 
     @Override
     public Icn updateIcn(Icn icn) {
-        icns.put(icn.getName(), icn);
+        icn.setIcnService(this);
+        Icn previous = icns.put(icn.getName(), icn);
+        reindexCaches();
+        reindexProviders();
+        if (previous != null && previous != icn)
+            detachIcn(previous);
         return icn;
     }
 
     @Override
     public Icn removeIcn(String name) {
-        return icns.remove(name);
+        Icn icn = icns.remove(name);
+        reindexCaches();
+        reindexProviders();
+        if (icn != null)
+            detachIcn(icn);
+        return icn;
+    }
+
+    /**
+     * An ICN leaving the service stops its background work, e.g. refreshing
+     * manifests or installing prefetching paths.
+     */
+    private void detachIcn(Icn icn) {
+        icn.setIcnService(null);
+        icn.shutdown();
     }
 
     @Override
@@ -750,17 +843,23 @@ true, cacheMac,
 
     @Override
     public Provider createProvider(Icn icn, Provider provider) {
-        return icn.createProvider(provider);
+        Provider res = icn.createProvider(provider);
+        reindexProviders();
+        return res;
     }
 
     @Override
     public Provider updateProvider(Icn icn, Provider provider) {
-        return icn.updateProvider(provider);
+        Provider res = icn.updateProvider(provider);
+        reindexProviders();
+        return res;
     }
 
     @Override
     public Provider removeProvider(Icn icn, String name) {
-        return icn.removeProvider(name);
+        Provider res = icn.removeProvider(name);
+        reindexProviders();
+        return res;
     }
 
     @Override
@@ -811,27 +910,66 @@ true, cacheMac,
     @Override
     public Proxy createProxy(Proxy proxy) {
         proxies.put(proxy.name, proxy);
+        proxyIndex.rebuild(proxies.values());
+        proxyRanking.put(proxy);
         return proxy;
     }
 
     @Override
     public Proxy updateProxy(Proxy proxy) {
         proxies.put(proxy.name, proxy);
+        proxyIndex.rebuild(proxies.values());
+        proxyRanking.put(proxy);
         return proxy;
     }
 
     @Override
     public Proxy removeProxy(String name) {
-        return proxies.remove(name);
+        Proxy proxy = proxies.remove(name);
+        proxyIndex.rebuild(proxies.values());
+        proxyRanking.remove(name);
+        return proxy;
+    }
+
+    @Override
+    public Map<String, Long> retrieveMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<>();
+        IcnPacketPipeline pipeline = packetPipeline;
+        metrics.put("packetWorkers", (long) pipeline.getWorkers());
+        metrics.put("packetQueueDepth", pipeline.getQueueDepth());
+        metrics.put("packetMaxShardQueueDepth", pipeline.getMaxShardQueueDepth());
+        metrics.put("packetSubmitted", pipeline.getSubmitted());
+        metrics.put("packetProcessed", pipeline.getProcessed());
+        metrics.put("packetDropped", pipeline.getDropped());
+        metrics.put("packetFailed", pipeline.getFailed());
+        metrics.put("flowTableSize", (long) flows.size());
+        metrics.put("flowBatches", flowBatches.get());
+        metrics.put("flowBatchRules", flowBatchRules.get());
+        metrics.put("flowBatchesFailed", flowBatchesFailed.get());
+        metrics.put("pathCacheSize", (long) pathCache.size());
+        metrics.put("pathCacheHits", pathCache.getHits());
+        metrics.put("pathCacheMisses", pathCache.getMisses());
+        metrics.put("pathCacheInvalidations", pathCache.getInvalidations());
+        metrics.put("prefetchAddressesAllocated", prefetchAddresses.allocated());
+        metrics.put("prefetchAddressesReleased", prefetchAddresses.released());
+        metrics.put("prefetchAddressesInUse", (long) prefetchAddresses.inUse());
+        metrics.put("prefetchAddressesExhausted", prefetchAddresses.exhausted());
+        metrics.put("providers", (long) providerMatcher.size());
+        metrics.put("providerNetworks", (long) providerMatcher.networks());
+        for (Icn icn : icns.values())
+            icn.retrieveMetrics().forEach((name, value) -> metrics.put(icn.getName() + "." + name, value));
+        return metrics;
     }
 
     private class IcnPacketProcessor implements PacketProcessor {
-        long serviceId = 1;
+        AtomicLong serviceId = new AtomicLong(1);
 
         @Override
         /**
          * If the payload is of interest to any of our ICNs, then let's decide the
          * destination proxy and program the appropriate paths.
+         * Only the cheap classification runs on the packet dispatcher thread,
+         * HTTP SYNs are handed off to the packet pipeline.
          */
         public void process(PacketContext context) {
 
@@ -844,81 +982,70 @@ true, cacheMac,
             }
 
 
-            // Only continue processing if HTTP traffic is received
-            InboundPacket pkt = context.inPacket();
-            Ethernet ethPkt = pkt.parsed();
-            IpAddress inAddr = null, dstAddr = null;
-            MacAddress inl2Addr = null, dstl2Addr = null;
-            if (!(ethPkt.getEtherType() == Ethernet.TYPE_IPV4) && !(ethPkt.getEtherType() == Ethernet.TYPE_IPV6)) {
-                log.trace("Packet is not IPv4 neither v6, ignoring");
+            // Only continue processing if HTTP traffic is received. The
+            // classification works on the raw frame, objects are only built
+            // for IPv4 HTTP SYNs.
+            // TODO: Missing IPv6
+            ByteBuffer frame = context.inPacket().unparsed();
+            int l3 = IcnPacketClassifier.classifyHttpSyn(frame, UtilIcn.HTTP_PORT);
+            if (l3 == IcnPacketClassifier.NOT_INTERESTING) {
                 return;
             }
-            IPv4 ipv4Pkt = null;
-            TCP tcpPkt = null;
-            if (ethPkt.getEtherType() == Ethernet.TYPE_IPV4) {
-                ipv4Pkt = (IPv4) ethPkt.getPayload();
-                inAddr = IpAddress.valueOf(ipv4Pkt.getSourceAddress());
-                dstAddr = IpAddress.valueOf(ipv4Pkt.getDestinationAddress());
-                dstl2Addr = ethPkt.getDestinationMAC();
-                inl2Addr = ethPkt.getSourceMAC();
-                if (ipv4Pkt.getProtocol() != IPv4.PROTOCOL_TCP) {
-                    log.trace("IPv4 Packet is not TCP, ignoring");
-                    return;
-                }
-                tcpPkt = (TCP) ipv4Pkt.getPayload();
-                if ( tcpPkt.getDestinationPort() != UtilIcn.HTTP_PORT) {
-                    log.trace("IPv4 Packet is not HTTP, ignoring");
-                    return;
-                }
-            }
-            if (ethPkt.getEtherType() == Ethernet.TYPE_IPV6) {
-                //TODO: Missing IPv6
+
+            // Nothing to do if we don't have any ICN or proxy
+            if (icns.isEmpty() || proxies.isEmpty()) {
+                log.error("Ignoring flow: No available ICNs and/or proxies");
                 return;
             }
 
-            if((tcpPkt.getFlags() & 0x2) == 0x0) {
-                log.debug("[{}] Packet is not TCP SYN: {}", context.inPacket().receivedFrom(), ethPkt);
-                return;
+            int flowHash = IcnPacketPipeline.flowHash(
+                    IcnPacketClassifier.sourceIp(frame, l3), IcnPacketClassifier.destinationIp(frame, l3),
+                    IPv4.PROTOCOL_TCP,
+                    IcnPacketClassifier.sourcePort(frame, l3), IcnPacketClassifier.destinationPort(frame, l3));
+            // unparsed() hands out the buffer shared with the other packet
+            // processors, the worker gets its own position and limit.
+            ByteBuffer own = frame.duplicate();
+            Runnable task = () -> processSyn(context, own, l3);
+            IcnPacketPipeline pipeline = packetPipeline;
+            boolean queued = pipeline.submit(flowHash, task);
+            // Replaced by a new configuration while submitting, hand the task over
+            while (!queued && pipeline.isShutdown() && pipeline != packetPipeline) {
+                pipeline = packetPipeline;
+                queued = pipeline.submit(flowHash, task);
+            }
+            if (!queued) {
+                log.debug("Packet pipeline full, dropping SYN from {}", context.inPacket().receivedFrom());
             }
+        }
 
-            log.debug("ICN Process PACKET_IN from switch {}", context.inPacket().receivedFrom().toString());
-            log.debug("{}", ethPkt);
+        /**
+         * Select the proxy for a client HTTP SYN, program the paths and send
+         * the packet towards the proxy. Runs in a packet pipeline worker.
+         * @param frame Raw frame of the SYN.
+         * @param l3 Offset of the IPv4 header in the frame.
+         */
+        private void processSyn(PacketContext context, ByteBuffer frame, int l3) {
+            log.debug("ICN Process PACKET_IN from switch {}", context.inPacket().receivedFrom());
             DeviceId indeviceId = context.inPacket().receivedFrom().deviceId();
             PortNumber inport = context.inPacket().receivedFrom().port();
+            int srcIp = IcnPacketClassifier.sourceIp(frame, l3);
+            int dstIp = IcnPacketClassifier.destinationIp(frame, l3);
 
             DeviceId outdeviceId = null;
             PortNumber outport = null;
             IpAddress outaddress = null;
             MacAddress outl2address = null;
 
-
-            if (ethPkt == null) {
-                return;
-            }
-
-            HostId srcId = HostId.hostId(ethPkt.getSourceMAC());
-            HostId dstId = HostId.hostId(ethPkt.getDestinationMAC());
-
             // Check that src is a registered client
-            IcnFlow flow = new IcnFlow();
-            flow.setSmac(ethPkt.getSourceMAC().toString());
-            flow.setDmac(ethPkt.getDestinationMAC().toString());
             // TODO: Check if this restriction should be used
-             if (findProxy(flow.getSmac()) != null || findCache(flow.getDmac()) != null) {
-                log.info("Ignoring device {}: Not a client", flow.getSmac());
-                log.debug("ETH: {} IP: {} TCP: {}",ethPkt, ipv4Pkt, tcpPkt);
-                return;
-            }
-
-            // Nothing to do if we don't have any ICN or proxy
-            if (icns.isEmpty() || proxies.isEmpty()) {
-                log.error("Ignoring flow: No available ICNs and/or proxies");
+            long srcMac = IcnPacketClassifier.sourceMac(frame);
+            if (findProxy(srcMac) != null || findCache(IcnPacketClassifier.destinationMac(frame)) != null) {
+                log.info("Ignoring device {}: Not a client", MacAddress.valueOf(srcMac));
                 return;
             }
 
             // Program path between client and closest proxy for HTTP traffic
-            Proxy proxy = (Proxy) findClosestMiddlebox(proxies.values(),
-                    indeviceId, inport);
+            Proxy proxy = proxyRanking.closest(indeviceId);
             if (proxy == null) {
                 log.error("Could not program path to proxy: No proxy available");
                 return;
@@ -954,45 +1081,44 @@ true, cacheMac,
             ConnectPoint sourceConnectPoint = new ConnectPoint(indeviceId, inport);
             ConnectPoint destinationConnectPoint = new ConnectPoint(outdeviceId, outport);
             log.debug("Packet Processor creating paths");
+            long service = serviceId.getAndIncrement();
+            IcnFlowBatch batch = new IcnFlowBatch(appId, INTENT_PRIORITY_HIGH);
             // Create path from host to proxy
             // Create return intent
-            boolean fromproxy = createPath("pprocess" + serviceId, PROXYPATH_FLOW_TIMEOUT, appId, pathService, flowObjectiveService,
-                    outaddress.getIp4Address().toInt(), ipv4Pkt.getSourceAddress(),
+            boolean fromproxy = createPath(batch, "pprocess" + service, PROXYPATH_FLOW_TIMEOUT, pathService,
+                    outaddress.getIp4Address().toInt(), srcIp,
                     true, proxy.getPort(),false, (short) 0,
-                    ethPkt, ipv4Pkt, tcpPkt,
-                    destinationConnectPoint, sourceConnectPoint, true,
-                    dstAddr, false, dstl2Addr, true, TpPort.tpPort(UtilIcn.HTTP_PORT),
+                        destinationConnectPoint, sourceConnectPoint, true,
+                    IpAddress.valueOf(dstIp), false, null, true, TpPort.tpPort(UtilIcn.HTTP_PORT),
                     false, null, false, null, false, null);
             log.info("Path created fromproxy {}", fromproxy);
-            boolean toproxy = createPath("pprocess" + serviceId, PROXYPATH_FLOW_TIMEOUT, appId, pathService, flowObjectiveService,
-                    ipv4Pkt.getSourceAddress(), ipv4Pkt.getDestinationAddress(),
+            boolean toproxy = createPath(batch, "pprocess" + service, PROXYPATH_FLOW_TIMEOUT, pathService,
+                    srcIp, dstIp,
                     false, (short)0,true, UtilIcn.HTTP_PORT,
-                    ethPkt, ipv4Pkt, tcpPkt,
-                    sourceConnectPoint, destinationConnectPoint, false,
+                        sourceConnectPoint, destinationConnectPoint, false,
                     null, false, null, false, null,
                     true, outaddress, true, outl2address, true, TpPort.tpPort(proxy.getPort()));
             log.info("Path created toproxy {}", toproxy);
-            serviceId++;
             // Take care of actual package
             TrafficTreatment treatment = DefaultTrafficTreatment.builder()
                     .setOutput(outport)
                     .build();
 
-            Ethernet inethpkt = (Ethernet) context.inPacket().parsed().clone();
-            inethpkt.setDestinationMACAddress(outl2address);
-            IPv4 newpayload = (IPv4) inethpkt.getPayload().clone();
-            newpayload.setDestinationAddress(outaddress.getIp4Address().toInt());
-            ((IPv4)inethpkt.getPayload()).setDestinationAddress(outaddress.getIp4Address().toInt());
-            ((IPv4)inethpkt.getPayload()).resetChecksum();
-            ((TCP)(((IPv4)inethpkt.getPayload())).getPayload()).resetChecksum();
-            log.debug("packet: {}", inethpkt);
-
+            byte[] outframe = IcnPacketClassifier.rewriteDestination(frame, l3,
+                    outl2address.toLong(), outaddress.getIp4Address().toInt());
             OutboundPacket packet = new DefaultOutboundPacket(
                     outdeviceId,
                     treatment,
-                    ByteBuffer.wrap(inethpkt.serialize()));
-            packetService.emit(packet);
-            log.info("sending packet: {}", packet);
+                    ByteBuffer.wrap(outframe));
+            // Release the packet only once the switches can handle the rest of the flow
+            submitFlows(batch).thenAccept(installed -> {
+                if (installed) {
+                    packetService.emit(packet);
+                    log.info("sending packet: {}", packet);
+                } else {
+                    log.warn("Dropping packet, flows to proxy {} not installed", proxy.getName());
+                }
+            });
         }
     }
 
@@ -1004,401 +1130,38 @@ true, cacheMac,
             if (flowRuleEvent.type().equals(FlowRuleEvent.Type.RULE_REMOVED) &&
                     flowRule.appId() == appId.id()) {
                 // One of our rules has been removed
-                InternalIcnFlow icnFlow = new InternalIcnFlow(flowRule.selector(), flowRule.treatment());
-                log.debug("Expiring flow: {}", icnFlow);
-                flowExpired(flowRule.deviceId(), icnFlow);
+                log.debug("Expiring flow: {} {}", flowRule.deviceId(), flowRule.selector());
+                flowExpired(flowRule.deviceId(), flowRule.selector());
             }
         }
     }
-    
-    class PathIndex {
-        DeviceId node;
-        ApplicationId appId;
-        int matchIpsrc;
-        int matchIpDst;
-        boolean matchPortSrc;
-        int srcport;
-        boolean matchPortDst;
-        int dstport;
-        Ethernet ethIn;
-        IPv4 ipIn;
-        TCP tcpIn;
-        ConnectPoint source;
-        ConnectPoint destination;
-        boolean rewriteSourceIP;
-        IpAddress rwsourceAddr;
-        boolean rewriteSourceMAC;
-        MacAddress rwsourcel2Addr;
-        boolean rewriteSourcePort;
-        TpPort rwsourceport;
-        boolean rewriteDestinationIP;
-        IpAddress rwdestinationAddr;
-        boolean rewriteDestinationMAC;
-        MacAddress rwdestinationl2Addr;
-        boolean rewriteDestinationPort;
-        TpPort rwdestport;
-        String service;
-
-        public PathIndex(String service, DeviceId node, ApplicationId appId, int matchIpsrc, int matchIpDst, boolean matchPortSrc, int srcport, boolean matchPortDst, int dstport, Ethernet ethIn, IPv4 ipIn, TCP tcpIn, ConnectPoint source, ConnectPoint destination, boolean rewriteSourceIP, IpAddress rwsourceAddr, boolean rewriteSourceMAC, MacAddress rwsourcel2Addr, boolean rewriteSourcePort, TpPort rwsourceport, boolean rewriteDestinationIP, IpAddress rwdestinationAddr, boolean rewriteDestinationMAC, MacAddress rwdestinationl2Addr, boolean rewriteDestinationPort, TpPort rwdestport) {
-            this.node = node;
-            this.service = service;
-            this.appId = appId;
-            this.matchIpsrc = matchIpsrc;
-            this.matchIpDst = matchIpDst;
-            this.matchPortSrc = matchPortSrc;
-            this.srcport = srcport;
-            this.matchPortDst = matchPortDst;
-            this.dstport = dstport;
-            this.ethIn = ethIn;
-            this.ipIn = ipIn;
-            this.tcpIn = tcpIn;
-            this.source = source;
-            this.destination = destination;
-            this.rewriteSourceIP = rewriteSourceIP;
-            this.rwsourceAddr = rwsourceAddr;
-            this.rewriteSourceMAC = rewriteSourceMAC;
-            this.rwsourcel2Addr = rwsourcel2Addr;
-            this.rewriteSourcePort = rewriteSourcePort;
-            this.rwsourceport = rwsourceport;
-            this.rewriteDestinationIP = rewriteDestinationIP;
-            this.rwdestinationAddr = rwdestinationAddr;
-            this.rewriteDestinationMAC = rewriteDestinationMAC;
-            this.rwdestinationl2Addr = rwdestinationl2Addr;
-            this.rewriteDestinationPort = rewriteDestinationPort;
-            this.rwdestport = rwdestport;
-        }
 
-        public DeviceId getNode() {
-            return node;
-        }
-
-        public void setNode(DeviceId node) {
-            this.node = node;
-        }
-
-        public ApplicationId getAppId() {
-            return appId;
-        }
-
-        public void setAppId(ApplicationId appId) {
-            this.appId = appId;
-        }
-
-        public int getMatchIpsrc() {
-            return matchIpsrc;
-        }
-
-        public void setMatchIpsrc(int matchIpsrc) {
-            this.matchIpsrc = matchIpsrc;
-        }
-
-        public int getMatchIpDst() {
-            return matchIpDst;
-        }
-
-        public void setMatchIpDst(int matchIpDst) {
-            this.matchIpDst = matchIpDst;
-        }
-
-        public boolean isMatchPortSrc() {
-            return matchPortSrc;
-        }
-
-        public void setMatchPortSrc(boolean matchPortSrc) {
-            this.matchPortSrc = matchPortSrc;
-        }
-
-        public int getSrcport() {
-            return srcport;
-        }
-
-        public void setSrcport(int srcport) {
-            this.srcport = srcport;
-        }
-
-        public boolean isMatchPortDst() {
-            return matchPortDst;
-        }
-
-        public void setMatchPortDst(boolean matchPortDst) {
-            this.matchPortDst = matchPortDst;
-        }
-
-        public int getDstport() {
-            return dstport;
-        }
-
-        public void setDstport(int dstport) {
-            this.dstport = dstport;
-        }
-
-        public Ethernet getEthIn() {
-            return ethIn;
-        }
-
-        public void setEthIn(Ethernet ethIn) {
-            this.ethIn = ethIn;
-        }
-
-        public IPv4 getIpIn() {
-            return ipIn;
-        }
-
-        public void setIpIn(IPv4 ipIn) {
-            this.ipIn = ipIn;
-        }
-
-        public TCP getTcpIn() {
-            return tcpIn;
-        }
-
-        public void setTcpIn(TCP tcpIn) {
-            this.tcpIn = tcpIn;
-        }
-
-        public ConnectPoint getSource() {
-            return source;
-        }
-
-        public void setSource(ConnectPoint source) {
-            this.source = source;
-        }
-
-        public ConnectPoint getDestination() {
-            return destination;
-        }
-
-        public void setDestination(ConnectPoint destination) {
-            this.destination = destination;
-        }
-
-        public boolean isRewriteSourceIP() {
-            return rewriteSourceIP;
-        }
-
-        public void setRewriteSourceIP(boolean rewriteSourceIP) {
-            this.rewriteSourceIP = rewriteSourceIP;
-        }
-
-        public IpAddress getRwsourceAddr() {
-            return rwsourceAddr;
-        }
-
-        public void setRwsourceAddr(IpAddress rwsourceAddr) {
-            this.rwsourceAddr = rwsourceAddr;
-        }
-
-        public boolean isRewriteSourceMAC() {
-            return rewriteSourceMAC;
-        }
-
-        public void setRewriteSourceMAC(boolean rewriteSourceMAC) {
-            this.rewriteSourceMAC = rewriteSourceMAC;
-        }
-
-        public MacAddress getRwsourcel2Addr() {
-            return rwsourcel2Addr;
-        }
-
-        public void setRwsourcel2Addr(MacAddress rwsourcel2Addr) {
-            this.rwsourcel2Addr = rwsourcel2Addr;
-        }
-
-        public boolean isRewriteSourcePort() {
-            return rewriteSourcePort;
-        }
-
-        public void setRewriteSourcePort(boolean rewriteSourcePort) {
-            this.rewriteSourcePort = rewriteSourcePort;
-        }
-
-        public TpPort getRwsourceport() {
-            return rwsourceport;
-        }
-
-        public void setRwsourceport(TpPort rwsourceport) {
-            this.rwsourceport = rwsourceport;
-        }
-
-        public boolean isRewriteDestinationIP() {
-            return rewriteDestinationIP;
-        }
-
-        public void setRewriteDestinationIP(boolean rewriteDestinationIP) {
-            this.rewriteDestinationIP = rewriteDestinationIP;
-        }
-
-        public IpAddress getRwdestinationAddr() {
-            return rwdestinationAddr;
-        }
-
-        public void setRwdestinationAddr(IpAddress rwdestinationAddr) {
-            this.rwdestinationAddr = rwdestinationAddr;
-        }
-
-        public boolean isRewriteDestinationMAC() {
-            return rewriteDestinationMAC;
-        }
-
-        public void setRewriteDestinationMAC(boolean rewriteDestinationMAC) {
-            this.rewriteDestinationMAC = rewriteDestinationMAC;
-        }
-
-        public MacAddress getRwdestinationl2Addr() {
-            return rwdestinationl2Addr;
-        }
-
-        public void setRwdestinationl2Addr(MacAddress rwdestinationl2Addr) {
-            this.rwdestinationl2Addr = rwdestinationl2Addr;
-        }
-
-        public boolean isRewriteDestinationPort() {
-            return rewriteDestinationPort;
-        }
-
-        public void setRewriteDestinationPort(boolean rewriteDestinationPort) {
-            this.rewriteDestinationPort = rewriteDestinationPort;
-        }
-
-        public TpPort getRwdestport() {
-            return rwdestport;
-        }
-
-        public void setRwdestport(TpPort rwdestport) {
-            this.rwdestport = rwdestport;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (!(o instanceof PathIndex)) return false;
-
-            PathIndex pathIndex = (PathIndex) o;
-
-            if (getMatchIpsrc() != pathIndex.getMatchIpsrc()) return false;
-            if (getMatchIpDst() != pathIndex.getMatchIpDst()) return false;
-            if (isMatchPortSrc() != pathIndex.isMatchPortSrc()) return false;
-            if (getSrcport() != pathIndex.getSrcport()) return false;
-            if (isMatchPortDst() != pathIndex.isMatchPortDst()) return false;
-            if (getDstport() != pathIndex.getDstport()) return false;
-            if (isRewriteSourceIP() != pathIndex.isRewriteSourceIP())
-                return false;
-            if (isRewriteSourceMAC() != pathIndex.isRewriteSourceMAC())
-                return false;
-            if (isRewriteSourcePort() != pathIndex.isRewriteSourcePort())
-                return false;
-            if (isRewriteDestinationIP() != pathIndex.isRewriteDestinationIP())
-                return false;
-            if (isRewriteDestinationMAC() != pathIndex.isRewriteDestinationMAC())
-                return false;
-            if (isRewriteDestinationPort() != pathIndex.isRewriteDestinationPort())
-                return false;
-            if (!getNode().equals(pathIndex.getNode())) return false;
-            if (!getAppId().equals(pathIndex.getAppId())) return false;
-            if (getEthIn() != null ? !getEthIn().equals(pathIndex.getEthIn()) : pathIndex.getEthIn() != null)
-                return false;
-            if (getIpIn() != null ? !getIpIn().equals(pathIndex.getIpIn()) : pathIndex.getIpIn() != null)
-                return false;
-            if (getTcpIn() != null ? !getTcpIn().equals(pathIndex.getTcpIn()) : pathIndex.getTcpIn() != null)
-                return false;
-            if (getSource() != null ? !getSource().equals(pathIndex.getSource()) : pathIndex.getSource() != null)
-                return false;
-            if (getDestination() != null ? !getDestination().equals(pathIndex.getDestination()) : pathIndex.getDestination() != null)
-                return false;
-            if (getRwsourceAddr() != null ? !getRwsourceAddr().equals(pathIndex.getRwsourceAddr()) : pathIndex.getRwsourceAddr() != null)
-                return false;
-            if (getRwsourcel2Addr() != null ? !getRwsourcel2Addr().equals(pathIndex.getRwsourcel2Addr()) : pathIndex.getRwsourcel2Addr() != null)
-                return false;
-            if (getRwsourceport() != null ? !getRwsourceport().equals(pathIndex.getRwsourceport()) : pathIndex.getRwsourceport() != null)
-                return false;
-            if (getRwdestinationAddr() != null ? !getRwdestinationAddr().equals(pathIndex.getRwdestinationAddr()) : pathIndex.getRwdestinationAddr() != null)
-                return false;
-            if (getRwdestinationl2Addr() != null ? !getRwdestinationl2Addr().equals(pathIndex.getRwdestinationl2Addr()) : pathIndex.getRwdestinationl2Addr() != null)
-                return false;
-            return getRwdestport() != null ? getRwdestport().equals(pathIndex.getRwdestport()) : pathIndex.getRwdestport() == null;
-        }
-
-        public String service() {
-            return service;
-        }
+    class InternalTopologyListener implements TopologyListener {
 
         @Override
-        public int hashCode() {
-            int result = getNode().hashCode();
-            result = 31 * result + getAppId().hashCode();
-            result = 31 * result + getMatchIpsrc();
-            result = 31 * result + getMatchIpDst();
-            result = 31 * result + (isMatchPortSrc() ? 1 : 0);
-            result = 31 * result + getSrcport();
-            result = 31 * result + (isMatchPortDst() ? 1 : 0);
-            result = 31 * result + getDstport();
-            result = 31 * result + (getEthIn() != null ? getEthIn().hashCode() : 0);
-            result = 31 * result + (getIpIn() != null ? getIpIn().hashCode() : 0);
-            result = 31 * result + (getTcpIn() != null ? getTcpIn().hashCode() : 0);
-            result = 31 * result + (getSource() != null ? getSource().hashCode() : 0);
-            result = 31 * result + (getDestination() != null ? getDestination().hashCode() : 0);
-            result = 31 * result + (isRewriteSourceIP() ? 1 : 0);
-            result = 31 * result + (getRwsourceAddr() != null ? getRwsourceAddr().hashCode() : 0);
-            result = 31 * result + (isRewriteSourceMAC() ? 1 : 0);
-            result = 31 * result + (getRwsourcel2Addr() != null ? getRwsourcel2Addr().hashCode() : 0);
-            result = 31 * result + (isRewriteSourcePort() ? 1 : 0);
-            result = 31 * result + (getRwsourceport() != null ? getRwsourceport().hashCode() : 0);
-            result = 31 * result + (isRewriteDestinationIP() ? 1 : 0);
-            result = 31 * result + (getRwdestinationAddr() != null ? getRwdestinationAddr().hashCode() : 0);
-            result = 31 * result + (isRewriteDestinationMAC() ? 1 : 0);
-            result = 31 * result + (getRwdestinationl2Addr() != null ? getRwdestinationl2Addr().hashCode() : 0);
-            result = 31 * result + (isRewriteDestinationPort() ? 1 : 0);
-            result = 31 * result + (getRwdestport() != null ? getRwdestport().hashCode() : 0);
-            return result;
+        public void event(TopologyEvent event) {
+            // TopologyEvent exposes the reasons as a raw List<Event>
+            @SuppressWarnings("unchecked")
+            List<? extends Event<?, ?>> reasons = (List<? extends Event<?, ?>>) (List<?>) event.reasons();
+            Set<DeviceId> affected = pathCache.topologyChanged(reasons);
+            if (affected == null || !affected.isEmpty())
+                middleboxDistancesChanged(affected);
         }
     }
 
-    class InternalIcnFlow {
-        TrafficSelector selector;
-        TrafficTreatment treatment;
-
-        public InternalIcnFlow(TrafficSelector selector, TrafficTreatment treatment) {
-            this.selector = selector;
-            this.treatment = treatment;
-        }
-
-        public TrafficSelector getSelector() {
-            return selector;
-        }
-
-        public TrafficTreatment getTreatment() {
-            return treatment;
-        }
+    class InternalHostListener implements HostListener {
 
         @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (!(o instanceof InternalIcnFlow)) return false;
-
-            InternalIcnFlow that = (InternalIcnFlow) o;
-
-            if (!that.getSelector().toString().equals(selector.toString()))
-                return false;
-            if (!that.getTreatment().toString().equals(treatment.toString()))
-                return false;
-            return true;
-
-        }
-
-        @Override
-        public int hashCode() {
-            int result = selector.hashCode();
-            result = 31 * result + treatment.hashCode();
-            return result;
-        }
-
-        @Override
-        public String toString() {
-            return "InternalIcnFlow{" +
-                    "selector=" + selector +
-                    ", treatment=" + treatment +
-                    '}';
+        public void event(HostEvent event) {
+            // Only middleboxes without a configured location are looked up as hosts
+            long mac = event.subject().mac().toLong();
+            IMiddlebox m = findProxy(mac);
+            if (m == null)
+                m = findCache(mac);
+            if (m != null && m.getLocation() == null) {
+                log.debug("Middlebox {} host changed: {}", m.getName(), event.type());
+                middleboxDistancesChanged(null);
+            }
         }
     }
-
 }
@@ -34,6 +34,7 @@ import javax.ws.rs.core.Response;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collection;
+import java.util.regex.PatternSyntaxException;
 
 @Path("icns")
 public class IcnServiceNorthbound extends AbstractWebResource {
@@ -79,6 +80,9 @@ public class IcnServiceNorthbound extends AbstractWebResource {
             e.printStackTrace();
             log.error("Unable to parse jsonized icn in param updatedicn when calling update method {}", e.toString());
             return Response.status(Response.Status.NOT_FOUND).entity("Unable to parse jsonized icn in param updatedicn when calling update method").build();
+        } catch (PatternSyntaxException e) {
+            log.error("Invalid pattern in a provider of jsonized icn {}", e.toString());
+            return Response.status(Response.Status.BAD_REQUEST).entity("Invalid pattern in a provider of jsonized icn: " + e.getDescription()).build();
         } catch (UnsupportedOperationException | ClassCastException | NullPointerException | IllegalArgumentException e)
         {
             e.printStackTrace();
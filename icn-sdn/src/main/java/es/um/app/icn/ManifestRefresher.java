@@ -0,0 +1,280 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.onlab.util.Tools.groupedThreads;
+
+/**
+ * Refreshes the manifests of live DASH resources (type="dynamic") every
+ * minimumUpdatePeriod. Manifests are fetched with conditional GETs, so an
+ * unchanged manifest costs a 304, and the representations of a changed one
+ * are merged into the resource: only the segments not known yet are added
+ * and handed to the listener, e.g. to prefetch them. Manifests whose
+ * segments follow the clock ($Number$ templates without SegmentTimeline)
+ * give new segments without changing, so they are always fetched whole.
+ * <p>
+ * Refreshes run in a small pool of their own, whose size limits how many
+ * manifests are fetched at the same time.
+ */
+public class ManifestRefresher {
+    private static final Logger log = LoggerFactory.getLogger(ManifestRefresher.class);
+
+    static final int MAX_CONCURRENT_REFRESHES = 4;
+    /** Manifests asking for shorter periods are not fetched more often */
+    static final long MIN_UPDATE_PERIOD_MS = 1000;
+    /** Consecutive failed refreshes before giving up on a manifest */
+    static final int MAX_FAILURES = 3;
+    static final int TIMEOUT_MS = 5000;
+
+    public interface Listener {
+        /**
+         * New segments of a representation announced by a refreshed manifest.
+         * @param urls Full URLs of the new segments, in order.
+         */
+        void segmentsAdded(ResourceHTTPDASH resource, RepresentationDASH representation, List<String> urls);
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final long minUpdatePeriod;
+    private final Listener listener;
+    private final ConcurrentHashMap<ResourceHTTPDASH, Refresh> refreshes = new ConcurrentHashMap<>();
+
+    public ManifestRefresher(Listener listener) {
+        this(MAX_CONCURRENT_REFRESHES, MIN_UPDATE_PERIOD_MS, listener);
+    }
+
+    ManifestRefresher(int maxConcurrent, long minUpdatePeriod, Listener listener) {
+        this.scheduler = Executors.newScheduledThreadPool(maxConcurrent,
+                groupedThreads("onos/icn", "mpd-refresh-%d", log));
+        this.minUpdatePeriod = minUpdatePeriod;
+        this.listener = listener;
+    }
+
+    /**
+     * Result of fetching a manifest.
+     */
+    public static final class Fetch {
+        /** false if the server answered 304 Not Modified */
+        public final boolean modified;
+        public final String etag;
+        public final String lastModified;
+        public final boolean dynamic;
+        /** minimumUpdatePeriod in milliseconds, -1 if none */
+        public final long updatePeriod;
+
+        Fetch(boolean modified, String etag, String lastModified, boolean dynamic, long updatePeriod) {
+            this.modified = modified;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.dynamic = dynamic;
+            this.updatePeriod = updatePeriod;
+        }
+    }
+
+    /**
+     * Fetch and parse a manifest, conditionally if validators of a previous
+     * version are given.
+     * @param etag ETag of the previous version or null.
+     * @param lastModified Last-Modified of the previous version or null.
+     * @param sink Receives every Representation of a modified manifest.
+     */
+    public static Fetch fetch(URL url, String etag, String lastModified, Consumer<RepresentationDASH> sink)
+            throws IOException, XMLStreamException {
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        if (etag != null)
+            connection.setRequestProperty("If-None-Match", etag);
+        if (lastModified != null)
+            connection.setRequestProperty("If-Modified-Since", lastModified);
+        HttpURLConnection http = connection instanceof HttpURLConnection ? (HttpURLConnection) connection : null;
+        int status = HttpURLConnection.HTTP_OK;
+        MpdStreamParser parser = new MpdStreamParser();
+        try {
+            connection.connect();
+            if (http != null)
+                status = http.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                // Read to the end so the connection is kept alive for the next refresh
+                discard(http.getInputStream());
+                return new Fetch(false, etag, lastModified, true, -1);
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                discard(http.getErrorStream());
+            } else {
+                try (InputStream in = new BufferedInputStream(connection.getInputStream())) {
+                    parser.parse(in, sink);
+                }
+            }
+        } catch (IOException | XMLStreamException | RuntimeException e) {
+            // The connection may be left in the middle of a response
+            if (http != null)
+                http.disconnect();
+            throw e;
+        }
+        if (status != HttpURLConnection.HTTP_OK)
+            throw new IOException("Unexpected status " + status + " for " + url);
+        if (parser.isClockDriven())
+            return new Fetch(true, null, null, parser.isDynamic(), parser.getMinimumUpdatePeriod());
+        return new Fetch(true, connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"),
+                parser.isDynamic(), parser.getMinimumUpdatePeriod());
+    }
+
+    private static void discard(InputStream in) throws IOException {
+        if (in == null)
+            return;
+        try (InputStream body = in) {
+            byte[] buffer = new byte[4096];
+            while (body.read(buffer) >= 0) {
+                // Nothing to keep
+            }
+        }
+    }
+
+    /**
+     * Keep refreshing the manifest of a resource while it is live.
+     * @param first Result of the fetch that filled the resource.
+     */
+    public void start(ResourceHTTPDASH resource, URL url, Fetch first) {
+        if (!first.dynamic || first.updatePeriod < 0)
+            return;
+        Refresh refresh = new Refresh(resource, url, first);
+        Refresh previous = refreshes.put(resource, refresh);
+        if (previous != null)
+            previous.cancel();
+        refresh.schedule(first.updatePeriod);
+        log.info("Refreshing live manifest {} every {} ms", url, Math.max(first.updatePeriod, minUpdatePeriod));
+    }
+
+    /**
+     * Stop refreshing the manifest of a resource, once it is no longer part
+     * of the ICN.
+     */
+    public void stop(ResourceHTTPDASH resource) {
+        Refresh refresh = refreshes.remove(resource);
+        if (refresh != null)
+            refresh.cancel();
+    }
+
+    /**
+     * @return Number of manifests being refreshed.
+     */
+    public int size() {
+        return refreshes.size();
+    }
+
+    /**
+     * Stop refreshing every manifest, once the ICN is removed.
+     */
+    public void shutdown() {
+        refreshes.values().forEach(Refresh::cancel);
+        refreshes.clear();
+        scheduler.shutdownNow();
+    }
+
+    private class Refresh implements Runnable {
+        private final ResourceHTTPDASH resource;
+        private final URL url;
+        private String etag;
+        private String lastModified;
+        private long updatePeriod;
+        private int failures;
+        private volatile boolean cancelled;
+        private ScheduledFuture<?> next;
+
+        Refresh(ResourceHTTPDASH resource, URL url, Fetch first) {
+            this.resource = resource;
+            this.url = url;
+            this.etag = first.etag;
+            this.lastModified = first.lastModified;
+            this.updatePeriod = first.updatePeriod;
+        }
+
+        synchronized void schedule(long delay) {
+            if (!cancelled && !scheduler.isShutdown())
+                next = scheduler.schedule(this, Math.max(delay, minUpdatePeriod), TimeUnit.MILLISECONDS);
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if (next != null)
+                next.cancel(false);
+        }
+
+        @Override
+        public void run() {
+            if (cancelled)
+                return;
+            Fetch fetch;
+            try {
+                fetch = fetch(url, etag, lastModified, parsed -> {
+                    List<String> added = resource.mergeRepresentation(parsed);
+                    if (!added.isEmpty()) {
+                        log.debug("Manifest {} announces {} new segments of representation {}",
+                                url, added.size(), parsed.getId());
+                        listener.segmentsAdded(resource, resource.getRepresentation(parsed.getId()), added);
+                    }
+                });
+            } catch (XMLStreamException | IOException | RuntimeException e) {
+                if (++failures >= MAX_FAILURES) {
+                    log.error("Giving up refreshing manifest {}: {}", url, e.toString());
+                    refreshes.remove(resource, this);
+                    return;
+                }
+                log.warn("Unable to refresh manifest {}: {}", url, e.toString());
+                schedule(updatePeriod);
+                return;
+            }
+            failures = 0;
+            if (!fetch.modified) {
+                schedule(updatePeriod);
+                return;
+            }
+            etag = fetch.etag;
+            lastModified = fetch.lastModified;
+            if (!fetch.dynamic || fetch.updatePeriod < 0) {
+                log.info("Manifest {} is no longer live", url);
+                refreshes.remove(resource, this);
+                return;
+            }
+            updatePeriod = fetch.updatePeriod;
+            schedule(updatePeriod);
+        }
+    }
+}
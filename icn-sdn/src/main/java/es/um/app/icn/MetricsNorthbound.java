@@ -0,0 +1,48 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.onosproject.rest.AbstractWebResource;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.Map;
+
+@Path("metrics")
+public class MetricsNorthbound extends AbstractWebResource {
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response retrieve() {
+        IIcnMetricsService metricsService = getService(IIcnMetricsService.class);
+        ObjectNode result = new ObjectMapper().createObjectNode();
+        ObjectNode metrics = result.putObject("metrics");
+        for (Map.Entry<String, Long> metric : metricsService.retrieveMetrics().entrySet()) {
+            metrics.put(metric.getKey(), metric.getValue());
+        }
+        return ok(result.toString()).build(); // 200 OK otherwise
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import org.onlab.packet.Ip4Address;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lookup of middleboxes by MAC (as long) and IPv4 address (as int).
+ * Both tables are open addressing maps with primitive keys. They are
+ * rebuilt on every middlebox change and published atomically, so lookups
+ * from the packet workers neither lock nor allocate.
+ * @param <T> Type of middlebox.
+ */
+public class MiddleboxIndex<T extends IMiddlebox> {
+    private static final Logger log = LoggerFactory.getLogger(MiddleboxIndex.class);
+
+    private volatile LongTable<T> byMac = new LongTable<>(0);
+    private volatile LongTable<T> byIp = new LongTable<>(0);
+
+    /**
+     * Replace the contents of the index. If several middleboxes share an
+     * address, the first one wins.
+     */
+    public synchronized void rebuild(Iterable<? extends T> middleboxes) {
+        int count = 0;
+        for (T m : middleboxes)
+            count++;
+        LongTable<T> macs = new LongTable<>(count);
+        LongTable<T> ips = new LongTable<>(count);
+        for (T m : middleboxes) {
+            long mac = UtilIcn.macToLong(m.getMacaddr());
+            if (mac >= 0)
+                macs.putIfAbsent(mac, m);
+            else
+                log.warn("Middlebox {} has a malformed MAC {}", m.getName(), m.getMacaddr());
+            if (m.getIpaddr() != null) {
+                try {
+                    ips.putIfAbsent(Ip4Address.valueOf(m.getIpaddr()).toInt() & 0xFFFFFFFFL, m);
+                } catch (IllegalArgumentException e) {
+                    log.warn("Middlebox {} has a malformed IP {}", m.getName(), m.getIpaddr());
+                }
+            }
+        }
+        byMac = macs;
+        byIp = ips;
+    }
+
+    public T findByMac(long mac) {
+        return byMac.get(mac);
+    }
+
+    public T findByIp(int ip) {
+        return byIp.get(ip & 0xFFFFFFFFL);
+    }
+
+    public int size() {
+        return byMac.size;
+    }
+
+    /**
+     * Open addressing (linear probing) map from long to object. Instances
+     * are filled once and never modified after being published.
+     */
+    static final class LongTable<V> {
+        private final long[] keys;
+        private final Object[] values;
+        private final int mask;
+        private int size;
+
+        LongTable(int expected) {
+            int capacity = 2;
+            while (capacity < expected * 2)
+                capacity <<= 1;
+            keys = new long[capacity];
+            values = new Object[capacity];
+            mask = capacity - 1;
+        }
+
+        private int slot(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        void putIfAbsent(long key, V value) {
+            int i = slot(key);
+            while (values[i] != null) {
+                if (keys[i] == key)
+                    return;
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            size++;
+        }
+
+        @SuppressWarnings("unchecked")
+        V get(long key) {
+            int i = slot(key);
+            Object v;
+            while ((v = values[i]) != null) {
+                if (keys[i] == key)
+                    return (V) v;
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import org.onosproject.net.DeviceId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * Middleboxes ranked by distance from every edge switch. The ranking of a
+ * switch is computed the first time it is needed and then kept, so finding
+ * the closest middlebox is a map get plus an array access. Middleboxes
+ * being added or removed are merged into the existing rankings, while
+ * topology changes drop the rankings of the affected switches.
+ * @param <T> Type of middlebox.
+ */
+public class MiddleboxRanking<T extends IMiddlebox> {
+
+    private final ToIntBiFunction<DeviceId, ? super T> distance;
+    private final ConcurrentHashMap<DeviceId, Ranking> table = new ConcurrentHashMap<>();
+    /** Copy on write list of ranked middleboxes, in insertion order */
+    private volatile List<T> middleboxes = Collections.emptyList();
+    /** Bumped on every change so rankings computed meanwhile are not kept */
+    private final AtomicLong epoch = new AtomicLong();
+
+    /**
+     * @param distance Hops from a switch to a middlebox or
+     *                 IcnPathCache.UNREACHABLE.
+     */
+    public MiddleboxRanking(ToIntBiFunction<DeviceId, ? super T> distance) {
+        this.distance = distance;
+    }
+
+    /**
+     * @return The reachable middlebox closest to the switch or null.
+     */
+    public T closest(DeviceId sw) {
+        return ranking(sw).first(null);
+    }
+
+    /**
+     * @return The closest reachable middlebox accepted by the filter or null.
+     */
+    public T closest(DeviceId sw, Predicate<? super T> accept) {
+        return ranking(sw).first(accept);
+    }
+
+    /**
+     * @return Every middlebox sorted by distance from the switch, the
+     * unreachable ones last.
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> ranked(DeviceId sw) {
+        return (List<T>) Collections.unmodifiableList(Arrays.asList(ranking(sw).boxes));
+    }
+
+    /**
+     * Replace every middlebox.
+     */
+    public synchronized void reset(Collection<? extends T> boxes) {
+        middleboxes = new ArrayList<>(boxes);
+        epoch.incrementAndGet();
+        table.clear();
+    }
+
+    /**
+     * Add a middlebox, replacing the one with the same name if any.
+     */
+    public synchronized void put(T box) {
+        List<T> boxes = new ArrayList<>(middleboxes);
+        boxes.removeIf(m -> m.getName().equals(box.getName()));
+        boxes.add(box);
+        middleboxes = boxes;
+        epoch.incrementAndGet();
+        table.replaceAll((sw, r) -> r.without(box.getName()).with(box, distance.applyAsInt(sw, box)));
+    }
+
+    public synchronized void remove(String name) {
+        List<T> boxes = new ArrayList<>(middleboxes);
+        if (!boxes.removeIf(m -> m.getName().equals(name)))
+            return;
+        middleboxes = boxes;
+        epoch.incrementAndGet();
+        table.replaceAll((sw, r) -> r.without(name));
+    }
+
+    /**
+     * Forget the rankings of some switches after a topology change.
+     * @param switches Affected switches, null if all of them.
+     */
+    public void invalidate(Set<DeviceId> switches) {
+        epoch.incrementAndGet();
+        if (switches == null)
+            table.clear();
+        else
+            switches.forEach(table::remove);
+    }
+
+    public int size() {
+        return table.size();
+    }
+
+    private Ranking ranking(DeviceId sw) {
+        Ranking ranking = table.get(sw);
+        if (ranking != null)
+            return ranking;
+        long rankingEpoch = epoch.get();
+        ranking = compute(sw, middleboxes);
+        if (epoch.get() == rankingEpoch) {
+            table.putIfAbsent(sw, ranking);
+            if (epoch.get() != rankingEpoch)
+                table.remove(sw, ranking);
+        }
+        return ranking;
+    }
+
+    private Ranking compute(DeviceId sw, List<T> boxes) {
+        int n = boxes.size();
+        long[] order = new long[n];
+        for (int i = 0; i < n; i++) {
+            // Distance in the high half, sorting by it keeps ties in insertion order
+            order[i] = ((long) distance.applyAsInt(sw, boxes.get(i)) << 32) | i;
+        }
+        Arrays.sort(order);
+        IMiddlebox[] b = new IMiddlebox[n];
+        int[] ds = new int[n];
+        for (int i = 0; i < n; i++) {
+            b[i] = boxes.get((int) order[i]);
+            ds[i] = (int) (order[i] >>> 32);
+        }
+        return new Ranking(b, ds);
+    }
+
+    /**
+     * Immutable list of middleboxes sorted by distance. Ties keep the
+     * insertion order.
+     */
+    private final class Ranking {
+        private final IMiddlebox[] boxes;
+        private final int[] distances;
+
+        Ranking(IMiddlebox[] boxes, int[] distances) {
+            this.boxes = boxes;
+            this.distances = distances;
+        }
+
+        @SuppressWarnings("unchecked")
+        T first(Predicate<? super T> accept) {
+            for (int i = 0; i < boxes.length && distances[i] != IcnPathCache.UNREACHABLE; i++) {
+                if (accept == null || accept.test((T) boxes[i]))
+                    return (T) boxes[i];
+            }
+            return null;
+        }
+
+        Ranking with(IMiddlebox box, int d) {
+            int pos = boxes.length;
+            while (pos > 0 && distances[pos - 1] > d)
+                pos--;
+            IMiddlebox[] b = new IMiddlebox[boxes.length + 1];
+            int[] ds = new int[boxes.length + 1];
+            System.arraycopy(boxes, 0, b, 0, pos);
+            System.arraycopy(distances, 0, ds, 0, pos);
+            b[pos] = box;
+            ds[pos] = d;
+            System.arraycopy(boxes, pos, b, pos + 1, boxes.length - pos);
+            System.arraycopy(distances, pos, ds, pos + 1, boxes.length - pos);
+            return new Ranking(b, ds);
+        }
+
+        Ranking without(String name) {
+            int pos = -1;
+            for (int i = 0; i < boxes.length && pos < 0; i++) {
+                if (boxes[i].getName().equals(name))
+                    pos = i;
+            }
+            if (pos < 0)
+                return this;
+            IMiddlebox[] b = new IMiddlebox[boxes.length - 1];
+            int[] ds = new int[boxes.length - 1];
+            System.arraycopy(boxes, 0, b, 0, pos);
+            System.arraycopy(distances, 0, ds, 0, pos);
+            System.arraycopy(boxes, pos + 1, b, pos, boxes.length - pos - 1);
+            System.arraycopy(distances, pos + 1, ds, pos, boxes.length - pos - 1);
+            return new Ranking(b, ds);
+        }
+    }
+}
@@ -0,0 +1,509 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Streaming MPD parser. The manifest is read once with StAX straight from
+ * the byte stream, which is decoded with the encoding declared in the XML
+ * prolog (UTF-8 by default), and every Representation is handed out as
+ * soon as its end tag is read. Only the current Representation is kept in
+ * memory.
+ * <p>
+ * As the DOM parser it replaces, the first BaseURL of the document applies
+ * to every Representation, and the segments are the media attribute of the
+ * SegmentURL elements of the SegmentList of each Representation.
+ * Representations read before the first BaseURL are held until it appears.
+ * <p>
+ * Representations without a SegmentList take their segments from the
+ * SegmentTemplate of the Representation, AdaptationSet or Period, with
+ * $Number$ or $Time$ media and optionally a SegmentTimeline. These are not
+ * expanded: the representation keeps the template. The $Number$ segments
+ * of a live manifest without SegmentTimeline are the ones published since
+ * its availabilityStartTime, so parsing it later gives more segments.
+ */
+public class MpdStreamParser {
+    private static final Logger log = LoggerFactory.getLogger(MpdStreamParser.class);
+
+    private static final XMLInputFactory FACTORY = newFactory();
+
+    private final LongSupplier clock;
+    /** Whether the last manifest parsed is live (type="dynamic") */
+    private boolean dynamic;
+    /** minimumUpdatePeriod of the last manifest parsed, -1 if none */
+    private long minimumUpdatePeriod = -1;
+    /** Whether the segments of the last manifest parsed depend on the time */
+    private boolean clockDriven;
+
+    public MpdStreamParser() {
+        this(System::currentTimeMillis);
+    }
+
+    MpdStreamParser(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    private static XMLInputFactory newFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        // Manifests come from the network: no DTDs nor external entities
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    /**
+     * Parse a manifest.
+     * @param in Raw bytes of the manifest, not closed.
+     * @param sink Receives every Representation, with its base URL set.
+     * @return Number of Representations emitted, 0 if there is no BaseURL.
+     * @throws XMLStreamException If the manifest is not well formed.
+     */
+    public int parse(InputStream in, Consumer<RepresentationDASH> sink) throws XMLStreamException {
+        dynamic = false;
+        minimumUpdatePeriod = -1;
+        clockDriven = false;
+        XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+        try {
+            return parse(reader, sink);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return Whether the last manifest parsed is live and may change.
+     */
+    public boolean isDynamic() {
+        return dynamic;
+    }
+
+    /**
+     * @return Milliseconds to wait before fetching the last manifest parsed
+     * again, -1 if it does not say.
+     */
+    public long getMinimumUpdatePeriod() {
+        return minimumUpdatePeriod;
+    }
+
+    /**
+     * @return Whether the segments of the last manifest parsed were derived
+     * from the current time, so the same manifest gives new segments later.
+     */
+    public boolean isClockDriven() {
+        return clockDriven;
+    }
+
+    private int parse(XMLStreamReader reader, Consumer<RepresentationDASH> sink) throws XMLStreamException {
+        String baseURL = null;
+        List<RepresentationDASH> pending = new ArrayList<>();
+        int emitted = 0;
+        Map<String, Integer> ids = new HashMap<>();
+
+        // Duration of the presentation and of the current Period, -1 if unknown
+        long presentationMillis = -1;
+        long periodMillis = -1;
+        // Time elapsed since the start of the current live Period, -1 if unknown
+        long availabilityStart = -1;
+        long liveMillis = -1;
+        // SegmentTemplates inherited by the Representations
+        SegmentTemplate periodTemplate = null;
+        SegmentTemplate adaptationTemplate = null;
+        boolean inAdaptationSet = false;
+
+        RepresentationDASH current = null;
+        String currentId = null;
+        SegmentTemplate currentTemplate = null;
+        List<String> segments = new ArrayList<>();
+        // Depth of the current element below the current Representation
+        int depth = 0;
+        boolean inSegmentList = false;
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if (name.equals("SegmentTemplate")) {
+                    // Read up to its end tag, so the depth does not change
+                    SegmentTemplate template = segmentTemplate(reader);
+                    if (current != null)
+                        currentTemplate = template;
+                    else if (inAdaptationSet)
+                        adaptationTemplate = template.inherit(periodTemplate);
+                    else
+                        periodTemplate = template;
+                    continue;
+                }
+                if (current != null) {
+                    depth++;
+                    if (depth == 1 && name.equals("SegmentList")) {
+                        inSegmentList = true;
+                    } else if (depth == 2 && inSegmentList && name.equalsIgnoreCase("SegmentURL")) {
+                        String media = reader.getAttributeValue(null, "media");
+                        if (media != null)
+                            segments.add(media);
+                    }
+                } else if (name.equals("Representation")) {
+                    currentId = attribute(reader, "id", "");
+                    current = representation(reader, ids);
+                    depth = 0;
+                } else if (name.equals("AdaptationSet")) {
+                    inAdaptationSet = true;
+                    adaptationTemplate = null;
+                } else if (name.equals("Period")) {
+                    periodTemplate = null;
+                    periodMillis = millis(reader.getAttributeValue(null, "duration"));
+                    long start = millis(reader.getAttributeValue(null, "start"));
+                    if (periodMillis < 0 && presentationMillis >= 0)
+                        periodMillis = presentationMillis - Math.max(start, 0);
+                    liveMillis = dynamic && availabilityStart >= 0 ?
+                            Math.max(clock.getAsLong() - availabilityStart - Math.max(start, 0), 0) : -1;
+                } else if (name.equals("MPD")) {
+                    presentationMillis = millis(reader.getAttributeValue(null, "mediaPresentationDuration"));
+                    dynamic = "dynamic".equals(reader.getAttributeValue(null, "type"));
+                    minimumUpdatePeriod = millis(reader.getAttributeValue(null, "minimumUpdatePeriod"));
+                    availabilityStart = epochMillis(reader.getAttributeValue(null, "availabilityStartTime"));
+                }
+                if (baseURL == null && name.equals("BaseURL")) {
+                    baseURL = reader.getElementText().trim();
+                    // getElementText leaves the reader on the end tag
+                    if (current != null)
+                        depth--;
+                    for (RepresentationDASH r : pending) {
+                        r.setBaseURL(baseURL);
+                        sink.accept(r);
+                        emitted++;
+                    }
+                    pending.clear();
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT && current != null) {
+                if (depth == 0) {
+                    if (!segments.isEmpty()) {
+                        current.putResources(segments);
+                        segments.clear();
+                    } else {
+                        SegmentTemplate template = currentTemplate != null ?
+                                currentTemplate.inherit(adaptationTemplate != null ? adaptationTemplate : periodTemplate) :
+                                adaptationTemplate != null ? adaptationTemplate : periodTemplate;
+                        if (template != null) {
+                            current.putSegments(template.segments(currentId, current.getBandwidth(),
+                                    periodMillis, liveMillis));
+                            clockDriven |= liveMillis >= 0 && template.timeline == null;
+                        }
+                    }
+                    currentTemplate = null;
+                    if (baseURL != null) {
+                        current.setBaseURL(baseURL);
+                        sink.accept(current);
+                        emitted++;
+                    } else {
+                        pending.add(current);
+                    }
+                    current = null;
+                } else {
+                    if (depth == 1)
+                        inSegmentList = false;
+                    depth--;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("AdaptationSet")) {
+                inAdaptationSet = false;
+                adaptationTemplate = null;
+            }
+        }
+        if (baseURL == null)
+            log.error("Unable to recover BaseURL from MPD");
+        return emitted;
+    }
+
+    /**
+     * Representation ids are integers in the manifests we generate, other
+     * ids are numbered in order of appearance.
+     */
+    private static int id(String value, Map<String, Integer> ids) {
+        String id = value.trim();
+        try {
+            return Integer.parseInt(id);
+        } catch (NumberFormatException e) {
+            return ids.computeIfAbsent(id, k -> ids.size());
+        }
+    }
+
+    /**
+     * @return Milliseconds of an xs:duration (e.g. PT1H2M3.5S), -1 if it is
+     * missing or uses years or months.
+     */
+    static long millis(String duration) {
+        if (duration == null)
+            return -1;
+        try {
+            return Duration.parse(duration.trim()).toMillis();
+        } catch (DateTimeParseException e) {
+            log.warn("Unsupported duration {}", duration);
+            return -1;
+        }
+    }
+
+    /**
+     * @return Milliseconds since the epoch of an xs:dateTime, UTC if it has
+     * no time zone, -1 if it is missing or wrong.
+     */
+    static long epochMillis(String dateTime) {
+        if (dateTime == null)
+            return -1;
+        String value = dateTime.trim();
+        try {
+            return OffsetDateTime.parse(value).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            try {
+                return LocalDateTime.parse(value).toInstant(ZoneOffset.UTC).toEpochMilli();
+            } catch (DateTimeParseException e2) {
+                log.warn("Unsupported date {}", dateTime);
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Read a SegmentTemplate and its SegmentTimeline, leaving the reader on
+     * its end tag.
+     */
+    private static SegmentTemplate segmentTemplate(XMLStreamReader reader) throws XMLStreamException {
+        SegmentTemplate t = new SegmentTemplate();
+        t.media = reader.getAttributeValue(null, "media");
+        t.startNumber = optionalLong(reader, "startNumber");
+        t.timescale = optionalLong(reader, "timescale");
+        t.duration = optionalLong(reader, "duration");
+        t.presentationTimeOffset = optionalLong(reader, "presentationTimeOffset");
+        int depth = 0;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+                String name = reader.getLocalName();
+                if (name.equals("SegmentTimeline")) {
+                    t.timeline = new ArrayList<>();
+                } else if (name.equals("S") && t.timeline != null) {
+                    Long time = optionalLong(reader, "t");
+                    Long d = optionalLong(reader, "d");
+                    Long r = optionalLong(reader, "r");
+                    if (d != null && d > 0)
+                        t.timeline.add(new long[]{time == null ? -1 : time, d, r == null ? 0 : r});
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (depth-- == 0)
+                    break;
+            }
+        }
+        return t;
+    }
+
+    private static Long optionalLong(XMLStreamReader reader, String name) {
+        String value = reader.getAttributeValue(null, name);
+        return value == null ? null : Long.valueOf(value.trim());
+    }
+
+    /**
+     * Attributes of a SegmentTemplate, null when not given so they can be
+     * inherited from the AdaptationSet or Period.
+     */
+    private static final class SegmentTemplate {
+        private String media;
+        private Long startNumber;
+        private Long timescale;
+        private Long duration;
+        private Long presentationTimeOffset;
+        /** t (-1 if missing), d and r of every S element */
+        private List<long[]> timeline;
+
+        SegmentTemplate inherit(SegmentTemplate parent) {
+            if (parent == null)
+                return this;
+            SegmentTemplate t = new SegmentTemplate();
+            t.media = media != null ? media : parent.media;
+            t.startNumber = startNumber != null ? startNumber : parent.startNumber;
+            t.timescale = timescale != null ? timescale : parent.timescale;
+            t.duration = duration != null ? duration : parent.duration;
+            t.presentationTimeOffset = presentationTimeOffset != null ? presentationTimeOffset : parent.presentationTimeOffset;
+            t.timeline = timeline != null ? timeline : parent.timeline;
+            return t;
+        }
+
+        /**
+         * Segments of a Representation, unexpanded.
+         * @param periodMillis Duration of the Period, -1 if unknown.
+         * @param liveMillis Time elapsed since the start of a live Period,
+         *                   -1 if the manifest is not live or does not say.
+         */
+        Segments segments(String id, long bandwidth, long periodMillis, long liveMillis) {
+            if (media == null)
+                return Segments.EMPTY;
+            String m = media.replace("$RepresentationID$", id)
+                    .replace("$Bandwidth$", Long.toString(bandwidth));
+            boolean time = false;
+            int start = m.indexOf("$Number");
+            if (start < 0) {
+                start = m.indexOf("$Time");
+                time = true;
+            }
+            if (start < 0)
+                return Segments.of(Collections.singletonList(m.replace("$$", "$")));
+            int end = m.indexOf('$', start + 1);
+            if (end < 0) {
+                log.warn("Wrong SegmentTemplate media {}", media);
+                return Segments.EMPTY;
+            }
+            String format = m.substring(start + (time ? "$Time" : "$Number").length(), end);
+            int width = format.matches("%0\\d+d") ? Integer.parseInt(format.substring(2, format.length() - 1)) : 0;
+            String prefix = m.substring(0, start).replace("$$", "$");
+            String suffix = m.substring(end + 1).replace("$$", "$");
+
+            long scale = timescale != null && timescale > 0 ? timescale : 1;
+            long first = startNumber != null ? startNumber : 1;
+            if (timeline == null) {
+                if (time || duration == null || duration <= 0 || (periodMillis < 0 && liveMillis < 0)) {
+                    if (!time && duration != null && duration > 0)
+                        log.info("No segments known for SegmentTemplate {}: no Period duration nor " +
+                                "availabilityStartTime", media);
+                    else
+                        log.debug("No segments known for SegmentTemplate {}", media);
+                    return Segments.EMPTY;
+                }
+                long per = duration * 1000;
+                long segments = Long.MAX_VALUE;
+                if (periodMillis >= 0) {
+                    // Segments needed to cover the Period
+                    long units = periodMillis * scale;
+                    segments = (units + per - 1) / per;
+                }
+                if (liveMillis >= 0) {
+                    // Live segments already complete, in timescale units
+                    long units = liveMillis / 1000 * scale + liveMillis % 1000 * scale / 1000;
+                    segments = Math.min(segments, units / duration);
+                }
+                return Segments.numbered(prefix, suffix, first, count(segments), width);
+            }
+
+            int runs = timeline.size();
+            long[] starts = new long[runs];
+            long[] durations = new long[runs];
+            int[] counts = new int[runs];
+            long periodEnd = periodMillis < 0 ? -1 :
+                    (presentationTimeOffset != null ? presentationTimeOffset : 0) + periodMillis * scale / 1000;
+            // A first S without t starts at 0, the offset only moves the end
+            long next = 0;
+            int n = 0;
+            for (int i = 0; i < runs; i++) {
+                long[] s = timeline.get(i);
+                long t = s[0] >= 0 ? s[0] : next;
+                long d = s[1];
+                long repeat = s[2];
+                if (repeat < 0) {
+                    // Repeated up to the next S or the end of the Period
+                    long until = i + 1 < runs && timeline.get(i + 1)[0] >= 0 ? timeline.get(i + 1)[0] : periodEnd;
+                    repeat = until > t ? (until - t + d - 1) / d - 1 : 0;
+                }
+                if (n > 0 && t < starts[n - 1] + durations[n - 1] * counts[n - 1]) {
+                    log.warn("Overlapping SegmentTimeline in {}", media);
+                    return Segments.EMPTY;
+                }
+                starts[n] = t;
+                durations[n] = d;
+                counts[n] = count(repeat + 1);
+                next = t + d * counts[n];
+                n++;
+            }
+            if (!time) {
+                int total = 0;
+                for (int i = 0; i < n; i++)
+                    total = count((long) total + counts[i]);
+                return Segments.numbered(prefix, suffix, first, total, width);
+            }
+            return Segments.timeline(prefix, suffix, width, starts, durations, counts);
+        }
+
+        private static int count(long count) {
+            return (int) Math.min(Math.max(count, 0), Integer.MAX_VALUE);
+        }
+    }
+
+    private static RepresentationDASH representation(XMLStreamReader reader, Map<String, Integer> ids) {
+        RepresentationDASH r = new RepresentationDASH(
+                id(attribute(reader, "id", "0"), ids),
+                intAttribute(reader, "width"),
+                intAttribute(reader, "height"),
+                frameRate(reader.getAttributeValue(null, "frameRate")),
+                longAttribute(reader, "bandwidth"),
+                attribute(reader, "codecs", ""),
+                attribute(reader, "mimeType", null));
+        String dependencyId = reader.getAttributeValue(null, "dependencyId");
+        if (dependencyId != null) {
+            for (String did : dependencyId.trim().split("\\s+"))
+                r.setDependency(id(did, ids));
+        }
+        return r;
+    }
+
+    private static String attribute(XMLStreamReader reader, String name, String def) {
+        String value = reader.getAttributeValue(null, name);
+        return value == null ? def : value;
+    }
+
+    private static int intAttribute(XMLStreamReader reader, String name) {
+        String value = reader.getAttributeValue(null, name);
+        return value == null ? 0 : Integer.parseInt(value.trim());
+    }
+
+    /** Frame rates may be fractions, e.g. 30000/1001 */
+    private static int frameRate(String value) {
+        if (value == null)
+            return 0;
+        int idx = value.indexOf('/');
+        if (idx < 0)
+            return Integer.parseInt(value.trim());
+        return Math.round(Float.parseFloat(value.substring(0, idx).trim()) /
+                Float.parseFloat(value.substring(idx + 1).trim()));
+    }
+
+    private static long longAttribute(XMLStreamReader reader, String name) {
+        String value = reader.getAttributeValue(null, name);
+        return value == null ? 0L : Long.parseLong(value.trim());
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import org.onosproject.net.DeviceId;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Placements of the representations of DASH assets over the caches, for
+ * the clients behind every edge switch. Kept in least recently used order
+ * and bounded by their estimated memory, so popular assets keep one
+ * placement per client population while the rest are computed again when
+ * needed.
+ * <p>
+ * Lookups and updates are O(1) under the table lock, which is only held
+ * to move an entry to the tail of the access order.
+ */
+public class PlacementTable {
+
+    /** Memory for every placement, enough for about 40000 of ten representations */
+    static final long DEFAULT_MAX_BYTES = 8L << 20;
+    /** Key, map entry, placement object and array headers */
+    static final int ENTRY_OVERHEAD = 128;
+
+    /**
+     * Caches of the representations of an asset for the clients behind an
+     * edge switch, by representation id.
+     */
+    public static final class Placement {
+        private final int[] representationIds;
+        private final Cache[] caches;
+        final long version;
+
+        /**
+         * @param representationIds Sorted ids.
+         * @param caches Cache of every representation.
+         * @param version Version of the caches and distances it was computed from.
+         */
+        public Placement(int[] representationIds, Cache[] caches, long version) {
+            this.representationIds = representationIds;
+            this.caches = caches;
+            this.version = version;
+        }
+
+        public Cache cache(int representationId) {
+            int i = Arrays.binarySearch(representationIds, representationId);
+            return i < 0 ? null : caches[i];
+        }
+
+        public int size() {
+            return representationIds.length;
+        }
+
+        /**
+         * @return Estimated memory of the placement in the table.
+         */
+        long bytes() {
+            // One int and one reference per representation
+            return ENTRY_OVERHEAD + 8L * representationIds.length;
+        }
+    }
+
+    private static final class Key {
+        private final String asset;
+        private final DeviceId sw;
+        private final int hash;
+
+        Key(String asset, DeviceId sw) {
+            this.asset = asset;
+            this.sw = sw;
+            this.hash = 31 * asset.hashCode() + sw.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return asset.equals(k.asset) && sw.equals(k.sw);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, Placement> placements = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public PlacementTable() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    public PlacementTable(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return The placement of the asset for the switch or null.
+     */
+    public synchronized Placement get(String asset, DeviceId sw) {
+        Placement placement = placements.get(new Key(asset, sw));
+        if (placement == null)
+            misses++;
+        else
+            hits++;
+        return placement;
+    }
+
+    /**
+     * Keep a placement, evicting the least recently used ones beyond the
+     * memory bound.
+     */
+    public synchronized void put(String asset, DeviceId sw, Placement placement) {
+        Placement previous = placements.put(new Key(asset, sw), placement);
+        if (previous != null)
+            bytes -= previous.bytes();
+        bytes += placement.bytes();
+        Iterator<Placement> eldest = placements.values().iterator();
+        // The newest placement is kept even if it does not fit alone
+        while (bytes > maxBytes && placements.size() > 1) {
+            bytes -= eldest.next().bytes();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Forget the placements of an asset for every switch.
+     */
+    public synchronized void remove(String asset) {
+        Iterator<Map.Entry<Key, Placement>> it = placements.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Placement> e = it.next();
+            if (e.getKey().asset.equals(asset)) {
+                bytes -= e.getValue().bytes();
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return placements.size();
+    }
+
+    /**
+     * @return Estimated memory of every placement.
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
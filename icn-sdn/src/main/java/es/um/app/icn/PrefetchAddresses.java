@@ -0,0 +1,160 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Synthetic addresses and ports of the prefetching tunnels. Every pair is
+ * a slot of a bitmap, 172.16.0.1 with ports 1025 to 31998 first, then the
+ * next address. Slots are taken with a compare and set of their word, and
+ * every thread searches from its own cursor so threads do not compete for
+ * the same words.
+ * <p>
+ * The search goes on from the last slot taken instead of the first free
+ * one, so a released pair is handed out again as late as possible, when
+ * any rule left behind by its previous tunnel has expired too.
+ */
+public class PrefetchAddresses {
+
+    static final int MIN_IP = 0xAC100001; //172.16.0.1
+    static final int MAX_IP = 0xAC1FFFFF; //172.31.255.255
+    static final int MIN_PORT = 1025;
+    static final int MAX_PORT = 31999;
+    static final int PORTS = MAX_PORT - MIN_PORT;
+    static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private final AtomicLongArray bits;
+    private final int capacity;
+    private final ThreadLocal<int[]> cursor;
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+
+    public PrefetchAddresses() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Pairs that can be in use at the same time, rounded
+     * up to a multiple of 64.
+     */
+    public PrefetchAddresses(int capacity) {
+        int words = (capacity + 63) >>> 6;
+        if (capacity <= 0 || (long) words * 64 > (long) (MAX_IP - MIN_IP) * PORTS)
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        this.bits = new AtomicLongArray(words);
+        this.capacity = words * 64;
+        // Threads start spread over the bitmap
+        this.cursor = ThreadLocal.withInitial(() ->
+                new int[] {(int) ((Thread.currentThread().getId() * 0x9E3779B9L) & 0x7FFFFFFF) % this.capacity});
+    }
+
+    /**
+     * @return The slot of a free pair or -1 if every pair is in use.
+     */
+    public int allocate() {
+        int[] next = cursor.get();
+        int words = bits.length();
+        int start = next[0] >>> 6;
+        // Bits of the first word before the cursor are left for the end
+        long skip = (1L << (next[0] & 63)) - 1;
+        for (int i = 0; i <= words; i++) {
+            int w = (start + i) % words;
+            long mask = i == 0 ? skip : i == words ? ~skip : 0;
+            long v = bits.get(w);
+            while ((v | mask) != -1L) {
+                int bit = Long.numberOfTrailingZeros(~(v | mask));
+                if (bits.compareAndSet(w, v, v | (1L << bit))) {
+                    int slot = (w << 6) | bit;
+                    next[0] = (slot + 1) % capacity;
+                    inUse.incrementAndGet();
+                    allocated.increment();
+                    return slot;
+                }
+                v = bits.get(w);
+            }
+        }
+        exhausted.increment();
+        return -1;
+    }
+
+    /**
+     * Give a pair back to the pool.
+     * @return false if it was not in use.
+     */
+    public boolean release(int slot) {
+        if (slot < 0 || slot >= capacity)
+            return false;
+        int w = slot >>> 6;
+        long bit = 1L << (slot & 63);
+        long v;
+        do {
+            v = bits.get(w);
+            if ((v & bit) == 0)
+                return false;
+        } while (!bits.compareAndSet(w, v, v & ~bit));
+        inUse.decrementAndGet();
+        released.increment();
+        return true;
+    }
+
+    /**
+     * @return The slot of a pair or -1 if it is not one of our pairs.
+     */
+    public int slot(int ip, int port) {
+        long offset = Integer.toUnsignedLong(ip) - Integer.toUnsignedLong(MIN_IP);
+        if (offset < 0 || port < MIN_PORT || port >= MAX_PORT)
+            return -1;
+        long index = offset * PORTS + (port - MIN_PORT);
+        return index < capacity ? (int) index : -1;
+    }
+
+    public static int ip(int slot) {
+        return MIN_IP + slot / PORTS;
+    }
+
+    public static short port(int slot) {
+        return (short) (MIN_PORT + slot % PORTS);
+    }
+
+    public int inUse() {
+        return inUse.get();
+    }
+
+    public long allocated() {
+        return allocated.sum();
+    }
+
+    public long released() {
+        return released.sum();
+    }
+
+    /**
+     * @return Allocations that failed as every pair was in use.
+     */
+    public long exhausted() {
+        return exhausted.sum();
+    }
+}
@@ -0,0 +1,261 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Sends prefetch requests to the prefetcher of every proxy, at the proxy
+ * address and prefetch port.
+ * <p>
+ * Requests for a proxy are queued and sent by at most CONNECTIONS senders,
+ * each reusing its keep-alive connection: responses are always read to the
+ * end so the JDK keeps the connection for the next POST. Requests queued
+ * while a POST is in flight go together in the next one, as a JSON array of
+ * up to MAX_BATCH requests. Prefetchers that do not accept arrays answer
+ * 4xx and then get one request per POST.
+ */
+public class PrefetchClient {
+    private static final Logger log = LoggerFactory.getLogger(PrefetchClient.class);
+
+    /** Concurrent POSTs, hence pooled connections, per proxy */
+    static final int CONNECTIONS = 2;
+    static final int MAX_BATCH = 64;
+    static final int CONNECT_TIMEOUT_MS = 2000;
+    static final int READ_TIMEOUT_MS = 5000;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Asks a prefetcher to retrieve a URL through a prefetching path.
+     */
+    public static final class Request {
+        public final String url;
+        /** Address and port the prefetching path was installed for */
+        public final String server;
+        public final short port;
+        public final short cachePort;
+
+        public Request(String url, String server, short port, short cachePort) {
+            this.url = url;
+            this.server = server;
+            this.port = port;
+            this.cachePort = cachePort;
+        }
+
+        ObjectNode toJson() {
+            ObjectNode node = MAPPER.createObjectNode();
+            node.put("url", url);
+            node.put("server", server);
+            node.put("port", port);
+            node.put("cacheport", cachePort);
+            return node;
+        }
+    }
+
+    private static final class Pending {
+        private final Request request;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        Pending(Request request) {
+            this.request = request;
+        }
+    }
+
+    /** Queue and connections of a prefetcher */
+    private final class Endpoint {
+        private final URL url;
+        private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+        private int senders;
+        private volatile boolean batches = true;
+
+        Endpoint(URL url) {
+            this.url = url;
+        }
+
+        void add(Pending p) {
+            boolean start;
+            synchronized (this) {
+                queue.add(p);
+                start = senders < CONNECTIONS;
+                if (start)
+                    senders++;
+            }
+            if (start) {
+                try {
+                    executor.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    synchronized (this) {
+                        senders--;
+                    }
+                    p.result.complete(false);
+                }
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                List<Pending> batch = new ArrayList<>();
+                synchronized (this) {
+                    int max = batches ? MAX_BATCH : 1;
+                    while (batch.size() < max && !queue.isEmpty())
+                        batch.add(queue.poll());
+                    if (batch.isEmpty()) {
+                        senders--;
+                        return;
+                    }
+                }
+                send(batch);
+            }
+        }
+
+        private void send(List<Pending> batch) {
+            int status = post(batch);
+            if (batch.size() > 1 && status >= 400 && status < 500) {
+                log.info("Prefetcher {} does not accept batches ({}), sending one request per POST", url, status);
+                batches = false;
+                for (Pending p : batch)
+                    send(Collections.singletonList(p));
+                return;
+            }
+            boolean ok = status >= 200 && status < 300;
+            if (!ok)
+                log.error("Prefetch request to {} failed with {} for {} urls", url, status, batch.size());
+            for (Pending p : batch)
+                p.result.complete(ok);
+        }
+
+        /**
+         * @return Response status, -1 if the prefetcher could not be reached.
+         */
+        private int post(List<Pending> batch) {
+            byte[] body;
+            if (batch.size() == 1) {
+                body = batch.get(0).request.toJson().toString().getBytes(StandardCharsets.UTF_8);
+            } else {
+                ArrayNode array = MAPPER.createArrayNode();
+                for (Pending p : batch)
+                    array.add(p.request.toJson());
+                body = array.toString().getBytes(StandardCharsets.UTF_8);
+            }
+            HttpURLConnection connection = null;
+            try {
+                connection = (HttpURLConnection) url.openConnection();
+                connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+                connection.setReadTimeout(READ_TIMEOUT_MS);
+                connection.setDoOutput(true);
+                connection.setRequestMethod("POST");
+                connection.setRequestProperty("Content-Type", "application/json");
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body);
+                }
+                int status = connection.getResponseCode();
+                // Read to the end so the connection goes back to the keep-alive pool
+                try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                    if (in != null)
+                        discard(in);
+                }
+                return status;
+            } catch (IOException e) {
+                log.error("Impossible to connect {}: {}", url, e.toString());
+                if (connection != null)
+                    connection.disconnect();
+                return -1;
+            }
+        }
+
+        private void discard(InputStream in) throws IOException {
+            byte[] buffer = new byte[512];
+            while (in.read(buffer) >= 0) {
+                // discard
+            }
+        }
+    }
+
+    private final Executor executor;
+    private final ConcurrentHashMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    /**
+     * @param executor Runs the senders, which block on the network.
+     */
+    public PrefetchClient(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Queue a prefetch request for the prefetcher of a proxy.
+     * @return Completed with whether the prefetcher accepted the request.
+     */
+    public CompletableFuture<Boolean> prefetch(Proxy proxy, Request request) {
+        Endpoint endpoint;
+        try {
+            endpoint = endpoint(proxy.getIpaddr(), proxy.getPrefetch_port());
+        } catch (IOException e) {
+            log.error("Wrong prefetcher address {}:{}", proxy.getIpaddr(), proxy.getPrefetch_port());
+            return CompletableFuture.completedFuture(false);
+        }
+        Pending p = new Pending(request);
+        endpoint.add(p);
+        return p.result;
+    }
+
+    private Endpoint endpoint(String address, int port) throws IOException {
+        String key = address + ":" + port;
+        Endpoint endpoint = endpoints.get(key);
+        if (endpoint == null) {
+            URL url = new URL("http", address, port, "/prefetch");
+            endpoint = endpoints.computeIfAbsent(key, k -> new Endpoint(url));
+        }
+        return endpoint;
+    }
+
+    /**
+     * @return Requests waiting for a connection, for every proxy.
+     */
+    public int queued() {
+        int queued = 0;
+        for (Endpoint e : endpoints.values()) {
+            synchronized (e) {
+                queued += e.queue.size();
+            }
+        }
+        return queued;
+    }
+}
@@ -0,0 +1,260 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Dispatches segment prefetches with a fixed concurrency budget.
+ * <p>
+ * Every stream (a representation played through a proxy) has a deque of
+ * pending segments ordered by segment index and, for a same segment, base
+ * layers before the layers depending on them. A priority queue holds the
+ * streams with pending segments by how far ahead of their playback their
+ * next segment is, so the most urgent segment of all streams goes first.
+ * A prefetch is dispatched whenever one is submitted or one completes
+ * while the budget allows it: no thread ever waits for work, nor for the
+ * prefetchers to answer.
+ */
+public class PrefetchScheduler {
+
+    static final int DEFAULT_CONCURRENCY = 8;
+
+    public interface Action {
+        /**
+         * Prefetch a segment. Runs in the executor.
+         * @return Completed once the prefetch is over, so the next one is
+         * dispatched, or null if it is already over.
+         */
+        CompletionStage<?> prefetch(Task task);
+
+        /**
+         * The task is over: prefetched, failed or dropped because the
+         * playback went past it.
+         */
+        void finished(Task task);
+    }
+
+    public static final class Task {
+        public final String url;
+        /** Position of the segment in its representation */
+        public final int index;
+        /** Number of layers the representation of the segment depends on */
+        public final int layer;
+
+        public Task(String url, int index, int layer) {
+            this.url = url;
+            this.index = index;
+            this.layer = layer;
+        }
+
+        @Override
+        public String toString() {
+            return url;
+        }
+    }
+
+    private static final Comparator<Task> ORDER =
+            Comparator.<Task>comparingInt(t -> t.index).thenComparingInt(t -> t.layer);
+
+    private static final class Stream {
+        private final Object key;
+        private final Action action;
+        private final ArrayDeque<Task> pending = new ArrayDeque<>();
+        /** Last segment requested, the ones up to it are no longer needed */
+        private int position;
+
+        Stream(Object key, Action action) {
+            this.key = key;
+            this.action = action;
+        }
+
+        long urgency() {
+            return (long) pending.peekFirst().index - position;
+        }
+    }
+
+    private final Executor executor;
+    private final int concurrency;
+    private final Map<Object, Stream> streams = new HashMap<>();
+    private final PriorityQueue<Stream> ready = new PriorityQueue<>(
+            Comparator.comparingLong(Stream::urgency).thenComparingInt(s -> s.pending.peekFirst().layer));
+    private int running;
+    private int queued;
+    private boolean cancelled;
+
+    public PrefetchScheduler(Executor executor) {
+        this(executor, DEFAULT_CONCURRENCY);
+    }
+
+    public PrefetchScheduler(Executor executor, int concurrency) {
+        this.executor = executor;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Queue the segments of a stream.
+     * @param key Identifies the stream.
+     * @param position Last segment the stream requested. Pending segments
+     *                 up to it are dropped.
+     * @param tasks Segments to prefetch, none of them already pending.
+     */
+    public void submit(Object key, int position, List<Task> tasks, Action action) {
+        List<Task> dropped = new ArrayList<>();
+        synchronized (this) {
+            if (cancelled)
+                dropped.addAll(tasks);
+        }
+        if (!dropped.isEmpty()) {
+            for (Task t : dropped)
+                action.finished(t);
+            return;
+        }
+        synchronized (this) {
+            Stream stream = streams.computeIfAbsent(key, k -> new Stream(k, action));
+            ready.remove(stream);
+            stream.position = position;
+            for (Iterator<Task> it = stream.pending.iterator(); it.hasNext(); ) {
+                Task t = it.next();
+                if (t.index <= position) {
+                    it.remove();
+                    dropped.add(t);
+                }
+            }
+            for (Task t : tasks)
+                enqueue(stream, t);
+            queued += tasks.size() - dropped.size();
+            if (stream.pending.isEmpty())
+                streams.remove(key);
+            else
+                ready.add(stream);
+        }
+        for (Task t : dropped)
+            action.finished(t);
+        dispatch();
+    }
+
+    private static void enqueue(Stream stream, Task t) {
+        Task last = stream.pending.peekLast();
+        if (last == null || ORDER.compare(last, t) <= 0) {
+            stream.pending.addLast(t);
+            return;
+        }
+        // The playback went back: keep the deque sorted
+        List<Task> sorted = new ArrayList<>(stream.pending);
+        sorted.add(t);
+        sorted.sort(ORDER);
+        stream.pending.clear();
+        stream.pending.addAll(sorted);
+    }
+
+    private void dispatch() {
+        while (true) {
+            Stream stream;
+            Task task;
+            synchronized (this) {
+                if (running >= concurrency || ready.isEmpty())
+                    return;
+                stream = ready.poll();
+                task = stream.pending.pollFirst();
+                if (stream.pending.isEmpty())
+                    streams.remove(stream.key);
+                else
+                    ready.add(stream);
+                queued--;
+                running++;
+            }
+            Action action = stream.action;
+            try {
+                executor.execute(() -> {
+                    CompletionStage<?> done = null;
+                    try {
+                        done = action.prefetch(task);
+                    } finally {
+                        if (done == null) {
+                            finished(action, task);
+                            dispatch();
+                        } else {
+                            done.whenComplete((r, e) -> {
+                                finished(action, task);
+                                dispatch();
+                            });
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Shutting down
+                finished(action, task);
+                return;
+            }
+        }
+    }
+
+    private void finished(Action action, Task task) {
+        action.finished(task);
+        synchronized (this) {
+            running--;
+        }
+    }
+
+    /**
+     * Drop every pending segment and every segment submitted from now on,
+     * e.g. once the ICN is removed. Prefetches already running complete.
+     */
+    public void cancel() {
+        List<Stream> dropped;
+        synchronized (this) {
+            cancelled = true;
+            dropped = new ArrayList<>(streams.values());
+            streams.clear();
+            ready.clear();
+            queued = 0;
+        }
+        for (Stream stream : dropped) {
+            for (Task t : stream.pending)
+                stream.action.finished(t);
+        }
+    }
+
+    /**
+     * @return Segments waiting for the budget.
+     */
+    public synchronized int queued() {
+        return queued;
+    }
+
+    /**
+     * @return Segments being prefetched.
+     */
+    public synchronized int running() {
+        return running;
+    }
+}
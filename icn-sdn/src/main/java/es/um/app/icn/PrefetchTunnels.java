@@ -0,0 +1,247 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import org.onlab.packet.Ip4Address;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Prefetching tunnels between proxies and caches. A tunnel is a prefetching
+ * address and port with the paths to reach the cache through it, and one
+ * tunnel per proxy and cache carries every segment prefetched from that
+ * proxy into that cache, instead of installing new paths per segment.
+ * <p>
+ * Tunnel flows expire when idle, so a tunnel unused for IDLE_MS is opened
+ * again, with new paths, the next time it is needed. Its address and port
+ * go back to the pool once its flows expire, or after LEAK_MS if the
+ * removal of the flows was never notified.
+ * <p>
+ * Addresses and ports come from the pool of the ICN service, shared by
+ * every ICN, so no two tunnels get the same pair and an expired flow only
+ * closes the tunnel holding its pair.
+ */
+public class PrefetchTunnels {
+    private final static Logger log = LoggerFactory.getLogger(PrefetchTunnels.class);
+
+    /** Comfortably below the idle timeout of the tunnel flows */
+    static final long IDLE_MS = (IcnService.DEFAULT_FLOW_TIMEOUT - 10) * 1000L;
+    /** Long after the flows of an unused tunnel should have expired */
+    static final long LEAK_MS = IcnService.DEFAULT_FLOW_TIMEOUT * 4 * 1000L;
+
+    public static final class Tunnel {
+        public final String address;
+        public final short port;
+        private final int slot;
+        /** Pool the pair goes back to */
+        private final PrefetchAddresses pool;
+        private volatile long lastUsed;
+        private volatile boolean closed;
+
+        private Tunnel(int slot, PrefetchAddresses pool) {
+            this.address = Ip4Address.valueOf(PrefetchAddresses.ip(slot)).toString();
+            this.port = PrefetchAddresses.port(slot);
+            this.slot = slot;
+            this.pool = pool;
+        }
+
+        @Override
+        public String toString() {
+            return address + ":" + port;
+        }
+    }
+
+    public interface Network {
+        /**
+         * Install the paths between the proxy and the cache for the
+         * address and port of a new tunnel.
+         * @return false if the paths could not be installed.
+         */
+        boolean open(Proxy proxy, Cache cache, Tunnel tunnel);
+    }
+
+    private static final class Slot {
+        private Tunnel tunnel;
+    }
+
+    private final Network network;
+    /** Pool of the ICN service, null while the ICN is not registered */
+    private final Supplier<PrefetchAddresses> addresses;
+    private final LongSupplier clock;
+    private final ConcurrentHashMap<Map.Entry<Proxy, Cache>, Slot> slots = new ConcurrentHashMap<>();
+    /** Tunnels whose flows may still be installed, by address slot */
+    private final ConcurrentHashMap<Integer, Tunnel> live = new ConcurrentHashMap<>();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong leaked = new AtomicLong();
+
+    public PrefetchTunnels(Network network, Supplier<PrefetchAddresses> addresses) {
+        this(network, addresses, System::currentTimeMillis);
+    }
+
+    PrefetchTunnels(Network network, Supplier<PrefetchAddresses> addresses, LongSupplier clock) {
+        this.network = network;
+        this.addresses = addresses;
+        this.clock = clock;
+    }
+
+    /**
+     * @return The tunnel from the proxy to the cache, opened if there is
+     * none or it expired, null if it could not be opened.
+     */
+    public Tunnel acquire(Proxy proxy, Cache cache) {
+        Map.Entry<Proxy, Cache> key = new AbstractMap.SimpleImmutableEntry<>(proxy, cache);
+        Slot slot = slots.computeIfAbsent(key, k -> new Slot());
+        // Only the requests for this proxy and cache wait while a tunnel is opened
+        synchronized (slot) {
+            long now = clock.getAsLong();
+            Tunnel tunnel = slot.tunnel;
+            if (tunnel == null || tunnel.closed || now - tunnel.lastUsed > IDLE_MS) {
+                tunnel = open(key, now);
+                if (tunnel == null)
+                    return null;
+                slot.tunnel = tunnel;
+                opened.incrementAndGet();
+            } else {
+                reused.incrementAndGet();
+            }
+            tunnel.lastUsed = now;
+            return tunnel;
+        }
+    }
+
+    private Tunnel open(Map.Entry<Proxy, Cache> key, long now) {
+        sweep(now);
+        PrefetchAddresses pool = addresses.get();
+        if (pool == null)
+            return null;
+        int index = pool.allocate();
+        if (index < 0) {
+            log.error("No prefetching address left, {} in use", pool.inUse());
+            return null;
+        }
+        Tunnel tunnel = new Tunnel(index, pool);
+        if (!network.open(key.getKey(), key.getValue(), tunnel)) {
+            pool.release(index);
+            return null;
+        }
+        live.put(index, tunnel);
+        return tunnel;
+    }
+
+    /**
+     * Release the addresses of tunnels unused for so long that their flows
+     * are surely gone even if we were not told.
+     */
+    private void sweep(long now) {
+        live.values().removeIf(tunnel -> {
+            if (now - tunnel.lastUsed <= LEAK_MS)
+                return false;
+            log.warn("Prefetching tunnel {} expired unnoticed", tunnel);
+            close(tunnel);
+            leaked.incrementAndGet();
+            return true;
+        });
+    }
+
+    /**
+     * A flow of the ICN expired. The first expired flow towards the address
+     * and port of a tunnel closes it, the rest of its flows follow soon as
+     * they carry the same traffic.
+     * @param ip Matched destination address of the flow.
+     * @param port Matched TCP source port of the flow.
+     * @return Whether it closed a tunnel.
+     */
+    public boolean expired(int ip, int port) {
+        PrefetchAddresses pool = addresses.get();
+        int index = pool == null ? -1 : pool.slot(ip, port);
+        if (index < 0)
+            return false;
+        Tunnel tunnel = live.remove(index);
+        if (tunnel == null)
+            return false;
+        close(tunnel);
+        expired.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * The slot of a closed tunnel opens a new one on its next use.
+     */
+    private void close(Tunnel tunnel) {
+        tunnel.closed = true;
+        tunnel.pool.release(tunnel.slot);
+    }
+
+    /**
+     * Close every tunnel, once the ICN leaves the service and no longer
+     * hears about its flows. The pool hands the pairs out again as late as
+     * possible, when the flows left behind have expired too.
+     */
+    public void closeAll() {
+        live.values().removeIf(tunnel -> {
+            close(tunnel);
+            return true;
+        });
+        slots.clear();
+    }
+
+    /**
+     * Forget the tunnels into a cache, e.g. once it is removed. Their
+     * addresses go back to the pool once their flows expire.
+     */
+    public void forget(Cache cache) {
+        slots.keySet().removeIf(k -> k.getValue() == cache);
+    }
+
+    /**
+     * @return Tunnels opened so far, each one installing its paths.
+     */
+    public long opened() {
+        return opened.get();
+    }
+
+    /**
+     * @return Prefetches that went through an already open tunnel.
+     */
+    public long reused() {
+        return reused.get();
+    }
+
+    public long expired() {
+        return expired.get();
+    }
+
+    /**
+     * @return Tunnels released without ever being told their flows expired.
+     */
+    public long leaked() {
+        return leaked.get();
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Sliding prefetch windows of the DASH representations. Every proxy
+ * streaming a representation gets the few segments following the last one
+ * it requested prefetched, for that representation and the ones it depends
+ * on, so prefetching follows the actual playback instead of walking whole
+ * representations. The segments are dispatched by a PrefetchScheduler.
+ * <p>
+ * The window holds about WINDOW_BYTES of media: fewer segments for higher
+ * bandwidths, between MIN_AHEAD and MAX_AHEAD. Proxies that requested
+ * nothing for IDLE_SEGMENTS segment durations stopped streaming and their
+ * windows are dropped.
+ */
+public class PrefetchWindow {
+
+    /** Media prefetched ahead of every proxy */
+    static final long WINDOW_BYTES = 16L << 20;
+    /** Segment duration assumed to size the window, manifests rarely change it */
+    static final long SEGMENT_SECONDS = 2;
+    static final int MIN_AHEAD = 2;
+    static final int MAX_AHEAD = 15;
+    /** Segment durations without requests before a window is dropped */
+    static final int IDLE_SEGMENTS = 5;
+    static final long IDLE_MS = IDLE_SEGMENTS * SEGMENT_SECONDS * 1000;
+
+    private final LongSupplier clock;
+    /** Last segment requested by every proxy streaming a representation */
+    private final ConcurrentHashMap<RepresentationDASH, ConcurrentHashMap<Proxy, Position>> positions =
+            new ConcurrentHashMap<>();
+    /** Segments being prefetched */
+    private final Set<String> inflight = ConcurrentHashMap.newKeySet();
+    /** Last time every window was checked for idle proxies */
+    private volatile long lastExpiry;
+
+    /**
+     * Last segment requested by a proxy and when.
+     */
+    private static final class Position {
+        final int segment;
+        final long time;
+
+        Position(int segment, long time) {
+            this.segment = segment;
+            this.time = time;
+        }
+    }
+
+    public PrefetchWindow() {
+        this(System::currentTimeMillis);
+    }
+
+    PrefetchWindow(LongSupplier clock) {
+        this.clock = clock;
+        this.lastExpiry = clock.getAsLong();
+    }
+
+    /**
+     * @param bandwidth Bits per second of the representation and its
+     *                  dependencies, 0 if unknown.
+     * @return Segments to keep prefetched ahead of the playback.
+     */
+    static int ahead(long bandwidth) {
+        if (bandwidth <= 0)
+            return MIN_AHEAD;
+        long segments = WINDOW_BYTES * 8 / (bandwidth * SEGMENT_SECONDS);
+        return (int) Math.max(MIN_AHEAD, Math.min(MAX_AHEAD, segments));
+    }
+
+    /**
+     * Segments to prefetch for a proxy streaming a representation, nearest
+     * first and base layers first.
+     */
+    public static final class Slide {
+        public final RepresentationDASH representation;
+        public final Proxy proxy;
+        /** Last segment requested by the proxy */
+        public final int position;
+        public final List<PrefetchScheduler.Task> tasks;
+
+        Slide(RepresentationDASH representation, Proxy proxy, int position, List<PrefetchScheduler.Task> tasks) {
+            this.representation = representation;
+            this.proxy = proxy;
+            this.position = position;
+            this.tasks = tasks;
+        }
+    }
+
+    /**
+     * Record that a proxy requested a segment and slide its window. The
+     * proxy no longer streams the other representations of the resource.
+     * @param position Position of the segment in the representation.
+     * @param known Whether a segment URL is already cached or prefetched.
+     * @return The segments to prefetch now, marked in flight until done()
+     * is called for them.
+     */
+    public Slide requested(ResourceHTTPDASH resource, RepresentationDASH rep, Proxy proxy,
+                           int position, Predicate<String> known) {
+        long now = clock.getAsLong();
+        for (Integer id : resource.getRepresentationIds()) {
+            RepresentationDASH other = resource.getRepresentation(id);
+            if (other != null && other != rep)
+                positions.computeIfPresent(other, (r, clients) -> {
+                    clients.remove(proxy);
+                    return clients.isEmpty() ? null : clients;
+                });
+        }
+        positions.compute(rep, (r, clients) -> {
+            if (clients == null)
+                clients = new ConcurrentHashMap<>();
+            clients.put(proxy, new Position(position, now));
+            return clients;
+        });
+        if (now - lastExpiry >= SEGMENT_SECONDS * 1000) {
+            lastExpiry = now;
+            for (RepresentationDASH r : positions.keySet())
+                expire(r, now);
+        }
+        return slide(resource, rep, proxy, position, known);
+    }
+
+    /**
+     * Slide the windows of every proxy streaming a representation, e.g.
+     * once new live segments are known.
+     * @return The windows with segments to prefetch.
+     */
+    public List<Slide> refresh(ResourceHTTPDASH resource, RepresentationDASH rep, Predicate<String> known) {
+        expire(rep, clock.getAsLong());
+        Map<Proxy, Position> clients = positions.get(rep);
+        if (clients == null)
+            return Collections.emptyList();
+        List<Slide> res = new ArrayList<>();
+        clients.forEach((proxy, position) -> {
+            Slide slide = slide(resource, rep, proxy, position.segment, known);
+            if (!slide.tasks.isEmpty())
+                res.add(slide);
+        });
+        return res;
+    }
+
+    /**
+     * Drop the windows of the proxies that stopped requesting segments of
+     * a representation.
+     */
+    private void expire(RepresentationDASH rep, long now) {
+        positions.computeIfPresent(rep, (r, clients) -> {
+            clients.values().removeIf(p -> now - p.time > IDLE_MS);
+            return clients.isEmpty() ? null : clients;
+        });
+    }
+
+    private Slide slide(ResourceHTTPDASH resource, RepresentationDASH rep, Proxy proxy, int position,
+                        Predicate<String> known) {
+        List<RepresentationDASH> layers = new ArrayList<>();
+        long bandwidth = rep.getBandwidth();
+        for (Integer id : rep.getDependencies()) {
+            RepresentationDASH dep = resource.getRepresentation(id);
+            if (dep != null) {
+                layers.add(dep);
+                bandwidth += dep.getBandwidth();
+            }
+        }
+        // Base layers first
+        layers.sort(Comparator.comparingInt(r -> r.getDependencies().size()));
+        layers.add(rep);
+        int last = position + ahead(bandwidth);
+        List<PrefetchScheduler.Task> tasks = new ArrayList<>();
+        for (int i = position + 1; i <= last; i++) {
+            for (RepresentationDASH layer : layers) {
+                List<String> full = layer.getFullUrls();
+                if (i >= full.size())
+                    continue;
+                String url = full.get(i);
+                if (!known.test(url) && inflight.add(url))
+                    tasks.add(new PrefetchScheduler.Task(url, i, layer.getDependencies().size()));
+            }
+        }
+        return new Slide(rep, proxy, position, tasks);
+    }
+
+    /**
+     * A segment of a slide is no longer in flight.
+     */
+    public void done(String url) {
+        inflight.remove(url);
+    }
+
+    /**
+     * Forget the windows of a resource, once it is no longer part of the ICN.
+     */
+    public void forget(ResourceHTTPDASH resource) {
+        for (Integer id : resource.getRepresentationIds()) {
+            RepresentationDASH rep = resource.getRepresentation(id);
+            if (rep != null)
+                positions.remove(rep);
+        }
+    }
+
+    /**
+     * @return Number of proxies streaming some representation.
+     */
+    public int size() {
+        int size = 0;
+        for (Map<Proxy, Position> clients : positions.values())
+            size += clients.size();
+        return size;
+    }
+}
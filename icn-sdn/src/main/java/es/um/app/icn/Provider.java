@@ -20,6 +20,10 @@
 
 package es.um.app.icn;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -27,8 +31,10 @@ public class Provider {
 
 	protected String name;
 	protected String description;
-	/** CIDR network address, e.g. 80.120.45.0/24 */
-	protected String network; // TODO: better a collection of networks... v1.1?
+	/** CIDR network address, e.g. 80.120.45.0/24. The first of networks */
+	protected String network;
+	/** Every CIDR network address of the provider */
+	protected List<String> networks = Collections.emptyList();
 	/**
 	 * Java pattern for the URI to check whether a request belongs to this
 	 * provider and obtain the associated resource name (group capturing
@@ -42,6 +48,12 @@ public class Provider {
 	 * @see java.util.regex.Pattern
 	 */
 	protected String hostpattern;
+
+	/* Compiled forms of the fields above, built once when they are set */
+	private Pattern uriregex;
+	private Pattern hostregex;
+	private int[] subnets = new int[0];
+	private int[] masklens = new int[0];
 	
 	public Provider() {
 		
@@ -68,7 +80,54 @@ public class Provider {
 	}
 
 	public void setNetwork(String network) {
-		this.network = network;
+		setNetworks(network == null ? Collections.<String>emptyList() :
+				Collections.singletonList(network));
+	}
+
+	public List<String> getNetworks() {
+		return networks;
+	}
+
+	public void setNetworks(List<String> networks) {
+		this.networks = Collections.unmodifiableList(new ArrayList<>(networks));
+		this.network = networks.isEmpty() ? null : networks.get(0);
+		int[] subnets = new int[networks.size()];
+		int[] masklens = new int[networks.size()];
+		int valid = 0;
+		for (String cidr : networks) {
+			try {
+				int masklen = UtilIcn.masklenFromCidr(cidr);
+				if (masklen < 0 || masklen > 32)
+					continue;
+				subnets[valid] = UtilIcn.subnetFromCidr(cidr) & mask(masklen);
+				masklens[valid++] = masklen;
+			} catch (UnknownHostException | RuntimeException e) {
+				// Same as before: a wrong network contains no address
+			}
+		}
+		this.subnets = Arrays.copyOf(subnets, valid);
+		this.masklens = Arrays.copyOf(masklens, valid);
+	}
+
+	/**
+	 * @return Number of valid IPv4 networks of the provider.
+	 */
+	public int getSubnetCount() {
+		return subnets.length;
+	}
+
+	/**
+	 * @return Address of the i-th valid network.
+	 */
+	public int getSubnet(int i) {
+		return subnets[i];
+	}
+
+	/**
+	 * @return Prefix length of the i-th valid network.
+	 */
+	public int getMasklen(int i) {
+		return masklens[i];
 	}
 	
     public String getUripattern() {
@@ -77,6 +136,7 @@ public class Provider {
 
     public void setUripattern(String uripattern) {
         this.uripattern = uripattern;
+        this.uriregex = uripattern == null ? null : Pattern.compile(uripattern);
     }
 
     /**
@@ -85,8 +145,8 @@ public class Provider {
      * @return the pattern matched or null if not match
      */
     public String matchUriPattern(String urireq) {
-        if (this.uripattern != null) {
-            Pattern pattern = Pattern.compile(this.uripattern);
+        Pattern pattern = this.uriregex;
+        if (pattern != null) {
             Matcher matcher = pattern.matcher(urireq);
             if (matcher.find())
                 return matcher.group(0);
@@ -101,6 +161,7 @@ public class Provider {
 
     public void setHostpattern(String hostpattern) {
         this.hostpattern = hostpattern;
+        this.hostregex = hostpattern == null ? null : Pattern.compile(hostpattern);
     }
 
     /**
@@ -109,8 +170,8 @@ public class Provider {
      * @return the pattern matched or null if not match
      */
     public String matchHostPattern(String hostreq) {
-        if (this.hostpattern != null) {
-            Pattern pattern = Pattern.compile(this.hostpattern);
+        Pattern pattern = this.hostregex;
+        if (pattern != null) {
             Matcher matcher = pattern.matcher(hostreq);
             if (matcher.find())
                 return matcher.group(0);
@@ -120,17 +181,18 @@ public class Provider {
     }
 
 	protected boolean containsIpAddress(int addr) {
-		try {
-			int subnet = UtilIcn.subnetFromCidr(network);
-			int masklen = UtilIcn.masklenFromCidr(network);
-			int mask = -1 << (32 - masklen);
-			// Strange Java behavior makes me write this special case
-			if (masklen == 0)
-				mask = 0;
-			return ((subnet & mask) == (addr & mask));
-		} catch (UnknownHostException e) {
-			return false;
+		for (int i = 0; i < subnets.length; i++) {
+			if (subnets[i] == (addr & mask(masklens[i])))
+				return true;
 		}
+		return false;
+	}
+
+	private static int mask(int masklen) {
+		// Strange Java behavior makes me write this special case
+		if (masklen <= 0)
+			return 0;
+		return -1 << (32 - masklen);
 	}
 	
 }
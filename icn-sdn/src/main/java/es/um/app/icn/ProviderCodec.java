@@ -1,11 +1,18 @@
 package es.um.app.icn;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.onosproject.codec.CodecContext;
 import org.onosproject.codec.JsonCodec;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.PatternSyntaxException;
+
 /**
  * Created by Jordi Ortiz on 18/04/16.
  * This class is used to provide json implementation for the Provider
@@ -16,6 +23,7 @@ public class ProviderCodec extends JsonCodec<Provider> {
     private static final String NAME_FIELD = "name";
     private static final String DESCRIPTION_FIELD = "description";
     private static final String NETWORK_FIELD = "network";
+    private static final String NETWORKS_FIELD = "networks";
     private static final String URIPATTERN_FIELD = "uripattern";
     private static final String HOSTPATTERN_FIELD = "hostpattern";
 
@@ -29,6 +37,10 @@ public class ProviderCodec extends JsonCodec<Provider> {
                 .put(NETWORK_FIELD, provider.getNetwork())
                 .put(URIPATTERN_FIELD, provider.getUripattern())
                 .put(HOSTPATTERN_FIELD, provider.getHostpattern());
+        if (provider.getNetworks().size() > 1) {
+            ArrayNode networks = result.putArray(NETWORKS_FIELD);
+            provider.getNetworks().forEach(networks::add);
+        }
         return result;
     }
 
@@ -37,11 +49,34 @@ public class ProviderCodec extends JsonCodec<Provider> {
         Provider p =  new Provider();
         p.setName(json.get(NAME_FIELD).asText());
         p.setDescription(json.get(DESCRIPTION_FIELD).asText());
-        p.setNetwork(json.get(NETWORK_FIELD).asText());
-        if (json.get(URIPATTERN_FIELD) != null)
-            p.setUripattern(json.get(URIPATTERN_FIELD).asText());
-        if (json.get(HOSTPATTERN_FIELD) != null)
-            p.setHostpattern(json.get(HOSTPATTERN_FIELD).asText());
+        // "network" alone as before, or "networks" with several of them
+        List<String> networks = new ArrayList<>();
+        if (json.get(NETWORK_FIELD) != null)
+            networks.add(json.get(NETWORK_FIELD).asText());
+        if (json.get(NETWORKS_FIELD) != null)
+            for (JsonNode network : json.get(NETWORKS_FIELD)) {
+                if (!networks.contains(network.asText()))
+                    networks.add(network.asText());
+            }
+        p.setNetworks(networks);
+        pattern(json, URIPATTERN_FIELD, p::setUripattern);
+        pattern(json, HOSTPATTERN_FIELD, p::setHostpattern);
         return p;
     }
+
+    /**
+     * Set a pattern of the provider if the field is present.
+     * @throws PatternSyntaxException If it is not a valid regular
+     * expression, the description names the field.
+     */
+    private static void pattern(ObjectNode json, String field, Consumer<String> setter) {
+        JsonNode value = json.get(field);
+        if (value == null)
+            return;
+        try {
+            setter.accept(value.asText());
+        } catch (PatternSyntaxException e) {
+            throw new PatternSyntaxException(field + ": " + e.getDescription(), e.getPattern(), e.getIndex());
+        }
+    }
 }
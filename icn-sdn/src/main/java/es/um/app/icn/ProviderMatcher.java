@@ -0,0 +1,365 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable matcher over the providers of every ICN, rebuilt whenever they
+ * change. A proxy request is matched in three steps:
+ * <ol>
+ *     <li>A Patricia trie over the provider networks gives the providers
+ *     of the server address, most specific network first, without
+ *     allocating.</li>
+ *     <li>Host patterns requiring a literal (e.g. "dailymotion.com" in
+ *     "proxy.*dailymotion\.com") are prefiltered all at once with an
+ *     Aho-Corasick automaton, when there are enough candidates.</li>
+ *     <li>The precompiled host and URI patterns of the remaining candidates
+ *     are checked in order and the first one matching wins.</li>
+ * </ol>
+ */
+public class ProviderMatcher {
+
+    public static final ProviderMatcher EMPTY = new ProviderMatcher(new ArrayList<>());
+
+    /** Fewer candidates than these are cheaper to check one by one */
+    static final int PREFILTER_MIN_CANDIDATES = 4;
+    /** Shorter literals would let most hosts through the prefilter */
+    static final int MIN_LITERAL = 3;
+    /** Escapes of one char class or boundary, without operands */
+    private static final String SIMPLE_ESCAPES = "dDsSwWbBAzZG";
+
+    private final Provider[] providers;
+    /** ICN of every provider */
+    private final Icn[] icns;
+    private final ProviderTrie networks;
+    /** Providers whose host pattern requires a literal found by the automaton */
+    private final boolean[] prefiltered;
+    private final HostAutomaton hosts;
+
+    public ProviderMatcher(Collection<Icn> icns) {
+        List<Provider> providers = new ArrayList<>();
+        List<Icn> owners = new ArrayList<>();
+        for (Icn icn : icns) {
+            for (Provider p : icn.retrieveProviders()) {
+                providers.add(p);
+                owners.add(icn);
+            }
+        }
+        this.providers = providers.toArray(new Provider[0]);
+        this.icns = owners.toArray(new Icn[0]);
+        this.prefiltered = new boolean[this.providers.length];
+        ProviderTrie.Builder trie = new ProviderTrie.Builder();
+        HostAutomaton.Builder automaton = new HostAutomaton.Builder();
+        for (int i = 0; i < this.providers.length; i++) {
+            Provider p = this.providers[i];
+            for (int n = 0; n < p.getSubnetCount(); n++)
+                trie.add(p.getSubnet(n), p.getMasklen(n), i);
+            String literal = requiredLiteral(p.getHostpattern());
+            if (literal != null) {
+                automaton.add(literal, i);
+                prefiltered[i] = true;
+            }
+        }
+        this.networks = trie.build();
+        this.hosts = automaton.isEmpty() ? null : automaton.build();
+    }
+
+    /**
+     * Result of matching a request: the provider, its ICN and the resource
+     * name obtained from its URI pattern.
+     */
+    public static final class Match {
+        public final Icn icn;
+        public final Provider provider;
+        public final String resource;
+
+        Match(Icn icn, Provider provider, String resource) {
+            this.icn = icn;
+            this.provider = provider;
+            this.resource = resource;
+        }
+    }
+
+    /**
+     * @param addr Server IPv4 address.
+     * @param host Host header of the request.
+     * @param uri URI of the request.
+     * @return The first provider, most specific network first, whose
+     * patterns match the request or null.
+     */
+    public Match match(int addr, String host, String uri) {
+        if (host == null || uri == null)
+            return null;
+        ProviderTrie.Prefix longest = networks.lookup(addr);
+        if (longest == null)
+            return null;
+
+        long[] seen = null;
+        if (hosts != null && candidates(longest) >= PREFILTER_MIN_CANDIDATES) {
+            seen = new long[(providers.length + 63) >>> 6];
+            hosts.scan(host, seen);
+        }
+        for (ProviderTrie.Prefix prefix = longest; prefix != null; prefix = prefix.shorter()) {
+            for (int j = 0; j < prefix.size(); j++) {
+                int i = prefix.value(j);
+                if (seen != null && prefiltered[i] && (seen[i >>> 6] & (1L << i)) == 0)
+                    continue;
+                Provider p = providers[i];
+                if (p.matchHostPattern(host) == null)
+                    continue;
+                String resource = p.matchUriPattern(uri);
+                if (resource != null)
+                    return new Match(icns[i], p, resource);
+            }
+        }
+        return null;
+    }
+
+    private static int candidates(ProviderTrie.Prefix longest) {
+        int candidates = 0;
+        for (ProviderTrie.Prefix prefix = longest; prefix != null; prefix = prefix.shorter())
+            candidates += prefix.size();
+        return candidates;
+    }
+
+    /**
+     * @return Providers with a network containing the address, most
+     * specific network first.
+     */
+    public List<Provider> providersOf(int addr) {
+        List<Provider> res = new ArrayList<>();
+        for (ProviderTrie.Prefix prefix = networks.lookup(addr); prefix != null; prefix = prefix.shorter()) {
+            for (int j = 0; j < prefix.size(); j++) {
+                Provider p = providers[prefix.value(j)];
+                if (!res.contains(p))
+                    res.add(p);
+            }
+        }
+        return res;
+    }
+
+    public int size() {
+        return providers.length;
+    }
+
+    /**
+     * @return Number of distinct networks of the providers.
+     */
+    public int networks() {
+        return networks.size();
+    }
+
+    private static int[] append(int[] a, int v) {
+        int[] res = Arrays.copyOf(a, a.length + 1);
+        res[a.length] = v;
+        return res;
+    }
+
+    /**
+     * Longest literal every string matched by the pattern must contain, as
+     * long as it can be found without a full regex parser: patterns with
+     * groups, classes, alternatives or escapes with operands have none.
+     * @return The literal or null if there is none of MIN_LITERAL chars.
+     */
+    static String requiredLiteral(String regex) {
+        if (regex == null)
+            return null;
+        String best = "";
+        StringBuilder run = new StringBuilder();
+        boolean lastLiteral = false;
+        for (int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+            switch (c) {
+                case '|':
+                case '(':
+                case '[':
+                    return null;
+                case '*':
+                case '?':
+                case '{':
+                    // The previous literal is optional
+                    if (lastLiteral)
+                        run.setLength(run.length() - 1);
+                    if (run.length() > best.length())
+                        best = run.toString();
+                    run.setLength(0);
+                    if (c == '{') {
+                        i = regex.indexOf('}', i);
+                        if (i < 0)
+                            return null;
+                    }
+                    lastLiteral = false;
+                    break;
+                case '+':
+                case '.':
+                case '^':
+                case '$':
+                    if (run.length() > best.length())
+                        best = run.toString();
+                    run.setLength(0);
+                    lastLiteral = false;
+                    break;
+                case '\\':
+                    if (++i == regex.length())
+                        return null;
+                    char e = regex.charAt(i);
+                    if (Character.isLetterOrDigit(e)) {
+                        // Only single char classes and boundaries, other
+                        // escapes take operands (\x2e, \0101, \k<name>...)
+                        if (SIMPLE_ESCAPES.indexOf(e) < 0)
+                            return null;
+                        if (run.length() > best.length())
+                            best = run.toString();
+                        run.setLength(0);
+                        lastLiteral = false;
+                    } else {
+                        run.append(e);
+                        lastLiteral = true;
+                    }
+                    break;
+                default:
+                    run.append(c);
+                    lastLiteral = true;
+                    break;
+            }
+        }
+        if (run.length() > best.length())
+            best = run.toString();
+        return best.length() >= MIN_LITERAL ? best : null;
+    }
+
+    /**
+     * Aho-Corasick automaton over the host literals. Scanning a host marks
+     * every provider whose literal appears in it.
+     */
+    private static final class HostAutomaton {
+        /** Sorted transition labels and targets of every state */
+        private final char[][] labels;
+        private final int[][] targets;
+        private final int[] fail;
+        /** Providers whose literal ends in every state, following fail links */
+        private final int[][] out;
+
+        private HostAutomaton(char[][] labels, int[][] targets, int[] fail, int[][] out) {
+            this.labels = labels;
+            this.targets = targets;
+            this.fail = fail;
+            this.out = out;
+        }
+
+        void scan(String host, long[] seen) {
+            int s = 0;
+            for (int i = 0; i < host.length(); i++) {
+                char c = host.charAt(i);
+                int next;
+                while ((next = step(s, c)) < 0 && s != 0)
+                    s = fail[s];
+                s = next < 0 ? 0 : next;
+                for (int p : out[s])
+                    seen[p >>> 6] |= 1L << p;
+            }
+        }
+
+        private int step(int s, char c) {
+            int idx = Arrays.binarySearch(labels[s], c);
+            return idx < 0 ? -1 : targets[s][idx];
+        }
+
+        static final class Builder {
+            private final List<TreeMap<Character, Integer>> go = new ArrayList<>();
+            private final List<int[]> out = new ArrayList<>();
+
+            Builder() {
+                newState();
+            }
+
+            private int newState() {
+                go.add(new TreeMap<>());
+                out.add(new int[0]);
+                return go.size() - 1;
+            }
+
+            void add(String literal, int provider) {
+                int s = 0;
+                for (int i = 0; i < literal.length(); i++) {
+                    Integer next = go.get(s).get(literal.charAt(i));
+                    if (next == null) {
+                        next = newState();
+                        go.get(s).put(literal.charAt(i), next);
+                    }
+                    s = next;
+                }
+                out.set(s, append(out.get(s), provider));
+            }
+
+            boolean isEmpty() {
+                return go.get(0).isEmpty();
+            }
+
+            HostAutomaton build() {
+                int n = go.size();
+                char[][] labels = new char[n][];
+                int[][] targets = new int[n][];
+                for (int s = 0; s < n; s++) {
+                    TreeMap<Character, Integer> t = go.get(s);
+                    labels[s] = new char[t.size()];
+                    targets[s] = new int[t.size()];
+                    int j = 0;
+                    for (Map.Entry<Character, Integer> e : t.entrySet()) {
+                        labels[s][j] = e.getKey();
+                        targets[s][j++] = e.getValue();
+                    }
+                }
+                int[] fail = new int[n];
+                int[][] outs = out.toArray(new int[0][]);
+                HostAutomaton a = new HostAutomaton(labels, targets, fail, outs);
+                // Breadth first so fail links always point to shallower states
+                int[] queue = new int[n];
+                int head = 0, tail = 0;
+                for (int child : targets[0])
+                    queue[tail++] = child;
+                while (head < tail) {
+                    int s = queue[head++];
+                    for (int j = 0; j < labels[s].length; j++) {
+                        char c = labels[s][j];
+                        int child = targets[s][j];
+                        int f = fail[s];
+                        int next;
+                        while ((next = a.step(f, c)) < 0 && f != 0)
+                            f = fail[f];
+                        fail[child] = next < 0 || next == child ? 0 : next;
+                        int[] inherited = outs[fail[child]];
+                        for (int p : inherited)
+                            outs[child] = append(outs[child], p);
+                        queue[tail++] = child;
+                    }
+                }
+                return a;
+            }
+        }
+    }
+}
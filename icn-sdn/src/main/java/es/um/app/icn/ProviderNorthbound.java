@@ -32,6 +32,7 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.regex.PatternSyntaxException;
 
 @Path("provider")
 public class ProviderNorthbound extends AbstractWebResource {
@@ -99,6 +100,9 @@ public class ProviderNorthbound extends AbstractWebResource {
 			e.printStackTrace();
 			log.error("Unable to parse jsonized provider in param updatedprovider when calling update method {}", e.toString());
 			return Response.status(Response.Status.NOT_FOUND).entity("Unable to parse jsonized provider in param updatedprovider when calling update method").build();
+		} catch (PatternSyntaxException e) {
+			log.error("Invalid pattern in jsonized provider {}", e.toString());
+			return Response.status(Response.Status.BAD_REQUEST).entity("Invalid pattern in jsonized provider: " + e.getDescription()).build();
 		}
 		return Response.status(Response.Status.OK).build();
 	}
@@ -0,0 +1,212 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import java.util.Arrays;
+
+/**
+ * Immutable Patricia trie over IPv4 prefixes holding integer values, the
+ * indices of the providers of each network. Nodes only exist where two
+ * prefixes diverge or a prefix is stored, so a lookup visits at most one
+ * node per stored prefix on the path of the address and allocates nothing.
+ * The trie is built once with a Builder and replaced as a whole when the
+ * providers change.
+ */
+public final class ProviderTrie {
+
+    public static final ProviderTrie EMPTY = new Builder().build();
+
+    private final Node root;
+    private final int size;
+
+    private ProviderTrie(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * A stored prefix and its values. Prefixes containing an address are
+     * walked from the longest one through shorter().
+     */
+    public static final class Prefix {
+        private final int subnet;
+        private final int masklen;
+        private int[] values = new int[0];
+        private Prefix shorter;
+
+        private Prefix(int subnet, int masklen) {
+            this.subnet = subnet;
+            this.masklen = masklen;
+        }
+
+        public int subnet() {
+            return subnet;
+        }
+
+        public int masklen() {
+            return masklen;
+        }
+
+        public int size() {
+            return values.length;
+        }
+
+        public int value(int i) {
+            return values[i];
+        }
+
+        /**
+         * @return The longest stored prefix containing this one or null.
+         */
+        public Prefix shorter() {
+            return shorter;
+        }
+    }
+
+    private static final class Node {
+        private final int key;
+        private final int len;
+        private Node zero;
+        private Node one;
+        private Prefix prefix;
+
+        Node(int key, int len) {
+            this.key = key;
+            this.len = len;
+        }
+    }
+
+    /**
+     * @return The longest stored prefix containing the address or null.
+     */
+    public Prefix lookup(int addr) {
+        Prefix best = null;
+        Node n = root;
+        while (n != null) {
+            if (((addr ^ n.key) & mask(n.len)) != 0)
+                break;
+            if (n.prefix != null)
+                best = n.prefix;
+            if (n.len == 32)
+                break;
+            n = bit(addr, n.len) ? n.one : n.zero;
+        }
+        return best;
+    }
+
+    /**
+     * @return Number of prefixes stored.
+     */
+    public int size() {
+        return size;
+    }
+
+    private static int mask(int len) {
+        return len == 0 ? 0 : -1 << (32 - len);
+    }
+
+    private static boolean bit(int key, int i) {
+        return (key << i) < 0;
+    }
+
+    public static final class Builder {
+        private Node root;
+        private int size;
+
+        /**
+         * Add a value to a prefix, creating it if needed.
+         */
+        public Builder add(int subnet, int masklen, int value) {
+            if (masklen < 0 || masklen > 32)
+                throw new IllegalArgumentException("Wrong prefix length " + masklen);
+            root = insert(root, subnet & mask(masklen), masklen, value);
+            return this;
+        }
+
+        private Node insert(Node n, int key, int len, int value) {
+            if (n == null) {
+                Node leaf = new Node(key, len);
+                store(leaf, value);
+                return leaf;
+            }
+            int common = Math.min(Integer.numberOfLeadingZeros(n.key ^ key), Math.min(len, n.len));
+            if (common == n.len && common == len) {
+                store(n, value);
+                return n;
+            }
+            if (common == n.len) {
+                // Below n
+                if (bit(key, n.len))
+                    n.one = insert(n.one, key, len, value);
+                else
+                    n.zero = insert(n.zero, key, len, value);
+                return n;
+            }
+            // Diverges from n at common bits: split
+            Node parent = new Node(key & mask(common), common);
+            Node other = parent;
+            if (common == len)
+                store(parent, value);
+            else
+                other = insert(null, key, len, value);
+            if (bit(n.key, common))
+                parent.one = n;
+            else
+                parent.zero = n;
+            if (other != parent) {
+                if (bit(key, common))
+                    parent.one = other;
+                else
+                    parent.zero = other;
+            }
+            return parent;
+        }
+
+        private void store(Node n, int value) {
+            if (n.prefix == null) {
+                n.prefix = new Prefix(n.key, n.len);
+                size++;
+            }
+            int[] values = Arrays.copyOf(n.prefix.values, n.prefix.values.length + 1);
+            values[values.length - 1] = value;
+            n.prefix.values = values;
+        }
+
+        /**
+         * The builder must not be used after building.
+         */
+        public ProviderTrie build() {
+            link(root, null);
+            return new ProviderTrie(root, size);
+        }
+
+        private static void link(Node n, Prefix shorter) {
+            if (n == null)
+                return;
+            if (n.prefix != null) {
+                n.prefix.shorter = shorter;
+                shorter = n.prefix;
+            }
+            link(n.zero, shorter);
+            link(n.one, shorter);
+        }
+    }
+}
@@ -34,6 +34,7 @@ import javax.ws.rs.core.Response;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collection;
+import java.util.regex.PatternSyntaxException;
 
 @Path("providers")
 public class ProvidersNorthbound extends AbstractWebResource {
@@ -93,6 +94,9 @@ public class ProvidersNorthbound extends AbstractWebResource {
             e.printStackTrace();
             log.error("Unable to parse jsonized provider in param updatedprovider when calling update method {}", e.toString());
             return Response.status(Response.Status.NOT_FOUND).entity("Unable to parse jsonized provider in param updatedprovider when calling update method").build();
+        } catch (PatternSyntaxException e) {
+            log.error("Invalid pattern in jsonized provider {}", e.toString());
+            return Response.status(Response.Status.BAD_REQUEST).entity("Invalid pattern in jsonized provider: " + e.getDescription()).build();
         } catch (UnsupportedOperationException | ClassCastException | NullPointerException | IllegalArgumentException e) {
             e.printStackTrace();
             //The provider already exists, abort
@@ -1,7 +1,12 @@
 package es.um.app.icn;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.stream.Collectors;
 
@@ -18,7 +23,8 @@ public class RepresentationDASH {
     private String mimeType;
     private String baseURL;
     private ConcurrentLinkedQueue<Integer> dependencies;
-    private ConcurrentLinkedQueue<String> urls;
+    /** Segment paths relative to baseURL, replaced as a whole when segments are added */
+    private volatile Segments segments;
     private boolean prefetched;
 
     public RepresentationDASH(int id, int width, int height, int frameRate, long bandwidth, String codec, String mimeType) {
@@ -30,7 +36,7 @@ public class RepresentationDASH {
         this.codec = codec;
         this.mimeType = mimeType;
         dependencies = new ConcurrentLinkedQueue<>();
-        urls = new ConcurrentLinkedQueue<>();
+        segments = Segments.EMPTY;
         prefetched = false;
     }
 
@@ -83,24 +89,86 @@ public class RepresentationDASH {
         this.prefetched = prefetched;
     }
 
+    /**
+     * @return Lazy view of the full URL of every segment, in order.
+     */
     public List<String> getFullUrls() {
-        ConcurrentLinkedQueue<String> fullurls = new ConcurrentLinkedQueue<>();
-        urls.parallelStream().forEach(x -> fullurls.add(baseURL + x));
-        return new ArrayList<String>(fullurls);
+        Segments current = segments;
+        String base = baseURL;
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                return base + current.path(index);
+            }
+
+            @Override
+            public int size() {
+                return current.size();
+            }
+        };
+    }
+
+    /**
+     * @return Lazy view of the segment paths, relative to the base URL.
+     */
+    public List<String> getUrls() {
+        return segments.paths();
     }
 
-    public List<String> getUrls() {
-        return urls.stream().collect(Collectors.toList());
+    public Segments getSegments() {
+        return segments;
     }
 
-    public boolean containsResource(String url) {
-        return urls.parallelStream().anyMatch(x -> url.equals(baseURL + x));
+    public int getSegmentCount() {
+        return segments.size();
     }
 
-    public void putResource(String url) {
-        if (!urls.contains(url)) {
-            urls.add(url);
-        }
+    public boolean containsResource(String url) {
+        return indexOf(url) >= 0;
+    }
+
+    /**
+     * @return Position of the segment with the given full URL, -1 if it is
+     * not a segment of this representation.
+     */
+    public int indexOf(String url) {
+        String base = baseURL == null ? "" : baseURL;
+        if (url == null || !url.startsWith(base))
+            return -1;
+        return segments.indexOf(url, base.length());
+    }
+
+    /**
+     * @return Directories of the full URLs of the segments.
+     */
+    public Set<String> getDirectories() {
+        String base = baseURL == null ? "" : baseURL;
+        Set<String> res = new LinkedHashSet<>();
+        for (String dir : segments.directories())
+            res.add(base + dir);
+        return res;
+    }
+
+    public synchronized void putResource(String url) {
+        segments = segments.append(Collections.singletonList(url));
+    }
+
+    /**
+     * Add many segments at once, the ones already present are ignored.
+     */
+    public synchronized void putResources(Collection<String> urls) {
+        segments = segments.append(new ArrayList<>(urls));
+    }
+
+    /**
+     * Add the segments of a SegmentTemplate or of a newer version of the
+     * manifest. Templates are kept unexpanded whenever possible.
+     * @return Number of segments that were not present, added at the end.
+     */
+    public synchronized int putSegments(Segments added) {
+        int before = segments.size();
+        segments = segments.append(added);
+        return segments.size() - before;
     }
 
     public void setDependency(Integer dep) {
@@ -1,8 +1,9 @@
 package es.um.app.icn;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
@@ -12,33 +13,87 @@ import java.util.stream.Collectors;
 public class ResourceHTTPDASH extends ResourceHTTP {
     public static String DESCRIPTION = "DASH";
     ConcurrentHashMap<Integer, RepresentationDASH> representations;
-    ConcurrentHashMap<String, Integer> dependencyIdxURI;
+    /** Segments of this resource, possibly shared with the other resources of the ICN */
+    private final SegmentIndex segments;
+    /** Completed once the manifest is parsed, exceptionally if it could not be */
+    private final CompletableFuture<ResourceHTTPDASH> manifest = new CompletableFuture<>();
+    /** Set once the resource leaves the ICN, its segments are no longer indexed */
+    private boolean removed;
 
 
     public ResourceHTTPDASH(ResourceHTTP original) {
+        this(original, new SegmentIndex());
+    }
+
+    /**
+     * @param segments Index where the segments of the representations are
+     *                 put as they arrive.
+     */
+    public ResourceHTTPDASH(ResourceHTTP original, SegmentIndex segments) {
         this.setId(original.getId());
         this.setCaches(original.getCaches());
         this.setFullurl(original.getFullurl());
         this.setName(original.getName());
         this.setRequests(original.getRequests());
         representations = new ConcurrentHashMap<>();
-        dependencyIdxURI = new ConcurrentHashMap<>();
+        this.segments = segments;
     }
 
     public void putRepresentation(Integer id, RepresentationDASH r) {
-        if(!representations.containsKey(id)) {
-            representations.put(id, r);
-            r.getFullUrls().parallelStream().forEach(x -> {
-                dependencyIdxURI.put(x, r.getId());
-            });
+        synchronized (this) {
+            if (representations.putIfAbsent(id, r) == null && !removed)
+                segments.put(this, r);
+        }
+    }
+
+    /**
+     * Merge a representation of a newer version of the manifest.
+     * @return Full URLs of the segments that were not known, in order.
+     */
+    public synchronized List<String> mergeRepresentation(RepresentationDASH parsed) {
+        if (removed)
+            return Collections.emptyList();
+        RepresentationDASH r = representations.putIfAbsent(parsed.getId(), parsed);
+        if (r == null) {
+            segments.put(this, parsed);
+            return parsed.getFullUrls();
         }
+        int added = r.putSegments(parsed.getSegments());
+        if (added == 0)
+            return Collections.emptyList();
+        // New segments may be in new directories
+        segments.put(this, r);
+        List<String> urls = r.getFullUrls();
+        return urls.subList(urls.size() - added, urls.size());
+    }
+
+    /**
+     * @return Future completed with this resource once the manifest has
+     * been parsed, to chain the actions needing every representation.
+     */
+    public CompletableFuture<ResourceHTTPDASH> manifest() {
+        return manifest;
+    }
+
+    /**
+     * @return true while the manifest is being retrieved and parsed, when
+     * the representations may be incomplete.
+     */
+    public boolean isManifestPending() {
+        return !manifest.isDone();
     }
 
     public RepresentationDASH representation4URL(Resource res) {
-        Optional<RepresentationDASH> optionalRepresentationDASH = representations.values().parallelStream()
-                .filter(x -> x.containsResource(res.getFullurl()))
-                .findFirst();
-        return optionalRepresentationDASH.orElse(null);
+        SegmentIndex.Segment segment = segment(res.getFullurl());
+        return segment == null ? null : representations.get(segment.representation);
+    }
+
+    /**
+     * @return The segment of this resource with the given full URL or null.
+     */
+    public SegmentIndex.Segment segment(String uri) {
+        SegmentIndex.Segment segment = segments.get(uri);
+        return segment != null && segment.resource == this ? segment : null;
     }
 
     public RepresentationDASH getRepresentation(Integer id) {
@@ -50,15 +105,38 @@ public class ResourceHTTPDASH extends ResourceHTTP {
     public List<Integer> getRepresentationIds() {return representations.keySet().stream().sorted().collect(Collectors.toList());}
 
     public Integer getURLRepresentationId(String uri) {
-        return dependencyIdxURI.getOrDefault(uri, -1);
+        SegmentIndex.Segment segment = segment(uri);
+        return segment == null ? -1 : segment.representation;
     }
 
     public ConcurrentHashMap<String, Integer> getFullUrlsRepresentationIds() {
-        return new ConcurrentHashMap<>(dependencyIdxURI);
+        ConcurrentHashMap<String, Integer> res = new ConcurrentHashMap<>();
+        for (RepresentationDASH r : representations.values()) {
+            for (String url : r.getFullUrls())
+                res.put(url, r.getId());
+        }
+        return res;
     }
 
     public boolean containsURL(String uri) {
-        return dependencyIdxURI.containsKey(uri);
+        return segment(uri) != null;
+    }
+
+    /**
+     * Forget the segments of this resource, once it is no longer part of
+     * the ICN. Representations parsed later are not indexed either.
+     */
+    public synchronized void removeSegments() {
+        removed = true;
+        segments.remove(this);
+    }
+
+    /**
+     * @return Whether the resource left the ICN, e.g. while its manifest
+     * was being retrieved.
+     */
+    public synchronized boolean isRemoved() {
+        return removed;
     }
 
     @Override
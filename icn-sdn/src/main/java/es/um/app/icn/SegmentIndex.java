@@ -0,0 +1,133 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Full segment URL to the DASH resource, representation and segment it
+ * belongs to. Shared by the DASH resources of an ICN and filled as their
+ * representations are put, so a segment request is classified with one
+ * map lookup. Segments are not indexed one by one: the index maps the
+ * directory of a URL to the representations with segments there, which
+ * find the segment in their compact storage.
+ */
+public class SegmentIndex {
+
+    /** Representations by segment directory, most recently put last */
+    private final ConcurrentHashMap<String, Entry[]> directories = new ConcurrentHashMap<>();
+
+    public static final class Segment {
+        public final ResourceHTTPDASH resource;
+        public final int representation;
+        /** Position of the segment in its representation, from 0 */
+        public final int number;
+
+        Segment(ResourceHTTPDASH resource, int representation, int number) {
+            this.resource = resource;
+            this.representation = representation;
+            this.number = number;
+        }
+    }
+
+    private static final class Entry {
+        private final ResourceHTTPDASH resource;
+        private final RepresentationDASH representation;
+
+        Entry(ResourceHTTPDASH resource, RepresentationDASH representation) {
+            this.resource = resource;
+            this.representation = representation;
+        }
+    }
+
+    /**
+     * Index every segment of a representation, also the ones added to it
+     * later in the same directories. A URL already indexed for another
+     * resource now points to this one.
+     */
+    public void put(ResourceHTTPDASH resource, RepresentationDASH representation) {
+        Entry entry = new Entry(resource, representation);
+        for (String dir : representation.getDirectories()) {
+            directories.merge(dir, new Entry[]{entry}, (current, added) -> {
+                List<Entry> entries = new ArrayList<>(current.length + 1);
+                for (Entry e : current) {
+                    if (e.representation != representation)
+                        entries.add(e);
+                }
+                entries.add(entry);
+                return entries.toArray(new Entry[0]);
+            });
+        }
+    }
+
+    /**
+     * @return The segment with the given full URL or null.
+     */
+    public Segment get(String url) {
+        if (url == null)
+            return null;
+        Entry[] entries = directories.get(url.substring(0, url.lastIndexOf('/') + 1));
+        if (entries == null)
+            return null;
+        for (int i = entries.length - 1; i >= 0; i--) {
+            int number = entries[i].representation.indexOf(url);
+            if (number >= 0)
+                return new Segment(entries[i].resource, entries[i].representation.getId(), number);
+        }
+        return null;
+    }
+
+    /**
+     * Forget every segment of a resource.
+     */
+    public void remove(ResourceHTTPDASH resource) {
+        for (String dir : directories.keySet()) {
+            directories.computeIfPresent(dir, (d, current) -> {
+                List<Entry> entries = new ArrayList<>(current.length);
+                for (Entry e : current) {
+                    if (e.resource != resource)
+                        entries.add(e);
+                }
+                return entries.isEmpty() ? null : entries.toArray(new Entry[0]);
+            });
+        }
+    }
+
+    /**
+     * @return Number of segments indexed.
+     */
+    public int size() {
+        Set<RepresentationDASH> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        int size = 0;
+        for (Entry[] entries : directories.values()) {
+            for (Entry e : entries) {
+                if (seen.add(e.representation))
+                    size += e.representation.getSegmentCount();
+            }
+        }
+        return size;
+    }
+}
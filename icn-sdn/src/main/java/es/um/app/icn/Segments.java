@@ -0,0 +1,561 @@
+/**
+ *    Copyright 2017, University of Murcia (Spain)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ *
+ *    Author:
+ *      Jordi Ortiz
+ *      <jordi.ortiz@um.es>
+ **/
+
+package es.um.app.icn;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable sequence of the segment paths of a representation, relative to
+ * its base URL. Long VOD assets have tens of thousands of segments, so
+ * they are not kept as one String each:
+ * <ul>
+ *     <li>Paths numbered consecutively (seg-1.m4s, seg-2.m4s...) are kept
+ *     as a template: prefix, first number, zero padding and suffix.</li>
+ *     <li>Times of a SegmentTimeline are kept as runs of start time,
+ *     duration and count.</li>
+ *     <li>Any other list is packed into one array of chars with the offset
+ *     of every path and an open addressing hash table to find them.</li>
+ * </ul>
+ * Paths are only built when asked for.
+ */
+public abstract class Segments {
+
+    public static final Segments EMPTY = new Packed(new ArrayList<>());
+
+    /**
+     * @param paths Segment paths in order, duplicates are dropped.
+     */
+    public static Segments of(List<String> paths) {
+        Set<String> distinct = new LinkedHashSet<>(paths);
+        List<String> list = distinct.size() == paths.size() ? paths : new ArrayList<>(distinct);
+        Segments template = Template.detect(list);
+        return template != null ? template : new Packed(list);
+    }
+
+    /**
+     * Segments prefix + number + suffix numbered from first, as written by
+     * a SegmentTemplate with $Number$.
+     * @param width Zero padding of the number, 0 for none.
+     */
+    public static Segments numbered(String prefix, String suffix, long first, int count, int width) {
+        if (count <= 0)
+            return EMPTY;
+        Template t = new Template(prefix, suffix, first, count, width);
+        // Numbers in a directory would give one directory per segment
+        return suffix.indexOf('/') < 0 ? t : new Packed(t.paths());
+    }
+
+    /**
+     * Segments prefix + time + suffix, as written by a SegmentTemplate with
+     * $Time$ and a SegmentTimeline.
+     * @param starts Start time of every run of segments, increasing.
+     * @param durations Duration of the segments of every run.
+     * @param counts Number of segments of every run.
+     * @param width Zero padding of the time, 0 for none.
+     */
+    public static Segments timeline(String prefix, String suffix, int width,
+                                    long[] starts, long[] durations, int[] counts) {
+        Timeline t = new Timeline(prefix, suffix, width, starts, durations, counts);
+        if (t.size() == 0)
+            return EMPTY;
+        return suffix.indexOf('/') < 0 ? t : new Packed(t.paths());
+    }
+
+    /**
+     * @return These segments followed by the new ones not already present.
+     */
+    public Segments append(List<String> paths) {
+        if (paths.isEmpty())
+            return this;
+        List<String> all = new ArrayList<>(size() + paths.size());
+        all.addAll(paths());
+        all.addAll(paths);
+        return of(all);
+    }
+
+    /**
+     * @return These segments followed by the ones of added not already
+     * present. Templates and timelines continuing these ones are merged
+     * without expanding them.
+     */
+    public Segments append(Segments added) {
+        if (added.size() == 0)
+            return this;
+        if (size() == 0)
+            return added;
+        Segments merged = extend(added);
+        if (merged != null)
+            return merged;
+        List<String> paths = new ArrayList<>();
+        for (String p : added.paths()) {
+            if (indexOf(p) < 0)
+                paths.add(p);
+        }
+        return append(paths);
+    }
+
+    /**
+     * @return These segments continued by added or null if they cannot be
+     * merged without expanding them.
+     */
+    Segments extend(Segments added) {
+        return null;
+    }
+
+    public abstract int size();
+
+    /**
+     * @return Path of the i-th segment.
+     */
+    public abstract String path(int i);
+
+    /**
+     * @return Position of the segment whose path is the end of s from the
+     * given offset, -1 if there is none.
+     */
+    public abstract int indexOf(CharSequence s, int from);
+
+    public int indexOf(String path) {
+        return indexOf(path, 0);
+    }
+
+    /**
+     * @return Directories of the paths, i.e. everything up to the last '/',
+     * "" for paths without one.
+     */
+    public abstract Set<String> directories();
+
+    /**
+     * @return Lazy view of every path.
+     */
+    public List<String> paths() {
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                return path(index);
+            }
+
+            @Override
+            public int size() {
+                return Segments.this.size();
+            }
+        };
+    }
+
+    private static String directory(CharSequence path) {
+        for (int i = path.length() - 1; i >= 0; i--) {
+            if (path.charAt(i) == '/')
+                return path.subSequence(0, i + 1).toString();
+        }
+        return "";
+    }
+
+    /**
+     * @return Path prefix + n + suffix, n zero padded to width digits.
+     */
+    static String format(String prefix, long n, int width, String suffix) {
+        String number = Long.toString(n);
+        StringBuilder sb = new StringBuilder(prefix.length() + Math.max(width, number.length()) + suffix.length());
+        sb.append(prefix);
+        for (int pad = number.length(); pad < width; pad++)
+            sb.append('0');
+        return sb.append(number).append(suffix).toString();
+    }
+
+    /**
+     * @return Number of s from the given offset as written by format, -1
+     * if it is not prefix + number + suffix with that padding.
+     */
+    static long number(CharSequence s, int from, String prefix, String suffix, int width) {
+        int len = s.length() - from;
+        int digits = len - prefix.length() - suffix.length();
+        if (digits <= 0 || digits > 18)
+            return -1;
+        if (!regionMatches(s, from, prefix) ||
+                !regionMatches(s, s.length() - suffix.length(), suffix))
+            return -1;
+        int start = from + prefix.length();
+        long n = 0;
+        for (int i = start; i < start + digits; i++) {
+            char c = s.charAt(i);
+            if (!isDigit(c))
+                return -1;
+            n = n * 10 + (c - '0');
+        }
+        // Same padding as format writes
+        int natural = 1;
+        for (long rest = n / 10; rest > 0; rest /= 10)
+            natural++;
+        if (digits != Math.max(natural, width))
+            return -1;
+        return n;
+    }
+
+    private static boolean regionMatches(CharSequence s, int offset, String part) {
+        if (offset < 0 || offset + part.length() > s.length())
+            return false;
+        for (int i = 0; i < part.length(); i++) {
+            if (s.charAt(offset + i) != part.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Segments prefix + number + suffix, numbered from first to first +
+     * count - 1 and zero padded to width digits (0 for no padding).
+     */
+    static final class Template extends Segments {
+        private final String prefix;
+        private final String suffix;
+        private final long first;
+        private final int count;
+        private final int width;
+
+        Template(String prefix, String suffix, long first, int count, int width) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.first = first;
+            this.count = count;
+            this.width = width;
+        }
+
+        /**
+         * @return The template generating exactly these paths or null.
+         */
+        static Template detect(List<String> paths) {
+            if (paths.size() < 2)
+                return null;
+            String p0 = paths.get(0);
+            int lastSlash = p0.lastIndexOf('/');
+            // Try the digit runs of the file name from the last one
+            int end = p0.length();
+            while (end > lastSlash + 1) {
+                while (end > lastSlash + 1 && !isDigit(p0.charAt(end - 1)))
+                    end--;
+                int start = end;
+                while (start > lastSlash + 1 && isDigit(p0.charAt(start - 1)))
+                    start--;
+                if (start == end)
+                    break;
+                Template t = candidate(paths, p0, start, end);
+                if (t != null)
+                    return t;
+                end = start;
+            }
+            return null;
+        }
+
+        private static Template candidate(List<String> paths, String p0, int start, int end) {
+            // Longer numbers do not fit in a long
+            if (end - start > 18)
+                return null;
+            String digits = p0.substring(start, end);
+            int width = digits.length() > 1 && digits.charAt(0) == '0' ? digits.length() : 0;
+            Template t = new Template(p0.substring(0, start), p0.substring(end),
+                    Long.parseLong(digits), paths.size(), width);
+            for (int i = 1; i < paths.size(); i++) {
+                if (number(paths.get(i), 0, t.prefix, t.suffix, t.width) != t.first + i)
+                    return null;
+            }
+            return t;
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+        @Override
+        public String path(int i) {
+            if (i < 0 || i >= count)
+                throw new IndexOutOfBoundsException("Segment " + i + " of " + count);
+            return format(prefix, first + i, width, suffix);
+        }
+
+        @Override
+        public int indexOf(CharSequence s, int from) {
+            long n = number(s, from, prefix, suffix, width);
+            if (n < first || n >= first + count)
+                return -1;
+            return (int) (n - first);
+        }
+
+        @Override
+        Segments extend(Segments added) {
+            if (!(added instanceof Template))
+                return null;
+            Template t = (Template) added;
+            if (!t.prefix.equals(prefix) || !t.suffix.equals(suffix) || t.width != width ||
+                    t.first < first || t.first > first + count)
+                return null;
+            long end = Math.max(first + count, t.first + t.count);
+            if (end - first > Integer.MAX_VALUE)
+                return null;
+            return end == first + count ? this : new Template(prefix, suffix, first, (int) (end - first), width);
+        }
+
+        @Override
+        public Set<String> directories() {
+            Set<String> res = new LinkedHashSet<>();
+            res.add(directory(prefix));
+            return res;
+        }
+    }
+
+    /**
+     * Segments prefix + time + suffix. The times come in runs of segments
+     * of the same duration, as in a SegmentTimeline, and the position of a
+     * time is found with a binary search over the runs.
+     */
+    static final class Timeline extends Segments {
+        private final String prefix;
+        private final String suffix;
+        private final int width;
+        private final long[] starts;
+        private final long[] durations;
+        /** Position of the first segment of every run plus the total */
+        private final int[] firsts;
+
+        Timeline(String prefix, String suffix, int width, long[] starts, long[] durations, int[] counts) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.width = width;
+            this.starts = starts;
+            this.durations = durations;
+            this.firsts = new int[counts.length + 1];
+            for (int i = 0; i < counts.length; i++)
+                firsts[i + 1] = firsts[i] + counts[i];
+        }
+
+        @Override
+        public int size() {
+            return firsts[firsts.length - 1];
+        }
+
+        @Override
+        public String path(int i) {
+            if (i < 0 || i >= size())
+                throw new IndexOutOfBoundsException("Segment " + i + " of " + size());
+            int run = Arrays.binarySearch(firsts, i);
+            if (run < 0)
+                run = -run - 2;
+            // Skip empty runs
+            while (firsts[run + 1] == i)
+                run++;
+            return format(prefix, starts[run] + (i - firsts[run]) * durations[run], width, suffix);
+        }
+
+        @Override
+        public int indexOf(CharSequence s, int from) {
+            long t = number(s, from, prefix, suffix, width);
+            if (t < 0)
+                return -1;
+            int run = Arrays.binarySearch(starts, t);
+            if (run < 0)
+                run = -run - 2;
+            if (run < 0)
+                return -1;
+            long offset = t - starts[run];
+            if (offset % durations[run] != 0)
+                return -1;
+            long i = firsts[run] + offset / durations[run];
+            return i < firsts[run + 1] ? (int) i : -1;
+        }
+
+        private long end() {
+            int last = starts.length - 1;
+            return starts[last] + durations[last] * (firsts[last + 1] - firsts[last]);
+        }
+
+        @Override
+        Segments extend(Segments added) {
+            if (!(added instanceof Timeline))
+                return null;
+            Timeline t = (Timeline) added;
+            if (!t.prefix.equals(prefix) || !t.suffix.equals(suffix) || t.width != width)
+                return null;
+            List<long[]> runs = new ArrayList<>();
+            for (int i = 0; i < starts.length; i++)
+                runs.add(new long[]{starts[i], durations[i], firsts[i + 1] - firsts[i]});
+            long end = end();
+            for (int i = 0; i < t.starts.length; i++) {
+                long start = t.starts[i];
+                long d = t.durations[i];
+                long count = t.firsts[i + 1] - t.firsts[i];
+                if (start + d * count <= end)
+                    continue;
+                if (start < end) {
+                    // Overlaps the known segments: keep the new ones only if aligned
+                    if ((end - start) % d != 0)
+                        return null;
+                    count -= (end - start) / d;
+                    start = end;
+                }
+                long[] last = runs.get(runs.size() - 1);
+                if (last[1] == d && last[0] + last[1] * last[2] == start)
+                    last[2] += count;
+                else
+                    runs.add(new long[]{start, d, count});
+                end = start + d * count;
+            }
+            if ((long) size() + t.size() > Integer.MAX_VALUE)
+                return null;
+            long[] newStarts = new long[runs.size()];
+            long[] newDurations = new long[runs.size()];
+            int[] counts = new int[runs.size()];
+            for (int i = 0; i < runs.size(); i++) {
+                newStarts[i] = runs.get(i)[0];
+                newDurations[i] = runs.get(i)[1];
+                counts[i] = (int) runs.get(i)[2];
+            }
+            return new Timeline(prefix, suffix, width, newStarts, newDurations, counts);
+        }
+
+        @Override
+        public Set<String> directories() {
+            Set<String> res = new LinkedHashSet<>();
+            res.add(directory(prefix));
+            return res;
+        }
+    }
+
+    /**
+     * Any list of paths, packed. Paths with only ISO-8859-1 chars (all of
+     * them in practice) take one byte per char.
+     */
+    static final class Packed extends Segments {
+        private final byte[] latin1;
+        private final char[] chars;
+        /** Start of every path plus the end of the last one */
+        private final int[] offsets;
+        /** Position + 1 of the path hashed to every slot, 0 if empty */
+        private final int[] table;
+        private final Set<String> directories;
+
+        Packed(List<String> paths) {
+            int total = 0;
+            boolean narrow = true;
+            for (String p : paths) {
+                total += p.length();
+                for (int i = 0; i < p.length() && narrow; i++)
+                    narrow = p.charAt(i) <= 0xFF;
+            }
+            latin1 = narrow ? new byte[total] : null;
+            chars = narrow ? null : new char[total];
+            offsets = new int[paths.size() + 1];
+            table = new int[tableSize(paths.size())];
+            directories = new LinkedHashSet<>();
+            int pos = 0;
+            for (int i = 0; i < paths.size(); i++) {
+                String p = paths.get(i);
+                offsets[i] = pos;
+                for (int c = 0; c < p.length(); c++) {
+                    if (narrow)
+                        latin1[pos++] = (byte) p.charAt(c);
+                    else
+                        chars[pos++] = p.charAt(c);
+                }
+                int slot = hash(p, 0) & (table.length - 1);
+                while (table[slot] != 0)
+                    slot = (slot + 1) & (table.length - 1);
+                table[slot] = i + 1;
+                directories.add(directory(p));
+            }
+            offsets[paths.size()] = pos;
+        }
+
+        private static int tableSize(int n) {
+            int size = 2;
+            while (size < n * 2)
+                size <<= 1;
+            return size;
+        }
+
+        private static int hash(CharSequence s, int from) {
+            int h = 0;
+            for (int i = from; i < s.length(); i++)
+                h = 31 * h + s.charAt(i);
+            return h ^ (h >>> 16);
+        }
+
+        private char charAt(int pos) {
+            return latin1 != null ? (char) (latin1[pos] & 0xFF) : chars[pos];
+        }
+
+        @Override
+        public int size() {
+            return offsets.length - 1;
+        }
+
+        @Override
+        public String path(int i) {
+            if (latin1 != null)
+                return new String(latin1, offsets[i], offsets[i + 1] - offsets[i],
+                        StandardCharsets.ISO_8859_1);
+            return new String(chars, offsets[i], offsets[i + 1] - offsets[i]);
+        }
+
+        @Override
+        public int indexOf(CharSequence s, int from) {
+            int slot = hash(s, from) & (table.length - 1);
+            while (table[slot] != 0) {
+                int i = table[slot] - 1;
+                if (equalsAt(i, s, from))
+                    return i;
+                slot = (slot + 1) & (table.length - 1);
+            }
+            return -1;
+        }
+
+        private boolean equalsAt(int i, CharSequence s, int from) {
+            int start = offsets[i];
+            int len = offsets[i + 1] - start;
+            if (s.length() - from != len)
+                return false;
+            for (int c = 0; c < len; c++) {
+                if (charAt(start + c) != s.charAt(from + c))
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        public Set<String> directories() {
+            return directories;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + size() + " segments]";
+    }
+}
@@ -49,6 +49,29 @@ public class UtilIcn {
         return Integer.parseInt(parts[1]);
     }
 
+    /**
+     * Parse a "xx:xx:xx:xx:xx:xx" MAC address without allocating.
+     * @return The address in the 48 lower bits or -1 if malformed.
+     */
+    public static long macToLong(String mac) {
+        if (mac == null || mac.length() != 17)
+            return -1;
+        long res = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = mac.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':' && c != '-')
+                    return -1;
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0)
+                return -1;
+            res = (res << 4) | digit;
+        }
+        return res;
+    }
+
     private final static char[] hexArray = "0123456789ABCDEF".toCharArray();
     public static String bytesToHex(byte[] bytes) {
         char[] hexChars = new char[bytes.length * 2];
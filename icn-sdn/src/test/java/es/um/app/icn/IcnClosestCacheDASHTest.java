@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests of the asynchronous manifest retrieval and the segment index.
+ */
+public class IcnClosestCacheDASHTest {
+
+    private HttpServer server;
+    /** Holds the manifest response until released */
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        byte[] mpd = MpdStreamParserTest.manifest(2, 10).getBytes(StandardCharsets.UTF_8);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(200, mpd.length);
+            exchange.getResponseBody().write(mpd);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        server.stop(0);
+    }
+
+    @Test
+    public void manifestIsParsedInTheBackground() throws Exception {
+        IcnClosestCacheDASH icn = new IcnClosestCacheDASH();
+        ResourceHTTP mpd = new ResourceHTTP("icn:bbb", "bbb.mpd");
+        mpd.setFullurl("http://127.0.0.1:" + server.getAddress().getPort() + "/bbb.mpd");
+
+        long start = System.nanoTime();
+        ResourceHTTPDASH res = (ResourceHTTPDASH) icn.createResource(mpd, null);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        assertSame(res, icn.retrieveResource("bbb.mpd"));
+        assertTrue(res.isManifestPending());
+        assertEquals(0, (int) res.getRepresentationCount());
+
+        release.countDown();
+        assertSame(res, res.manifest().get(10, TimeUnit.SECONDS));
+        assertFalse(res.isManifestPending());
+        assertEquals(2, (int) res.getRepresentationCount());
+
+        // Segments are classified with the ICN index
+        SegmentIndex.Segment segment = icn.segmentIndex.get("http://video.example.com/bbb/layer1/seg-3.m4s");
+        assertSame(res, segment.resource);
+        assertEquals(1, segment.representation);
+        assertEquals(3, segment.number);
+        assertEquals(1, (int) res.getURLRepresentationId("http://video.example.com/bbb/layer1/seg-3.m4s"));
+        assertEquals(10, icn.segmentIndex.size());
+
+        icn.removeResource("bbb.mpd");
+        assertNull(icn.segmentIndex.get("http://video.example.com/bbb/layer1/seg-3.m4s"));
+        assertFalse(res.containsURL("http://video.example.com/bbb/layer1/seg-3.m4s"));
+    }
+
+    @Test
+    public void resourceRemovedWhileTheManifestIsFetched() throws Exception {
+        IcnClosestCacheDASH icn = new IcnClosestCacheDASH();
+        ResourceHTTP mpd = new ResourceHTTP("icn:bbb", "bbb.mpd");
+        mpd.setFullurl("http://127.0.0.1:" + server.getAddress().getPort() + "/bbb.mpd");
+        try {
+            ResourceHTTPDASH res = (ResourceHTTPDASH) icn.createResource(mpd, null);
+            icn.removeResource("bbb.mpd");
+            assertTrue(res.isRemoved());
+
+            release.countDown();
+            assertSame(res, res.manifest().get(10, TimeUnit.SECONDS));
+            assertEquals(2, (int) res.getRepresentationCount());
+            // Its segments do not come back into the index of the ICN
+            assertEquals(0, icn.segmentIndex.size());
+            assertFalse(res.containsURL("http://video.example.com/bbb/layer1/seg-3.m4s"));
+            assertEquals(0, icn.refresher.size());
+        } finally {
+            icn.shutdown();
+        }
+    }
+}
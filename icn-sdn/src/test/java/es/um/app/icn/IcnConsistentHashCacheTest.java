@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests of the consistent hashing cache selection.
+ */
+public class IcnConsistentHashCacheTest {
+
+    private static final int RESOURCES = 10000;
+
+    private static Cache cache(IcnConsistentHashCache icn, String name) {
+        Cache cache = new Cache();
+        cache.setName(name);
+        icn.createCache(cache);
+        return cache;
+    }
+
+    private static Map<String, Cache> place(IcnConsistentHashCache icn) {
+        Map<String, Cache> placement = new HashMap<>();
+        for (int i = 0; i < RESOURCES; i++) {
+            String uri = "video.example.com/seg-" + i + ".m4s";
+            placement.put(uri, icn.findCacheForNewResource(null, uri, null, null));
+        }
+        return placement;
+    }
+
+    @Test
+    public void onlyTheKeysOfTheNewCacheMove() {
+        IcnConsistentHashCache icn = new IcnConsistentHashCache();
+        assertNull(icn.findCacheForNewResource(null, "seg-1.m4s", null, null));
+        for (int i = 0; i < 4; i++)
+            cache(icn, "cache" + i);
+        Map<String, Cache> before = place(icn);
+        assertEquals(before, place(icn));
+
+        Cache added = cache(icn, "cache4");
+        Map<String, Cache> after = place(icn);
+        int moved = 0;
+        for (Map.Entry<String, Cache> e : after.entrySet()) {
+            if (e.getValue() != before.get(e.getKey())) {
+                assertSame(added, e.getValue());
+                moved++;
+            }
+        }
+        // About 1/5 of the resources
+        assertTrue(moved > RESOURCES / 5 - RESOURCES / 25 && moved < RESOURCES / 5 + RESOURCES / 25);
+
+        icn.removeCache("cache4");
+        assertEquals(before, place(icn));
+    }
+
+    @Test
+    public void loadIsBounded() {
+        IcnConsistentHashCache icn = new IcnConsistentHashCache();
+        Cache[] caches = new Cache[4];
+        for (int i = 0; i < caches.length; i++)
+            caches[i] = cache(icn, "cache" + i);
+        Map<Cache, Integer> loads = new HashMap<>();
+        for (int i = 0; i < RESOURCES; i++) {
+            String uri = "video.example.com/seg-" + i + ".m4s";
+            ResourceHTTP res = new ResourceHTTP(uri, uri);
+            Cache c = icn.findCacheForNewResource(null, uri, null, null);
+            res.addCache(c);
+            icn.createResource(res, null);
+            loads.merge(c, 1, Integer::sum);
+        }
+        for (Cache c : caches)
+            assertTrue(loads.get(c) <= Math.ceil(IcnConsistentHashCache.BALANCE * RESOURCES / caches.length));
+        assertEquals(RESOURCES, (long) icn.retrieveMetrics().get("hostedResources"));
+
+        icn.removeResource("video.example.com/seg-0.m4s");
+        assertEquals(RESOURCES - 1, (long) icn.retrieveMetrics().get("hostedResources"));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.onosproject.net.DeviceId;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Set of tests of the placement of SVC layers over the caches.
+ */
+public class IcnDistributedCacheSVCDASHTest {
+
+    private static final DeviceId SW1 = DeviceId.deviceId("of:0000000000000001");
+    private static final DeviceId SW2 = DeviceId.deviceId("of:0000000000000002");
+
+    private final IcnDistributedCacheSVCDASH icn = new IcnDistributedCacheSVCDASH();
+    private final Cache[] caches = new Cache[3];
+    /** Whether the caches are as close to the first switch as to the second one */
+    private volatile boolean moved;
+
+    private static String url(int layer, int segment) {
+        return "http://video.example.com/bbb/layer" + layer + "/seg-" + segment + ".m4s";
+    }
+
+    private Cache find(int layer, DeviceId sw) {
+        return icn.findCacheForNewResource(null, url(layer, 0), sw, null);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        // Caches are closer to the first switch the lower their index, the opposite for the second one
+        icn.cacheRanking = new MiddleboxRanking<>((sw, c) -> {
+            int i = Integer.parseInt(c.getName().substring(5));
+            return sw.equals(SW1) && !moved ? i + 1 : 3 - i;
+        });
+        for (int i = 0; i < caches.length; i++) {
+            caches[i] = new Cache();
+            caches[i].setName("cache" + i);
+            icn.createCache(caches[i]);
+        }
+        ResourceHTTP mpd = new ResourceHTTP("icn:bbb", "bbb.mpd");
+        mpd.setFullurl("http://video.example.com/bbb/bbb.mpd");
+        ResourceHTTPDASH res = new ResourceHTTPDASH(mpd, icn.segmentIndex);
+        new MpdStreamParser().parse(new ByteArrayInputStream(
+                MpdStreamParserTest.manifest(5, 10).getBytes(StandardCharsets.UTF_8)),
+                r -> res.putRepresentation(r.getId(), r));
+        res.manifest().complete(res);
+    }
+
+    @Test
+    public void lowerLayersGoToTheClosestCaches() {
+        assertSame(caches[0], find(0, SW1));
+        assertSame(caches[0], find(1, SW1));
+        assertSame(caches[1], find(2, SW1));
+        assertSame(caches[1], find(3, SW1));
+        assertSame(caches[2], find(4, SW1));
+        // Every segment of a representation shares its cache
+        assertSame(caches[2], icn.findCacheForNewResource(null, url(4, 1), SW1, null));
+        // Clients behind another switch get their own placement
+        assertSame(caches[2], find(0, SW2));
+        assertSame(caches[0], find(4, SW2));
+        assertNull(icn.findCacheForNewResource(null, "http://video.example.com/other.m4s", SW1, null));
+    }
+
+    @Test
+    public void placementFollowsTheCaches() {
+        assertSame(caches[0], find(0, SW1));
+        icn.removeCache("cache0");
+        assertSame(caches[1], find(0, SW1));
+        assertSame(caches[1], find(2, SW1));
+        assertSame(caches[2], find(3, SW1));
+        icn.createCache(caches[0]);
+        assertSame(caches[0], find(0, SW1));
+        assertEquals(caches[2], find(4, SW1));
+    }
+
+    @Test
+    public void placementFollowsTheDistancesOfItsSwitch() {
+        assertSame(caches[0], find(0, SW1));
+        assertSame(caches[2], find(0, SW2));
+        moved = true;
+        // Distances of another switch keep the placement
+        icn.middleboxDistancesChanged(Collections.singleton(SW2));
+        assertSame(caches[0], find(0, SW1));
+        icn.middleboxDistancesChanged(Collections.singleton(SW1));
+        assertSame(caches[2], find(0, SW1));
+        assertSame(caches[0], find(4, SW1));
+        assertSame(caches[2], find(0, SW2));
+        moved = false;
+        icn.middleboxDistancesChanged(null);
+        assertSame(caches[0], find(0, SW1));
+    }
+}
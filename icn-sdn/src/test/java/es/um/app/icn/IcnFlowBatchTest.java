@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import org.junit.Test;
+import org.onosproject.core.DefaultApplicationId;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.flow.FlowRuleOperation;
+import org.onosproject.net.flow.FlowRuleOperations;
+import org.onosproject.net.flow.FlowRuleService;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests of the per request flow batches.
+ */
+public class IcnFlowBatchTest {
+
+    private final List<FlowRuleOperations> applied = new ArrayList<>();
+
+    /** Flow rule service only recording the operations applied */
+    private final FlowRuleService flowRuleService = (FlowRuleService) Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class<?>[]{FlowRuleService.class}, (proxy, method, args) -> {
+                if (method.getName().equals("apply"))
+                    applied.add((FlowRuleOperations) args[0]);
+                return null;
+            });
+
+    private static IcnFlowKey hop(String device, int clientPort) {
+        return IcnFlowKey.builder(DeviceId.deviceId(device))
+                .inPort(1).outPort(2)
+                .matchIpSrc(0x0a000001).matchIpDst(0xc0a80101)
+                .matchTcpSrc(clientPort).matchTcpDst(80)
+                .build();
+    }
+
+    private static IcnFlowBatch batch() {
+        IcnFlowBatch batch = new IcnFlowBatch(new DefaultApplicationId(1, "es.um.app.icn"), 3000);
+        batch.add(hop("of:0000000000000001", 40000), 60);
+        batch.add(hop("of:0000000000000002", 40000), 60);
+        batch.add(hop("of:0000000000000002", 40001), 0);
+        return batch;
+    }
+
+    @Test
+    public void oneOperationPerRequest() {
+        CompletableFuture<Boolean> done = batch().submit(flowRuleService);
+        assertEquals(1, applied.size());
+        List<Set<FlowRuleOperation>> stages = applied.get(0).stages();
+        assertEquals(1, stages.size());
+        assertEquals(3, stages.get(0).size());
+        for (FlowRuleOperation op : stages.get(0)) {
+            assertEquals(FlowRuleOperation.Type.ADD, op.type());
+            assertEquals(3000, op.rule().priority());
+        }
+        assertFalse(done.isDone());
+
+        applied.get(0).callback().onSuccess(applied.get(0));
+        assertTrue(done.join());
+    }
+
+    @Test
+    public void failureCompletesWithFalse() {
+        CompletableFuture<Boolean> done = batch().submit(flowRuleService);
+        applied.get(0).callback().onError(applied.get(0));
+        assertFalse(done.join());
+    }
+
+    @Test
+    public void emptyBatchCompletesRightAway() {
+        IcnFlowBatch batch = new IcnFlowBatch(new DefaultApplicationId(1, "es.um.app.icn"), 3000);
+        assertTrue(batch.submit(flowRuleService).join());
+        assertTrue(applied.isEmpty());
+    }
+
+    @Test
+    public void retransmissionAwaitsTheRulesInFlight() {
+        IcnFlowTable flows = new IcnFlowTable();
+        IcnFlowKey key = hop("of:0000000000000001", 40000);
+        IcnFlowBatch first = new IcnFlowBatch(new DefaultApplicationId(1, "es.um.app.icn"), 3000);
+        assertNull(flows.request(key, first.completion()));
+        first.add(key, 60);
+        CompletableFuture<Boolean> firstDone = first.submit(flowRuleService);
+
+        // The same rule requested again is not applied twice
+        IcnFlowBatch retransmit = new IcnFlowBatch(new DefaultApplicationId(1, "es.um.app.icn"), 3000);
+        IcnFlowKey other = hop("of:0000000000000002", 40000);
+        retransmit.await(flows.request(key, retransmit.completion()));
+        assertNull(flows.request(other, retransmit.completion()));
+        retransmit.add(other, 60);
+        CompletableFuture<Boolean> retransmitDone = retransmit.submit(flowRuleService);
+        assertEquals(2, applied.size());
+        assertEquals(1, applied.get(1).stages().get(0).size());
+
+        // Its own rules are confirmed first, the packet waits for the others
+        applied.get(1).callback().onSuccess(applied.get(1));
+        assertTrue(retransmit.completion().join());
+        assertFalse(retransmitDone.isDone());
+        applied.get(0).callback().onSuccess(applied.get(0));
+        assertTrue(firstDone.join());
+        assertTrue(retransmitDone.join());
+
+        // Once confirmed nothing is awaited
+        IcnFlowBatch later = new IcnFlowBatch(new DefaultApplicationId(1, "es.um.app.icn"), 3000);
+        CompletableFuture<Boolean> installation = flows.request(key, later.completion());
+        assertTrue(installation.isDone());
+        later.await(installation);
+        assertTrue(later.submit(flowRuleService).join());
+    }
+
+    @Test
+    public void failedRulesFailTheirWaitersUntilRemoved() {
+        IcnFlowTable flows = new IcnFlowTable();
+        IcnFlowKey key = hop("of:0000000000000001", 40000);
+        IcnFlowBatch abandoned = new IcnFlowBatch(new DefaultApplicationId(1, "es.um.app.icn"), 3000);
+        assertNull(flows.request(key, abandoned.completion()));
+        abandoned.add(key, 60);
+
+        IcnFlowBatch retransmit = new IcnFlowBatch(new DefaultApplicationId(1, "es.um.app.icn"), 3000);
+        retransmit.await(flows.request(key, retransmit.completion()));
+        CompletableFuture<Boolean> retransmitDone = retransmit.submit(flowRuleService);
+
+        // The path could not be completed, the batch is never submitted
+        abandoned.completion().complete(false);
+        assertFalse(retransmitDone.join());
+        assertFalse(flows.request(key, new CompletableFuture<>()).join());
+
+        // Once forgotten the rule is requested again
+        assertTrue(flows.removeExact(key));
+        assertNull(flows.request(key, new CompletableFuture<>()));
+        assertEquals(1, flows.size());
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import org.junit.Test;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.IPv4;
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.IpPrefix;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.TpPort;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.flow.DefaultTrafficSelector;
+import org.onosproject.net.flow.DefaultTrafficTreatment;
+import org.onosproject.net.flow.TrafficTreatment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests of the compact flow keys and the flow table.
+ */
+public class IcnFlowTableTest {
+
+    private static final DeviceId DEVICE = DeviceId.deviceId("of:0000000000000001");
+    private static final int CLIENT = 0x0a000001;
+    private static final int SERVER = 0xc0a80101;
+
+    private static IcnFlowKey toProxy(int clientPort) {
+        return IcnFlowKey.builder(DEVICE)
+                .inPort(1).outPort(2)
+                .matchIpSrc(CLIENT).matchIpDst(SERVER)
+                .matchTcpSrc(clientPort).matchTcpDst(80)
+                .rewriteIpDst(0x0a0000fe).rewriteMacDst(0x020000000005L).rewriteTcpDst(3128)
+                .build();
+    }
+
+    @Test
+    public void selectorAndTreatmentAsBuiltByOnos() {
+        IcnFlowKey key = toProxy(40000);
+        assertEquals(DefaultTrafficSelector.builder()
+                .matchEthType(Ethernet.TYPE_IPV4)
+                .matchIPProtocol(IPv4.PROTOCOL_TCP)
+                .matchTcpDst(TpPort.tpPort(80))
+                .matchTcpSrc(TpPort.tpPort(40000))
+                .matchInPort(PortNumber.portNumber(1))
+                .matchIPSrc(IpPrefix.valueOf(CLIENT, 32))
+                .matchIPDst(IpPrefix.valueOf(SERVER, 32))
+                .build(), key.selector());
+
+        TrafficTreatment expected = DefaultTrafficTreatment.builder()
+                .setIpDst(IpAddress.valueOf(0x0a0000fe))
+                .setEthDst(MacAddress.valueOf(0x020000000005L))
+                .setTcpDst(TpPort.tpPort(3128))
+                .setOutput(PortNumber.portNumber(2))
+                .build();
+        assertEquals(expected.allInstructions(), key.treatment().allInstructions());
+    }
+
+    @Test
+    public void decodeSelector() {
+        IcnFlowKey key = toProxy(40000);
+        IcnFlowKey decoded = IcnFlowKey.fromSelector(DEVICE, key.selector());
+        assertEquals(key, decoded);
+        assertEquals(key.hashCode(), decoded.hashCode());
+        assertFalse(key.sameActions(decoded));
+        assertNotEquals(key, IcnFlowKey.fromSelector(DeviceId.deviceId("of:0000000000000002"), key.selector()));
+    }
+
+    @Test
+    public void highPortsAreNotSignExtended() {
+        IcnFlowKey key = toProxy((short) 60000);
+        assertTrue(key.selector().toString().contains("TCP_SRC:60000"));
+        assertEquals(toProxy(60000), key);
+    }
+
+    @Test
+    public void duplicatesAndExpiration() {
+        IcnFlowTable table = new IcnFlowTable();
+        assertTrue(table.add(toProxy(40000)));
+        assertFalse(table.add(toProxy(40000)));
+        assertTrue(table.add(toProxy(40001)));
+        assertEquals(2, table.size());
+
+        IcnFlowKey expired = IcnFlowKey.fromSelector(DEVICE, toProxy(40000).selector());
+        assertTrue(toProxy(40000).sameActions(table.remove(expired)));
+        assertNull(table.remove(expired));
+        assertFalse(table.contains(toProxy(40000)));
+        assertTrue(table.contains(toProxy(40001)));
+    }
+
+    @Test
+    public void sameMatchNewActionsReplaces() {
+        IcnFlowTable table = new IcnFlowTable();
+        IcnFlowKey other = IcnFlowKey.builder(DEVICE)
+                .inPort(1).outPort(3)
+                .matchIpSrc(CLIENT).matchIpDst(SERVER)
+                .matchTcpSrc(40000).matchTcpDst(80)
+                .build();
+        assertTrue(table.add(toProxy(40000)));
+        assertTrue(table.add(other));
+        assertEquals(1, table.size());
+        assertFalse(table.contains(toProxy(40000)));
+        assertTrue(table.contains(other));
+    }
+
+    @Test
+    public void flowsAreCountedByRewrittenDestination() {
+        IcnFlowTable table = new IcnFlowTable();
+        assertTrue(table.add(toProxy(40000)));
+        assertTrue(table.add(toProxy(40001)));
+        assertFalse(table.add(toProxy(40001)));
+        assertEquals(2, table.towards(0x0a0000fe));
+        assertEquals(0, table.towards(SERVER));
+        table.remove(IcnFlowKey.fromSelector(DEVICE, toProxy(40000).selector()));
+        assertTrue(table.removeExact(toProxy(40001)));
+        assertEquals(0, table.towards(0x0a0000fe));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.onosproject.net.DeviceId;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests of the load aware cache selection.
+ */
+public class IcnLoadAwareCacheTest {
+
+    private static final DeviceId SW = DeviceId.deviceId("of:0000000000000001");
+
+    private final AtomicLong now = new AtomicLong(1000000);
+    private final IcnLoadAwareCache icn = new IcnLoadAwareCache(now::get);
+    private final Cache[] caches = new Cache[2];
+
+    @Before
+    public void setUp() {
+        // The first cache is the closest one
+        icn.cacheRanking = new MiddleboxRanking<>((sw, c) -> c == caches[0] ? 1 : 2);
+        for (int i = 0; i < caches.length; i++) {
+            caches[i] = new Cache();
+            caches[i].setName("cache" + i);
+            icn.createCache(caches[i]);
+        }
+    }
+
+    private Cache find() {
+        return icn.findCacheForNewResource(null, "video.example.com/seg.m4s", SW, null);
+    }
+
+    @Test
+    public void idleClosestCacheIsKept() {
+        for (int i = 0; i < 100; i++)
+            assertSame(caches[0], find());
+    }
+
+    @Test
+    public void saturatedCacheIsAvoided() {
+        assertTrue(icn.reportCacheUtilization("cache0", 1.0));
+        assertFalse(icn.reportCacheUtilization("unknown", 1.0));
+        assertSame(caches[1], find());
+        assertEquals(1, (long) icn.retrieveMetrics().get("divertedFromClosest"));
+        assertEquals(100, (long) icn.retrieveMetrics().get("cacheUtilizationPercent.cache0"));
+
+        // Old reports are not trusted
+        now.addAndGet(IcnLoadAwareCache.UTILIZATION_TTL_MS + 1);
+        assertSame(caches[0], find());
+    }
+
+    @Test
+    public void busyCacheIsAvoided() {
+        ResourceHTTP res = new ResourceHTTP("seg", "video.example.com/seg.m4s");
+        res.addCache(caches[0]);
+        icn.createResource(res, null);
+        for (int i = 0; i < 4000; i++)
+            icn.resourceRequested(res, null);
+        assertEquals(400, (long) icn.retrieveMetrics().get("cacheRequestRate.cache0"));
+        assertSame(caches[1], find());
+
+        // The rate decays once requests stop
+        now.addAndGet(IcnLoadAwareCache.RATE_WINDOW_MS);
+        assertEquals(147, (long) icn.retrieveMetrics().get("cacheRequestRate.cache0"));
+        now.addAndGet(10 * IcnLoadAwareCache.RATE_WINDOW_MS);
+        assertEquals(0, (long) icn.retrieveMetrics().get("cacheRequestRate.cache0"));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.IPv4;
+import org.onlab.packet.IpAddress;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.TCP;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packet-in classification: parsed Ethernet object graph against the raw
+ * frame classifier. Run with the GC profiler to get bytes allocated per
+ * packet (gc.alloc.rate.norm):
+ *   java -cp target/test-classes:... org.openjdk.jmh.Main IcnPacketClassifierBenchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IcnPacketClassifierBenchmark {
+
+    private static final int MIDDLEBOXES = 8;
+
+    private Ethernet parsed;
+    private ByteBuffer raw;
+    private List<Proxy> proxies;
+    private List<Cache> caches;
+    private MacAddress proxyMac;
+    private IpAddress proxyIp;
+
+    @Setup
+    public void setUp() {
+        parsed = IcnPacketClassifierTest.tcpPacket(80, (short) 0x02);
+        raw = ByteBuffer.wrap(parsed.serialize());
+        proxies = new ArrayList<>();
+        caches = new ArrayList<>();
+        for (int i = 0; i < MIDDLEBOXES; i++) {
+            Proxy p = new Proxy();
+            p.setMacaddr(String.format("00:00:00:00:01:%02x", i));
+            proxies.add(p);
+            Cache c = new Cache();
+            c.setMacaddr(String.format("00:00:00:00:02:%02x", i));
+            caches.add(c);
+        }
+        proxyMac = MacAddress.valueOf("00:00:00:00:01:00");
+        proxyIp = IpAddress.valueOf("10.0.0.100");
+    }
+
+    /** Classification as done before, on the parsed packet. */
+    @Benchmark
+    public Object parsedClassify() {
+        Ethernet ethPkt = parsed;
+        if (ethPkt.getEtherType() != Ethernet.TYPE_IPV4)
+            return null;
+        IPv4 ipv4Pkt = (IPv4) ethPkt.getPayload();
+        IpAddress inAddr = IpAddress.valueOf(ipv4Pkt.getSourceAddress());
+        IpAddress dstAddr = IpAddress.valueOf(ipv4Pkt.getDestinationAddress());
+        if (ipv4Pkt.getProtocol() != IPv4.PROTOCOL_TCP)
+            return null;
+        TCP tcpPkt = (TCP) ipv4Pkt.getPayload();
+        if (tcpPkt.getDestinationPort() != UtilIcn.HTTP_PORT || (tcpPkt.getFlags() & 0x2) == 0)
+            return null;
+        IcnFlow flow = new IcnFlow();
+        flow.setSmac(ethPkt.getSourceMAC().toString());
+        flow.setDmac(ethPkt.getDestinationMAC().toString());
+        for (Proxy p : proxies)
+            if (flow.getSmac().equalsIgnoreCase(p.getMacaddr()))
+                return null;
+        for (Cache c : caches)
+            if (flow.getDmac().equalsIgnoreCase(c.getMacaddr()))
+                return null;
+        return dstAddr.equals(inAddr) ? null : flow;
+    }
+
+    /** Classification on the raw frame. */
+    @Benchmark
+    public int rawClassify() {
+        int l3 = IcnPacketClassifier.classifyHttpSyn(raw, UtilIcn.HTTP_PORT);
+        if (l3 == IcnPacketClassifier.NOT_INTERESTING)
+            return l3;
+        long smac = IcnPacketClassifier.sourceMac(raw);
+        long dmac = IcnPacketClassifier.destinationMac(raw);
+        for (Proxy p : proxies)
+            if (UtilIcn.macToLong(p.getMacaddr()) == smac)
+                return -1;
+        for (Cache c : caches)
+            if (UtilIcn.macToLong(c.getMacaddr()) == dmac)
+                return -1;
+        return IcnPacketClassifier.sourceIp(raw, l3) ^ IcnPacketClassifier.sourcePort(raw, l3);
+    }
+
+    /** Rewrite towards the proxy as done before: clone and serialize. */
+    @Benchmark
+    public byte[] parsedRewrite() {
+        Ethernet inethpkt = (Ethernet) parsed.clone();
+        inethpkt.setDestinationMACAddress(proxyMac);
+        ((IPv4) inethpkt.getPayload()).setDestinationAddress(proxyIp.getIp4Address().toInt());
+        ((IPv4) inethpkt.getPayload()).resetChecksum();
+        ((TCP) inethpkt.getPayload().getPayload()).resetChecksum();
+        return inethpkt.serialize();
+    }
+
+    /** Rewrite towards the proxy on a copy of the raw frame. */
+    @Benchmark
+    public byte[] rawRewrite() {
+        return IcnPacketClassifier.rewriteDestination(raw, 14, proxyMac.toLong(),
+                proxyIp.getIp4Address().toInt());
+    }
+}
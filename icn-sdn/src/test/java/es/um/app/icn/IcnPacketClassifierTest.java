@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import org.junit.Test;
+import org.onlab.packet.Ethernet;
+import org.onlab.packet.IPv4;
+import org.onlab.packet.MacAddress;
+import org.onlab.packet.TCP;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Set of tests of the raw frame classifier.
+ */
+public class IcnPacketClassifierTest {
+
+    static Ethernet tcpPacket(int dstPort, short flags) {
+        TCP tcp = new TCP();
+        tcp.setSourcePort(40000);
+        tcp.setDestinationPort(dstPort);
+        tcp.setFlags(flags);
+        tcp.setSequence(12345);
+        tcp.setWindowSize((short) 29200);
+        tcp.setDataOffset((byte) 5);
+        IPv4 ip = new IPv4();
+        ip.setSourceAddress("10.0.0.1");
+        ip.setDestinationAddress("192.168.1.10");
+        ip.setProtocol(IPv4.PROTOCOL_TCP);
+        ip.setTtl((byte) 64);
+        ip.setPayload(tcp);
+        Ethernet eth = new Ethernet();
+        eth.setSourceMACAddress("00:00:00:00:00:01");
+        eth.setDestinationMACAddress("00:00:00:00:00:02");
+        eth.setEtherType(Ethernet.TYPE_IPV4);
+        eth.setPayload(ip);
+        return eth;
+    }
+
+    @Test
+    public void classifiesHttpSyn() {
+        ByteBuffer frame = ByteBuffer.wrap(tcpPacket(80, (short) 0x02).serialize());
+        int l3 = IcnPacketClassifier.classifyHttpSyn(frame, 80);
+        assertEquals(14, l3);
+        assertEquals(0x0a000001, IcnPacketClassifier.sourceIp(frame, l3));
+        assertEquals(40000, IcnPacketClassifier.sourcePort(frame, l3));
+        assertEquals(80, IcnPacketClassifier.destinationPort(frame, l3));
+        assertEquals(1L, IcnPacketClassifier.sourceMac(frame));
+        assertEquals(2L, IcnPacketClassifier.destinationMac(frame));
+    }
+
+    @Test
+    public void ignoresOtherTraffic() {
+        assertEquals(IcnPacketClassifier.NOT_INTERESTING, IcnPacketClassifier.classifyHttpSyn(
+                ByteBuffer.wrap(tcpPacket(80, (short) 0x10).serialize()), 80));
+        assertEquals(IcnPacketClassifier.NOT_INTERESTING, IcnPacketClassifier.classifyHttpSyn(
+                ByteBuffer.wrap(tcpPacket(443, (short) 0x02).serialize()), 80));
+    }
+
+    @Test
+    public void rewriteMatchesSerializer() {
+        Ethernet eth = tcpPacket(80, (short) 0x02);
+        ByteBuffer frame = ByteBuffer.wrap(eth.serialize());
+        int l3 = IcnPacketClassifier.classifyHttpSyn(frame, 80);
+
+        Ethernet expected = (Ethernet) eth.clone();
+        expected.setDestinationMACAddress(MacAddress.valueOf("00:00:00:00:00:aa"));
+        ((IPv4) expected.getPayload()).setDestinationAddress("10.0.0.100");
+        ((IPv4) expected.getPayload()).resetChecksum();
+        ((TCP) expected.getPayload().getPayload()).resetChecksum();
+
+        byte[] rewritten = IcnPacketClassifier.rewriteDestination(frame, l3, 0xaaL, 0x0a000064);
+        assertArrayEquals(expected.serialize(), rewritten);
+    }
+
+    @Test
+    public void parsesMacWithoutAllocation() {
+        assertEquals(0x0a0b0c0d0e0fL, UtilIcn.macToLong("0A:0b:0C:0d:0E:0f"));
+        assertEquals(-1L, UtilIcn.macToLong("0A:0b:0C:0d:0E"));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests of the sharded packet pipeline.
+ */
+public class IcnPacketPipelineTest {
+
+    private IcnPacketPipeline pipeline;
+
+    @After
+    public void tearDown() {
+        pipeline.shutdown();
+    }
+
+    @Test
+    public void sameFlowKeepsOrder() throws InterruptedException {
+        pipeline = new IcnPacketPipeline(4, 1024, IcnPacketPipeline.OverflowPolicy.BLOCK, 1000);
+        int flow = IcnPacketPipeline.flowHash(0x0a000001, 0x0a000002, 6, 40000, 80);
+        List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(500);
+        for (int i = 0; i < 500; i++) {
+            int seq = i;
+            assertTrue(pipeline.submit(flow, () -> {
+                seen.add(seq);
+                done.countDown();
+            }));
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 500; i++)
+            assertEquals(i, (int) seen.get(i));
+    }
+
+    @Test
+    public void fullShardDrops() throws InterruptedException {
+        pipeline = new IcnPacketPipeline(1, 1, IcnPacketPipeline.OverflowPolicy.DROP, 0);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        assertTrue(pipeline.submit(0, () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(pipeline.submit(0, () -> { }));
+        assertFalse(pipeline.submit(0, () -> { }));
+        assertEquals(1, pipeline.getDropped());
+        assertEquals(1, pipeline.getQueueDepth());
+        release.countDown();
+    }
+
+    @Test
+    public void shutdownRefusesTasks() throws InterruptedException {
+        pipeline = new IcnPacketPipeline(2, 16, IcnPacketPipeline.OverflowPolicy.DROP, 0);
+        assertFalse(pipeline.isShutdown());
+        CountDownLatch done = new CountDownLatch(1);
+        assertTrue(pipeline.submit(0, done::countDown));
+        pipeline.shutdown();
+        assertTrue(pipeline.isShutdown());
+        // Nobody would process it, the caller hands it to another pipeline
+        assertFalse(pipeline.submit(1, () -> { }));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, pipeline.getSubmitted());
+        assertEquals(0, pipeline.getDropped());
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+import org.onlab.graph.ScalarWeight;
+import org.onosproject.net.ConnectPoint;
+import org.onosproject.net.DefaultLink;
+import org.onosproject.net.DefaultPath;
+import org.onosproject.net.DeviceId;
+import org.onosproject.net.Link;
+import org.onosproject.net.Path;
+import org.onosproject.net.PortNumber;
+import org.onosproject.net.link.LinkEvent;
+import org.onosproject.net.provider.ProviderId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Set of tests of the path cache over a line topology s1 - s2 - s3.
+ */
+public class IcnPathCacheTest {
+
+    private static final ProviderId PID = new ProviderId("of", "es.um.app.icn");
+    private static final DeviceId S1 = DeviceId.deviceId("of:0000000000000001");
+    private static final DeviceId S2 = DeviceId.deviceId("of:0000000000000002");
+    private static final DeviceId S3 = DeviceId.deviceId("of:0000000000000003");
+    private static final Link L12 = link(S1, S2);
+    private static final Link L23 = link(S2, S3);
+    private static final Link L13 = link(S1, S3);
+
+    private final List<DeviceId[]> loads = new ArrayList<>();
+    private final IcnPathCache cache = new IcnPathCache(this::paths);
+
+    private static Link link(DeviceId src, DeviceId dst) {
+        return DefaultLink.builder().providerId(PID)
+                .src(new ConnectPoint(src, PortNumber.portNumber(2)))
+                .dst(new ConnectPoint(dst, PortNumber.portNumber(1)))
+                .type(Link.Type.DIRECT).build();
+    }
+
+    private Set<Path> paths(DeviceId src, DeviceId dst) {
+        loads.add(new DeviceId[]{src, dst});
+        if (src.equals(S1) && dst.equals(S2))
+            return ImmutableSet.of(new DefaultPath(PID, ImmutableList.of(L12), new ScalarWeight(1)));
+        if (src.equals(S1) && dst.equals(S3))
+            return ImmutableSet.of(new DefaultPath(PID, ImmutableList.of(L12, L23), new ScalarWeight(2)));
+        return Collections.emptySet();
+    }
+
+    @Test
+    public void pathsAreLoadedOnce() {
+        assertEquals(2, cache.hops(S1, S3));
+        assertEquals(2, cache.hops(S1, S3));
+        assertSame(cache.path(S1, S3), cache.path(S1, S3));
+        assertEquals(0, cache.hops(S1, S1));
+        assertEquals(IcnPathCache.UNREACHABLE, cache.hops(S3, S1));
+        assertNull(cache.path(S3, S1));
+
+        assertEquals(2, loads.size());
+        assertEquals(2, cache.getMisses());
+        assertEquals(4, cache.getHits());
+    }
+
+    @Test
+    public void linkRemovalOnlyDropsPathsUsingIt() {
+        cache.hops(S1, S2);
+        cache.hops(S1, S3);
+        assertEquals(ImmutableSet.of(S1),
+                cache.topologyChanged(ImmutableList.of(new LinkEvent(LinkEvent.Type.LINK_REMOVED, L23))));
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getInvalidations());
+
+        cache.hops(S1, S2);
+        assertEquals(2, loads.size());
+    }
+
+    @Test
+    public void newLinkDropsPathsThatCouldShrink() {
+        cache.hops(S1, S2);
+        cache.hops(S1, S3);
+        cache.hops(S3, S1);
+        cache.topologyChanged(ImmutableList.of(new LinkEvent(LinkEvent.Type.LINK_ADDED, L13)));
+        // Only the one hop path survives
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void unknownReasonsClearEverything() {
+        cache.hops(S1, S2);
+        cache.hops(S1, S3);
+        assertNull(cache.topologyChanged(null));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Set of tests of the live manifest refresh.
+ */
+public class ManifestRefresherTest {
+
+    private HttpServer server;
+    private volatile String manifest;
+    private final AtomicInteger notModified = new AtomicInteger();
+    /** Client ports of the connections the server got */
+    private final Set<Integer> connections = ConcurrentHashMap.newKeySet();
+
+    private static String live(String type, long first) {
+        return "<MPD type=\"" + type + "\" minimumUpdatePeriod=\"PT0.05S\">" +
+                "<BaseURL>http://cdn/live/</BaseURL><Period><AdaptationSet>" +
+                "<Representation id=\"1\" bandwidth=\"1\">" +
+                "<SegmentTemplate media=\"v1/$Time$.m4s\" timescale=\"90000\"><SegmentTimeline>" +
+                "<S t=\"" + first + "\" d=\"180000\" r=\"4\"/>" +
+                "</SegmentTimeline></SegmentTemplate></Representation>" +
+                "</AdaptationSet></Period></MPD>";
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        manifest = live("dynamic", 0);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            connections.add(exchange.getRemoteAddress().getPort());
+            String current = manifest;
+            String etag = "\"" + current.hashCode() + "\"";
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModified.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                byte[] body = current.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("ETag", etag);
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+            }
+            exchange.close();
+        });
+        server.createContext("/missing.mpd", exchange -> {
+            connections.add(exchange.getRemoteAddress().getPort());
+            byte[] body = "Not here".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(404, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void failedFetchesKeepTheConnection() throws Exception {
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        ManifestRefresher.Fetch first = ManifestRefresher.fetch(new URL(base + "/live.mpd"), null, null, r -> { });
+        for (int i = 0; i < 3; i++) {
+            try {
+                ManifestRefresher.fetch(new URL(base + "/missing.mpd"), null, null, r -> { });
+                fail("A missing manifest is an error");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("404"));
+            }
+        }
+        assertEquals(1, connections.size());
+        // This server closes the connection after a 304 anyway
+        assertFalse(ManifestRefresher.fetch(new URL(base + "/live.mpd"), first.etag, null, r -> { }).modified);
+    }
+
+    @Test
+    public void onlyNewSegmentsAreAnnounced() throws Exception {
+        URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/live.mpd");
+        ResourceHTTP base = new ResourceHTTP("icn:live", "live.mpd");
+        base.setFullurl(url.toString());
+        ResourceHTTPDASH res = new ResourceHTTPDASH(base);
+        ManifestRefresher.Fetch first = ManifestRefresher.fetch(url, null, null,
+                r -> res.putRepresentation(r.getId(), r));
+        assertTrue(first.dynamic);
+        assertEquals(50, first.updatePeriod);
+        assertEquals(5, res.getRepresentation(1).getSegmentCount());
+
+        List<String> added = new CopyOnWriteArrayList<>();
+        CountDownLatch announced = new CountDownLatch(1);
+        ManifestRefresher refresher = new ManifestRefresher(2, 10, (resource, rep, urls) -> {
+            added.addAll(urls);
+            announced.countDown();
+        });
+        try {
+            refresher.start(res, url, first);
+            assertEquals(1, refresher.size());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (notModified.get() == 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertTrue(notModified.get() > 0);
+            assertTrue(added.isEmpty());
+
+            // The window slides two segments
+            manifest = live("dynamic", 360000);
+            assertTrue(announced.await(5, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("http://cdn/live/v1/900000.m4s", "http://cdn/live/v1/1080000.m4s"), added);
+            RepresentationDASH rep = res.getRepresentation(1);
+            assertEquals(7, rep.getSegmentCount());
+            assertTrue(rep.getSegments() instanceof Segments.Timeline);
+            assertTrue(res.containsURL("http://cdn/live/v1/1080000.m4s"));
+            assertTrue(res.containsURL("http://cdn/live/v1/0.m4s"));
+
+            // Refreshes stop once the stream is over
+            manifest = live("static", 360000);
+            deadline = System.currentTimeMillis() + 5000;
+            while (refresher.size() > 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals(0, refresher.size());
+            assertEquals(2, added.size());
+        } finally {
+            refresher.shutdown();
+        }
+    }
+
+    @Test
+    public void clockDrivenManifestsAreFetchedWhole() throws Exception {
+        manifest = "<MPD type=\"dynamic\" minimumUpdatePeriod=\"PT2S\"" +
+                " availabilityStartTime=\"2017-01-01T00:00:00Z\"><BaseURL>http://cdn/live/</BaseURL>" +
+                "<Period><AdaptationSet><Representation id=\"1\" bandwidth=\"1\">" +
+                "<SegmentTemplate media=\"v1/$Number$.m4s\" duration=\"2\"/></Representation>" +
+                "</AdaptationSet></Period></MPD>";
+        URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/live.mpd");
+        ManifestRefresher.Fetch fetch = ManifestRefresher.fetch(url, null, null, r -> { });
+        assertTrue(fetch.dynamic);
+        // The manifest does not change but its segments do
+        assertNull(fetch.etag);
+        assertNull(fetch.lastModified);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Set of tests of the middlebox MAC/IP index.
+ */
+public class MiddleboxIndexTest {
+
+    private static Cache cache(int i) {
+        Cache c = new Cache();
+        c.setName("cache" + i);
+        c.setMacaddr(String.format("AA:00:00:00:%02x:%02X", i >> 8, i & 0xFF));
+        c.setIpaddr("10.0." + (i >> 8) + "." + (i & 0xFF));
+        return c;
+    }
+
+    @Test
+    public void lookupByMacAndIp() {
+        List<Cache> caches = new ArrayList<>();
+        for (int i = 0; i < 300; i++)
+            caches.add(cache(i));
+        MiddleboxIndex<Cache> index = new MiddleboxIndex<>();
+        index.rebuild(caches);
+
+        assertEquals(300, index.size());
+        for (int i = 0; i < 300; i++) {
+            assertSame(caches.get(i), index.findByMac(0xAA0000000000L | i));
+            assertSame(caches.get(i), index.findByIp(0x0a000000 | i));
+        }
+        assertNull(index.findByMac(0xBB0000000000L));
+        assertNull(index.findByIp(0x0b000001));
+    }
+
+    @Test
+    public void rebuildReplacesContents() {
+        MiddleboxIndex<Cache> index = new MiddleboxIndex<>();
+        Cache c = cache(1);
+        index.rebuild(Collections.singletonList(c));
+        assertSame(c, index.findByMac(0xAA0000000001L));
+        index.rebuild(Collections.<Cache>emptyList());
+        assertNull(index.findByMac(0xAA0000000001L));
+    }
+}
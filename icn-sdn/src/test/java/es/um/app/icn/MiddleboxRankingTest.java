@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+import org.onosproject.net.DeviceId;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Set of tests of the per switch middlebox rankings.
+ */
+public class MiddleboxRankingTest {
+
+    private static final DeviceId S1 = DeviceId.deviceId("of:0000000000000001");
+    private static final DeviceId S2 = DeviceId.deviceId("of:0000000000000002");
+
+    /** Distance from every switch to every middlebox, by name */
+    private final Map<String, Integer> distances = new HashMap<>();
+    private int computed;
+    private final MiddleboxRanking<Proxy> ranking = new MiddleboxRanking<>((sw, m) -> {
+        computed++;
+        Integer d = distances.get(sw + "/" + m.getName());
+        return d == null ? IcnPathCache.UNREACHABLE : d;
+    });
+
+    private static Proxy proxy(String name) {
+        Proxy p = new Proxy();
+        p.setName(name);
+        return p;
+    }
+
+    @Test
+    public void closestIsKeptUntilInvalidated() {
+        Proxy a = proxy("a"), b = proxy("b"), c = proxy("c");
+        distances.put(S1 + "/a", 3);
+        distances.put(S1 + "/b", 1);
+        distances.put(S1 + "/c", 3);
+        ranking.reset(Arrays.asList(a, b, c));
+
+        assertSame(b, ranking.closest(S1));
+        assertEquals(Arrays.asList(b, a, c), ranking.ranked(S1));
+        assertEquals(3, computed);
+        ranking.closest(S1);
+        assertEquals(3, computed);
+
+        // Nothing reachable from S2
+        assertNull(ranking.closest(S2));
+        assertEquals(Arrays.asList(a, b, c), ranking.ranked(S2));
+
+        distances.put(S1 + "/c", 0);
+        ranking.invalidate(ImmutableSet.of(S2));
+        assertSame(b, ranking.closest(S1));
+        ranking.invalidate(ImmutableSet.of(S1));
+        assertSame(c, ranking.closest(S1));
+    }
+
+    @Test
+    public void middleboxesAreMergedIntoExistingRankings() {
+        Proxy a = proxy("a"), b = proxy("b");
+        distances.put(S1 + "/a", 2);
+        distances.put(S1 + "/b", 1);
+        ranking.reset(Arrays.asList(a));
+        assertSame(a, ranking.closest(S1));
+
+        ranking.put(b);
+        assertSame(b, ranking.closest(S1));
+        assertEquals(1, ranking.size());
+
+        ranking.remove("b");
+        assertSame(a, ranking.closest(S1));
+        assertSame(a, ranking.closest(S1, m -> m.getName().equals("a")));
+        assertNull(ranking.closest(S1, m -> m.getName().equals("b")));
+
+        // Replacing by name moves the middlebox
+        Proxy a2 = proxy("a");
+        distances.put(S1 + "/b", 5);
+        ranking.put(b);
+        ranking.put(a2);
+        assertEquals(Arrays.asList(a2, b), ranking.ranked(S1));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MPD parsing of synthetic SVC manifests (4 layers) with 1k to 100k
+ * segments, DOM as done before against the streaming parser. Both add the
+ * segments with RepresentationDASH.putResources, so only parsing differs.
+ *   java -cp target/test-classes:... org.openjdk.jmh.Main MpdStreamParserBenchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MpdStreamParserBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int segments;
+
+    private byte[] mpd;
+
+    @Setup
+    public void setUp() {
+        mpd = MpdStreamParserTest.manifest(4, segments).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Parsing as done before: read into a String, build a DOM and walk it. */
+    @Benchmark
+    public int dom() throws Exception {
+        StringBuilder text = new StringBuilder();
+        byte[] buffer = new byte[5192];
+        BufferedInputStream bis = new BufferedInputStream(new ByteArrayInputStream(mpd));
+        int numberOfBytes;
+        while ((numberOfBytes = bis.read(buffer, 0, 5191)) >= 0)
+            text.append(new String(buffer, 0, numberOfBytes));
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new InputSource(new StringReader(text.toString())));
+        String baseURL = doc.getElementsByTagName("BaseURL").item(0).getFirstChild().getNodeValue();
+        NodeList representations = doc.getElementsByTagName("Representation");
+        int count = 0;
+        for (int i = 0; i < representations.getLength(); i++) {
+            Node item = representations.item(i);
+            NamedNodeMap attributes = item.getAttributes();
+            RepresentationDASH r = new RepresentationDASH(
+                    Integer.parseInt(attributes.getNamedItem("id").getNodeValue()),
+                    Integer.parseInt(attributes.getNamedItem("width").getNodeValue()),
+                    Integer.parseInt(attributes.getNamedItem("height").getNodeValue()),
+                    Integer.parseInt(attributes.getNamedItem("frameRate").getNodeValue()),
+                    Long.parseLong(attributes.getNamedItem("bandwidth").getNodeValue()),
+                    attributes.getNamedItem("codecs").getNodeValue(), null);
+            List<String> urls = new ArrayList<>();
+            NodeList childNodes = item.getChildNodes();
+            for (int idx = 0; idx < childNodes.getLength(); idx++) {
+                Node child = childNodes.item(idx);
+                if (!child.getNodeName().equals("SegmentList"))
+                    continue;
+                for (int idx2 = 0; idx2 < child.getChildNodes().getLength(); idx2++) {
+                    Node child2 = child.getChildNodes().item(idx2);
+                    if (child2.getNodeName().equalsIgnoreCase("SegmentURL"))
+                        urls.add(child2.getAttributes().getNamedItem("media").getNodeValue());
+                }
+            }
+            r.putResources(urls);
+            r.setBaseURL(baseURL);
+            count += r.getUrls().size();
+        }
+        return count;
+    }
+
+    /** Streaming parser straight from the bytes. */
+    @Benchmark
+    public int stax() throws Exception {
+        int[] count = new int[1];
+        new MpdStreamParser().parse(new ByteArrayInputStream(mpd), r -> count[0] += r.getUrls().size());
+        return count[0];
+    }
+}
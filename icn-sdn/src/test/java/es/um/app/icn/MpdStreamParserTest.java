@@ -0,0 +1,212 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests of the streaming MPD parser.
+ */
+public class MpdStreamParserTest {
+
+    /**
+     * Synthetic SVC manifest: one base layer and enhancement layers each
+     * depending on the previous one, the segments split among them.
+     */
+    static String manifest(int representations, int segments) {
+        StringBuilder mpd = new StringBuilder();
+        mpd.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\" type=\"static\">\n")
+                .append("  <BaseURL>http://video.example.com/bbb/</BaseURL>\n")
+                .append("  <Period><AdaptationSet>\n");
+        for (int r = 0; r < representations; r++) {
+            mpd.append("    <Representation id=\"").append(r)
+                    .append("\" width=\"1920\" height=\"1080\" frameRate=\"24\" bandwidth=\"")
+                    .append(1000000 * (r + 1)).append("\" codecs=\"svc1\"");
+            if (r > 0)
+                mpd.append(" dependencyId=\"").append(r - 1).append('"');
+            mpd.append(">\n      <SegmentList duration=\"2\">\n");
+            for (int s = 0; s < segments / representations; s++)
+                mpd.append("        <SegmentURL media=\"layer").append(r)
+                        .append("/seg-").append(s).append(".m4s\"/>\n");
+            mpd.append("      </SegmentList>\n    </Representation>\n");
+        }
+        return mpd.append("  </AdaptationSet></Period>\n</MPD>\n").toString();
+    }
+
+    private static List<RepresentationDASH> parse(String mpd, Charset charset) throws Exception {
+        List<RepresentationDASH> res = new ArrayList<>();
+        new MpdStreamParser().parse(new ByteArrayInputStream(mpd.getBytes(charset)), res::add);
+        return res;
+    }
+
+    @Test
+    public void svcManifest() throws Exception {
+        List<RepresentationDASH> reps = parse(manifest(3, 30), StandardCharsets.UTF_8);
+        assertEquals(3, reps.size());
+        RepresentationDASH top = reps.get(2);
+        assertEquals(2, top.getId());
+        assertEquals(24, top.getFrameRate());
+        assertEquals(3000000L, top.getBandwidth());
+        assertEquals("svc1", top.getCodec());
+        assertEquals(Arrays.asList(1), top.getDependencies());
+        assertEquals(10, top.getUrls().size());
+        assertEquals("http://video.example.com/bbb/", top.getBaseURL());
+        assertTrue(top.containsResource("http://video.example.com/bbb/layer2/seg-9.m4s"));
+    }
+
+    @Test
+    public void declaredEncodingAndLateBaseURL() throws Exception {
+        String mpd = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n" +
+                "<MPD><Period>" +
+                "<Representation id=\"1\" frameRate=\"30000/1001\" bandwidth=\"5\">" +
+                "<BaseURL>ignored/</BaseURL>" +
+                "<SegmentList><SegmentURL media=\"pe\u00f1a.m4s\"/><SegmentURL media=\"pe\u00f1a.m4s\"/></SegmentList>" +
+                "<SegmentBase><SegmentURL media=\"not-a-segment.m4s\"/></SegmentBase>" +
+                "</Representation>" +
+                "</Period><BaseURL>http://late/</BaseURL></MPD>";
+        List<RepresentationDASH> reps = parse(mpd, StandardCharsets.ISO_8859_1);
+        assertEquals(1, reps.size());
+        // The first BaseURL of the document, as the DOM parser did
+        assertEquals("ignored/", reps.get(0).getBaseURL());
+        assertEquals(30, reps.get(0).getFrameRate());
+        assertEquals(Arrays.asList("pe\u00f1a.m4s"), reps.get(0).getUrls());
+
+        mpd = mpd.replace("<BaseURL>ignored/</BaseURL>", "");
+        reps = parse(mpd, StandardCharsets.ISO_8859_1);
+        assertEquals("http://late/", reps.get(0).getBaseURL());
+    }
+
+    @Test
+    public void noBaseURL() throws Exception {
+        String mpd = manifest(2, 4).replace("<BaseURL>http://video.example.com/bbb/</BaseURL>", "");
+        assertTrue(parse(mpd, StandardCharsets.UTF_8).isEmpty());
+    }
+
+    @Test
+    public void numberTemplate() throws Exception {
+        String mpd = "<MPD mediaPresentationDuration=\"PT10M0.5S\">" +
+                "<BaseURL>http://cdn/bbb/</BaseURL><Period><AdaptationSet>" +
+                "<SegmentTemplate media=\"$RepresentationID$/seg-$Number%05d$.m4s\" startNumber=\"0\"" +
+                " timescale=\"1000\" duration=\"2000\"/>" +
+                "<Representation id=\"bbb_720p\" bandwidth=\"3000000\"/>" +
+                "<Representation id=\"bbb_1080p\" bandwidth=\"6000000\" dependencyId=\"bbb_720p\">" +
+                "<SegmentTemplate startNumber=\"5\"/></Representation>" +
+                "</AdaptationSet></Period></MPD>";
+        List<RepresentationDASH> reps = parse(mpd, StandardCharsets.UTF_8);
+        assertEquals(2, reps.size());
+        RepresentationDASH low = reps.get(0);
+        RepresentationDASH high = reps.get(1);
+        assertEquals(Arrays.asList(low.getId()), high.getDependencies());
+        // 600.5 s in segments of 2 s
+        assertEquals(301, low.getSegmentCount());
+        assertTrue(low.getSegments() instanceof Segments.Template);
+        assertEquals("http://cdn/bbb/bbb_720p/seg-00000.m4s", low.getFullUrls().get(0));
+        assertEquals(300, low.indexOf("http://cdn/bbb/bbb_720p/seg-00300.m4s"));
+        assertEquals(-1, low.indexOf("http://cdn/bbb/bbb_720p/seg-00301.m4s"));
+        assertEquals(-1, low.indexOf("http://cdn/bbb/bbb_720p/seg-300.m4s"));
+        assertEquals(0, high.indexOf("http://cdn/bbb/bbb_1080p/seg-00005.m4s"));
+    }
+
+    @Test
+    public void timeTemplate() throws Exception {
+        String mpd = "<MPD><BaseURL>http://cdn/live/</BaseURL><Period duration=\"PT60S\"><AdaptationSet>" +
+                "<Representation id=\"1\" bandwidth=\"1\">" +
+                "<SegmentTemplate media=\"v1/$Time$.m4s\" timescale=\"90000\"><SegmentTimeline>" +
+                "<S t=\"900000\" d=\"180000\" r=\"2\"/><S d=\"90000\"/><S t=\"1620000\" d=\"180000\" r=\"-1\"/>" +
+                "</SegmentTimeline></SegmentTemplate></Representation>" +
+                "<Representation id=\"2\" bandwidth=\"2\">" +
+                "<SegmentTemplate media=\"v2/$Number$.m4s\" timescale=\"90000\"><SegmentTimeline>" +
+                "<S t=\"0\" d=\"180000\" r=\"9\"/>" +
+                "</SegmentTimeline></SegmentTemplate></Representation>" +
+                "</AdaptationSet></Period></MPD>";
+        List<RepresentationDASH> reps = parse(mpd, StandardCharsets.UTF_8);
+        RepresentationDASH time = reps.get(0);
+        assertTrue(time.getSegments() instanceof Segments.Timeline);
+        // 3 + 1, then 2 s segments from 18 s up to the end of the Period at 60 s
+        assertEquals(4 + 21, time.getSegmentCount());
+        assertEquals("http://cdn/live/v1/900000.m4s", time.getFullUrls().get(0));
+        assertEquals("http://cdn/live/v1/1440000.m4s", time.getFullUrls().get(3));
+        assertEquals("http://cdn/live/v1/1800000.m4s", time.getFullUrls().get(5));
+        for (int i = 0; i < time.getSegmentCount(); i++)
+            assertEquals(i, time.indexOf(time.getFullUrls().get(i)));
+        assertEquals(-1, time.indexOf("http://cdn/live/v1/1000000.m4s"));
+        assertEquals(-1, time.indexOf("http://cdn/live/v1/0.m4s"));
+
+        RepresentationDASH number = reps.get(1);
+        assertEquals(10, number.getSegmentCount());
+        assertEquals("http://cdn/live/v2/10.m4s", number.getFullUrls().get(9));
+    }
+
+    @Test
+    public void timelineWithoutFirstTime() throws Exception {
+        String mpd = "<MPD><BaseURL>http://cdn/live/</BaseURL><Period duration=\"PT10S\"><AdaptationSet>" +
+                "<Representation id=\"1\" bandwidth=\"1\">" +
+                "<SegmentTemplate media=\"v1/$Time$.m4s\" timescale=\"1000\" presentationTimeOffset=\"4000\">" +
+                "<SegmentTimeline><S d=\"2000\" r=\"-1\"/></SegmentTimeline></SegmentTemplate>" +
+                "</Representation></AdaptationSet></Period></MPD>";
+        RepresentationDASH time = parse(mpd, StandardCharsets.UTF_8).get(0);
+        // From 0 up to the end of the Period at 4 + 10 s
+        assertEquals(7, time.getSegmentCount());
+        assertEquals("http://cdn/live/v1/0.m4s", time.getFullUrls().get(0));
+        assertEquals("http://cdn/live/v1/12000.m4s", time.getFullUrls().get(6));
+    }
+
+    @Test
+    public void liveNumberTemplate() throws Exception {
+        String mpd = "<MPD type=\"dynamic\" availabilityStartTime=\"2017-01-01T00:00:00Z\">" +
+                "<BaseURL>http://cdn/live/</BaseURL><Period start=\"PT10S\"><AdaptationSet>" +
+                "<SegmentTemplate media=\"v1/$Number$.m4s\" startNumber=\"5\" timescale=\"1000\"" +
+                " duration=\"2000\"/>" +
+                "<Representation id=\"1\" bandwidth=\"1\"/></AdaptationSet></Period></MPD>";
+        long start = MpdStreamParser.epochMillis("2017-01-01T00:00:00Z");
+        AtomicLong now = new AtomicLong(start + 17500);
+        MpdStreamParser parser = new MpdStreamParser(now::get);
+        List<RepresentationDASH> reps = new ArrayList<>();
+        parser.parse(new ByteArrayInputStream(mpd.getBytes(StandardCharsets.UTF_8)), reps::add);
+        assertTrue(parser.isClockDriven());
+        // 7.5 s into the Period: three complete segments
+        RepresentationDASH rep = reps.get(0);
+        assertEquals(3, rep.getSegmentCount());
+        assertEquals("http://cdn/live/v1/7.m4s", rep.getFullUrls().get(2));
+
+        // The same manifest parsed later announces the new segments
+        now.addAndGet(4000);
+        reps.clear();
+        parser.parse(new ByteArrayInputStream(mpd.getBytes(StandardCharsets.UTF_8)), reps::add);
+        assertEquals(2, rep.putSegments(reps.get(0).getSegments()));
+        assertEquals(4, rep.indexOf("http://cdn/live/v1/9.m4s"));
+
+        // Without availabilityStartTime nothing is known
+        reps.clear();
+        parser.parse(new ByteArrayInputStream(mpd.replace(" availabilityStartTime=\"2017-01-01T00:00:00Z\"", "")
+                .getBytes(StandardCharsets.UTF_8)), reps::add);
+        assertFalse(parser.isClockDriven());
+        assertEquals(0, reps.get(0).getSegmentCount());
+    }
+}
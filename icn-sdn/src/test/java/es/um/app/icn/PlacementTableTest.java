@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import org.junit.Test;
+import org.onosproject.net.DeviceId;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Set of tests of the bounded placement table.
+ */
+public class PlacementTableTest {
+
+    private static final DeviceId SW1 = DeviceId.deviceId("of:0000000000000001");
+    private static final DeviceId SW2 = DeviceId.deviceId("of:0000000000000002");
+
+    private static PlacementTable.Placement placement(Cache... caches) {
+        int[] ids = new int[caches.length];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = i;
+        return new PlacementTable.Placement(ids, caches, 0);
+    }
+
+    @Test
+    public void placementsArePerSwitch() {
+        Cache near = new Cache();
+        Cache far = new Cache();
+        PlacementTable table = new PlacementTable();
+        table.put("a.mpd", SW1, placement(near, far));
+        table.put("a.mpd", SW2, placement(far, near));
+        assertSame(near, table.get("a.mpd", SW1).cache(0));
+        assertSame(far, table.get("a.mpd", SW2).cache(0));
+        assertNull(table.get("a.mpd", SW1).cache(2));
+        assertNull(table.get("b.mpd", SW1));
+        assertEquals(3, table.getHits());
+        assertEquals(1, table.getMisses());
+
+        table.put("b.mpd", SW1, placement(near));
+        table.remove("a.mpd");
+        assertEquals(1, table.size());
+        assertEquals(PlacementTable.ENTRY_OVERHEAD + 8, table.bytes());
+    }
+
+    @Test
+    public void leastRecentlyUsedAreEvicted() {
+        Cache cache = new Cache();
+        long each = placement(cache, cache).bytes();
+        PlacementTable table = new PlacementTable(3 * each);
+        table.put("a.mpd", SW1, placement(cache, cache));
+        table.put("b.mpd", SW1, placement(cache, cache));
+        table.put("c.mpd", SW1, placement(cache, cache));
+        assertNotNull(table.get("a.mpd", SW1));
+        table.put("d.mpd", SW1, placement(cache, cache));
+        assertNull(table.get("b.mpd", SW1));
+        assertNotNull(table.get("a.mpd", SW1));
+        assertEquals(3, table.size());
+        assertEquals(3 * each, table.bytes());
+        assertEquals(1, table.getEvictions());
+
+        // A placement that does not fit alone is kept on its own
+        PlacementTable.Placement big = placement(new Cache[1000]);
+        table.put("e.mpd", SW1, big);
+        assertEquals(1, table.size());
+        assertSame(big, table.get("e.mpd", SW1));
+    }
+}
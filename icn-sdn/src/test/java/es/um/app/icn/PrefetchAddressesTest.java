@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests of the prefetching address allocator.
+ */
+public class PrefetchAddressesTest {
+
+    @Test
+    public void slotsMapToAddressAndPort() {
+        PrefetchAddresses addresses = new PrefetchAddresses(1 << 16);
+        assertEquals(0xAC100001, PrefetchAddresses.ip(0));
+        assertEquals(1025, PrefetchAddresses.port(0));
+        int slot = PrefetchAddresses.PORTS + 3;
+        assertEquals(0xAC100002, PrefetchAddresses.ip(slot));
+        assertEquals(1028, PrefetchAddresses.port(slot));
+        assertEquals(slot, addresses.slot(PrefetchAddresses.ip(slot), PrefetchAddresses.port(slot)));
+        assertEquals(-1, addresses.slot(0x0A000001, 1028));
+        assertEquals(-1, addresses.slot(0xAC100001, 80));
+        assertEquals(-1, addresses.slot(0xAC1F0001, 1028));
+    }
+
+    @Test
+    public void releasedPairsAreReusedLast() {
+        PrefetchAddresses addresses = new PrefetchAddresses(128);
+        int first = addresses.allocate();
+        assertTrue(addresses.release(first));
+        assertFalse(addresses.release(first));
+        Set<Integer> slots = new HashSet<>();
+        int last = -1;
+        for (int i = 0; i < 128; i++) {
+            last = addresses.allocate();
+            assertTrue(slots.add(last));
+        }
+        // The released pair comes back only once the rest is taken
+        assertEquals(first, last);
+        assertEquals(-1, addresses.allocate());
+        assertEquals(128, addresses.inUse());
+        assertEquals(1, addresses.exhausted());
+    }
+
+    @Test
+    public void concurrentAllocationsAreUnique() throws Exception {
+        PrefetchAddresses addresses = new PrefetchAddresses(4096);
+        Set<Integer> slots = ConcurrentHashMap.newKeySet();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 512; i++)
+                    assertTrue(slots.add(addresses.allocate()));
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(4096, slots.size());
+        assertFalse(slots.contains(-1));
+        assertEquals(4096, addresses.inUse());
+    }
+}
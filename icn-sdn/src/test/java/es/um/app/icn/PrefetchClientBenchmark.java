@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.DataOutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 100 prefetch requests to a stub prefetcher on the loopback, one
+ * HttpURLConnection and ObjectMapper per request with the response left
+ * unread as done before, against the pooled and batching client.
+ *   java -cp target/test-classes:... org.openjdk.jmh.Main PrefetchClientBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+// Without it the stub answers with Nagle on and every response waits for a delayed ACK
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+public class PrefetchClientBenchmark {
+
+    private static final int REQUESTS = 100;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private Proxy proxy;
+    private PrefetchClient client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.createContext("/prefetch", exchange -> {
+            PrefetchClientTest.read(exchange.getRequestBody());
+            exchange.sendResponseHeaders(200, 2);
+            exchange.getResponseBody().write("{}".getBytes());
+            exchange.close();
+        });
+        server.start();
+        proxy = new Proxy();
+        proxy.setIpaddr("127.0.0.1");
+        proxy.setPrefetch_port(server.getAddress().getPort());
+        executor = Executors.newFixedThreadPool(8);
+        client = new PrefetchClient(executor);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /** As RepresentationPrefecther.postHTTP did, 8 at a time. */
+    @Benchmark
+    public int perRequest() throws Exception {
+        CompletableFuture<?>[] results = new CompletableFuture<?>[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++) {
+            String uri = "http://cdn/seg-" + i + ".m4s";
+            short port = (short) (1025 + i);
+            results[i] = CompletableFuture.runAsync(() -> {
+                try {
+                    URL url = new URL("http://127.0.0.1:" + proxy.getPrefetch_port() + "/prefetch");
+                    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                    connection.setDoOutput(true);
+                    connection.setRequestMethod("POST");
+                    connection.setRequestProperty("Content-Type", "application/json");
+                    ObjectMapper objectMapper = new ObjectMapper();
+                    ObjectNode paramurl = objectMapper.createObjectNode();
+                    paramurl.put("url", uri);
+                    paramurl.put("server", "172.16.0.1");
+                    paramurl.put("port", port);
+                    paramurl.put("cacheport", (short) 3128);
+                    connection.setRequestProperty("Content-Length", Integer.valueOf(paramurl.toString().getBytes().length).toString());
+                    try (DataOutputStream wr = new DataOutputStream(connection.getOutputStream())) {
+                        wr.writeBytes(paramurl.toString());
+                    }
+                    connection.getResponseCode();
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }, executor);
+        }
+        CompletableFuture.allOf(results).join();
+        return results.length;
+    }
+
+    @Benchmark
+    public int pooled() {
+        CompletableFuture<?>[] results = new CompletableFuture<?>[REQUESTS];
+        for (int i = 0; i < REQUESTS; i++) {
+            results[i] = client.prefetch(proxy,
+                    new PrefetchClient.Request("http://cdn/seg-" + i + ".m4s", "172.16.0.1", (short) (1025 + i), (short) 3128));
+        }
+        CompletableFuture.allOf(results).join();
+        return results.length;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests of the prefetcher client against a stub prefetcher.
+ */
+public class PrefetchClientTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private HttpServer server;
+    /** URLs received, one list per POST */
+    private final List<List<String>> posts = new CopyOnWriteArrayList<>();
+    private final Set<Integer> connections = ConcurrentHashMap.newKeySet();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) >= 0)
+            out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
+    private Proxy start(boolean acceptsBatches) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.createContext("/prefetch", exchange -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            connections.add(exchange.getRemoteAddress().getPort());
+            JsonNode body = mapper.readTree(read(exchange.getRequestBody()));
+            int status = 200;
+            if (body.isArray() && !acceptsBatches) {
+                status = 400;
+            } else {
+                List<String> urls = new ArrayList<>();
+                for (JsonNode n : body.isArray() ? body : mapper.createArrayNode().add(body))
+                    urls.add(n.get("url").asText());
+                posts.add(urls);
+            }
+            exchange.sendResponseHeaders(status, 2);
+            exchange.getResponseBody().write("{}".getBytes());
+            exchange.close();
+        });
+        server.start();
+        Proxy proxy = new Proxy();
+        proxy.setIpaddr("127.0.0.1");
+        proxy.setPrefetch_port(server.getAddress().getPort());
+        return proxy;
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (server != null)
+            server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private List<CompletableFuture<Boolean>> prefetch(Proxy proxy, int n) {
+        PrefetchClient client = new PrefetchClient(executor);
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            results.add(client.prefetch(proxy,
+                    new PrefetchClient.Request("http://cdn/seg-" + i + ".m4s", "172.16.0.1", (short) (1025 + i), (short) 3128)));
+        }
+        release.countDown();
+        return results;
+    }
+
+    @Test
+    public void requestsAreBatchedOnPooledConnections() throws Exception {
+        Proxy proxy = start(true);
+        for (CompletableFuture<Boolean> r : prefetch(proxy, 50))
+            assertTrue(r.get(10, TimeUnit.SECONDS));
+        int urls = 0;
+        for (List<String> post : posts)
+            urls += post.size();
+        assertEquals(50, urls);
+        // The first POSTs of every connection carry one request, the rest are batched
+        assertTrue(posts.size() <= 2 * PrefetchClient.CONNECTIONS);
+        assertTrue(connections.size() <= PrefetchClient.CONNECTIONS);
+    }
+
+    @Test
+    public void fallsBackToOneRequestPerPost() throws Exception {
+        Proxy proxy = start(false);
+        for (CompletableFuture<Boolean> r : prefetch(proxy, 10))
+            assertTrue(r.get(10, TimeUnit.SECONDS));
+        assertEquals(10, posts.size());
+    }
+
+    @Test
+    public void unreachablePrefetcher() throws Exception {
+        Proxy proxy = new Proxy();
+        proxy.setIpaddr("127.0.0.1");
+        proxy.setPrefetch_port(1);
+        for (CompletableFuture<Boolean> r : prefetch(proxy, 3))
+            assertTrue(!r.get(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletionStage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests of the prefetch scheduler.
+ */
+public class PrefetchSchedulerTest {
+
+    /** Runs the dispatched prefetches when asked, in order */
+    private final Queue<Runnable> executor = new ArrayDeque<>();
+    private final List<String> prefetched = new ArrayList<>();
+    private final List<String> finished = new ArrayList<>();
+    private final PrefetchScheduler scheduler = new PrefetchScheduler(executor::add, 2);
+
+    private final PrefetchScheduler.Action action = new PrefetchScheduler.Action() {
+        @Override
+        public CompletionStage<?> prefetch(PrefetchScheduler.Task task) {
+            assertTrue(scheduler.running() <= 2);
+            prefetched.add(task.url);
+            return null;
+        }
+
+        @Override
+        public void finished(PrefetchScheduler.Task task) {
+            finished.add(task.url);
+        }
+    };
+
+    private static PrefetchScheduler.Task task(String stream, int index, int layer) {
+        return new PrefetchScheduler.Task(stream + index + "l" + layer, index, layer);
+    }
+
+    @Test
+    public void mostUrgentFirstWithinTheBudget() {
+        scheduler.submit("a", 0, Arrays.asList(task("a", 1, 0), task("a", 1, 1), task("a", 2, 0), task("a", 2, 1)), action);
+        assertEquals(2, executor.size());
+        assertEquals(2, scheduler.running());
+        assertEquals(2, scheduler.queued());
+
+        // One segment ahead of its playback, more urgent than a2
+        scheduler.submit("b", 7, Collections.singletonList(task("b", 8, 0)), action);
+        assertEquals(2, executor.size());
+        executor.poll().run();
+        assertEquals(Arrays.asList("a1l0"), prefetched);
+        assertEquals(2, executor.size());
+
+        // The playback of a went past its pending segments
+        scheduler.submit("a", 2, Collections.emptyList(), action);
+        assertEquals(0, scheduler.queued());
+        assertTrue(finished.containsAll(Arrays.asList("a2l0", "a2l1")));
+
+        while (!executor.isEmpty())
+            executor.poll().run();
+        assertEquals(Arrays.asList("a1l0", "a1l1", "b8l0"), prefetched);
+        assertEquals(5, finished.size());
+        assertEquals(0, scheduler.running());
+    }
+
+    @Test
+    public void seekingBackKeepsTheOrder() {
+        PrefetchScheduler serial = new PrefetchScheduler(executor::add, 1);
+        serial.submit("a", 0, Arrays.asList(task("a", 1, 0), task("a", 5, 0), task("a", 6, 0)), action);
+        serial.submit("a", 0, Arrays.asList(task("a", 2, 0), task("a", 3, 1), task("a", 3, 0)), action);
+        while (!executor.isEmpty())
+            executor.poll().run();
+        assertEquals(Arrays.asList("a1l0", "a2l0", "a3l0", "a3l1", "a5l0", "a6l0"), prefetched);
+    }
+
+    @Test
+    public void cancelDropsPendingSegments() {
+        scheduler.submit("a", 0, Arrays.asList(task("a", 1, 0), task("a", 2, 0), task("a", 3, 0)), action);
+        scheduler.cancel();
+        assertEquals(0, scheduler.queued());
+        assertEquals(Arrays.asList("a3l0"), finished);
+        scheduler.submit("b", 0, Collections.singletonList(task("b", 1, 0)), action);
+        assertEquals(Arrays.asList("a3l0", "b1l0"), finished);
+
+        // Prefetches already dispatched complete
+        while (!executor.isEmpty())
+            executor.poll().run();
+        assertEquals(Arrays.asList("a1l0", "a2l0"), prefetched);
+        assertEquals(0, scheduler.running());
+    }
+}
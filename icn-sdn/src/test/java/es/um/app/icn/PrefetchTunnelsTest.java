@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import org.junit.Test;
+
+import org.onlab.packet.Ip4Address;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests of the prefetching tunnels.
+ */
+public class PrefetchTunnelsTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final PrefetchAddresses addresses = new PrefetchAddresses(64);
+    private final PrefetchTunnels tunnels = new PrefetchTunnels((p, c, t) -> true, () -> addresses, now::get);
+
+    private static int ip(PrefetchTunnels.Tunnel tunnel) {
+        return Ip4Address.valueOf(tunnel.address).toInt();
+    }
+
+    @Test
+    public void oneTunnelPerProxyAndCache() {
+        Proxy proxy = new Proxy();
+        Cache c1 = new Cache();
+        Cache c2 = new Cache();
+        PrefetchTunnels.Tunnel t1 = tunnels.acquire(proxy, c1);
+        for (int i = 0; i < 1800; i++)
+            assertSame(t1, tunnels.acquire(proxy, c1));
+        PrefetchTunnels.Tunnel t2 = tunnels.acquire(proxy, c2);
+        assertNotSame(t1, t2);
+        assertNotSame(t1, tunnels.acquire(new Proxy(), c1));
+        assertEquals(3, tunnels.opened());
+        assertEquals(1800, tunnels.reused());
+    }
+
+    @Test
+    public void idleTunnelIsOpenedAgain() {
+        Proxy proxy = new Proxy();
+        Cache cache = new Cache();
+        PrefetchTunnels.Tunnel t1 = tunnels.acquire(proxy, cache);
+        now.addAndGet(PrefetchTunnels.IDLE_MS);
+        assertSame(t1, tunnels.acquire(proxy, cache));
+        now.addAndGet(PrefetchTunnels.IDLE_MS + 1);
+        PrefetchTunnels.Tunnel t2 = tunnels.acquire(proxy, cache);
+        assertNotSame(t1, t2);
+        tunnels.forget(cache);
+        assertNotSame(t2, tunnels.acquire(proxy, cache));
+    }
+
+    @Test
+    public void failedTunnelIsRetried() {
+        PrefetchTunnels failing = new PrefetchTunnels((p, c, t) -> false, () -> addresses, now::get);
+        assertNull(failing.acquire(new Proxy(), new Cache()));
+        assertEquals(0, failing.opened());
+        assertEquals(0, addresses.inUse());
+    }
+
+    @Test
+    public void expiredFlowsReleaseTheAddress() {
+        Proxy proxy = new Proxy();
+        Cache cache = new Cache();
+        PrefetchTunnels.Tunnel t1 = tunnels.acquire(proxy, cache);
+        assertEquals(1, addresses.inUse());
+        assertFalse(tunnels.expired(ip(t1), t1.port + 1));
+        assertTrue(tunnels.expired(ip(t1), t1.port));
+        // The rest of the flows of the tunnel expire later
+        assertFalse(tunnels.expired(ip(t1), t1.port));
+        assertEquals(0, addresses.inUse());
+        assertNotSame(t1, tunnels.acquire(proxy, cache));
+        assertEquals(1, tunnels.expired());
+    }
+
+    @Test
+    public void unnoticedExpiryIsSwept() {
+        tunnels.acquire(new Proxy(), new Cache());
+        now.addAndGet(PrefetchTunnels.LEAK_MS + 1);
+        tunnels.acquire(new Proxy(), new Cache());
+        assertEquals(1, tunnels.leaked());
+        assertEquals(1, addresses.inUse());
+    }
+
+    @Test
+    public void icnsShareTheAddresses() {
+        PrefetchTunnels other = new PrefetchTunnels((p, c, t) -> true, () -> addresses, now::get);
+        PrefetchTunnels.Tunnel t1 = tunnels.acquire(new Proxy(), new Cache());
+        PrefetchTunnels.Tunnel t2 = other.acquire(new Proxy(), new Cache());
+        assertFalse(t1.address.equals(t2.address) && t1.port == t2.port);
+        assertEquals(2, addresses.inUse());
+
+        // The flows of a tunnel only close that tunnel
+        assertFalse(other.expired(ip(t1), t1.port));
+        assertTrue(tunnels.expired(ip(t1), t1.port));
+        assertEquals(1, addresses.inUse());
+
+        // An ICN leaving the service gives its pairs back
+        other.closeAll();
+        assertEquals(0, addresses.inUse());
+    }
+
+    @Test
+    public void noTunnelsWithoutService() {
+        PrefetchTunnels detached = new PrefetchTunnels((p, c, t) -> true, () -> null, now::get);
+        assertNull(detached.acquire(new Proxy(), new Cache()));
+        assertFalse(detached.expired(PrefetchAddresses.MIN_IP, PrefetchAddresses.MIN_PORT));
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests of the sliding prefetch windows.
+ */
+public class PrefetchWindowTest {
+
+    private static final String BASE = "http://video.example.com/bbb/";
+
+    private static ResourceHTTPDASH svc() throws Exception {
+        ResourceHTTP mpd = new ResourceHTTP("icn:bbb", "bbb.mpd");
+        mpd.setFullurl(BASE + "bbb.mpd");
+        ResourceHTTPDASH res = new ResourceHTTPDASH(mpd);
+        String manifest = MpdStreamParserTest.manifest(2, 40);
+        new MpdStreamParser().parse(new ByteArrayInputStream(manifest.getBytes(StandardCharsets.UTF_8)),
+                r -> res.putRepresentation(r.getId(), r));
+        return res;
+    }
+
+    private static List<String> urls(PrefetchWindow.Slide slide) {
+        return slide.tasks.stream().map(t -> t.url).collect(Collectors.toList());
+    }
+
+    @Test
+    public void windowShrinksWithBandwidth() {
+        assertEquals(PrefetchWindow.MIN_AHEAD, PrefetchWindow.ahead(0));
+        assertEquals(PrefetchWindow.MAX_AHEAD, PrefetchWindow.ahead(1000000));
+        assertEquals(8, PrefetchWindow.ahead(8000000));
+        assertEquals(PrefetchWindow.MIN_AHEAD, PrefetchWindow.ahead(1000000000));
+    }
+
+    @Test
+    public void followsThePlayback() throws Exception {
+        ResourceHTTPDASH res = svc();
+        RepresentationDASH top = res.getRepresentation(1);
+        PrefetchWindow window = new PrefetchWindow();
+        Proxy proxy = new Proxy();
+        Set<String> cached = new HashSet<>();
+        cached.add(BASE + "layer0/seg-2.m4s");
+
+        // 1 + 2 Mbps: 15 segments ahead, every layer of a segment together
+        List<String> urls = urls(window.requested(res, top, proxy, 0, cached::contains));
+        assertEquals(15 * 2 - 1, urls.size());
+        assertEquals(Arrays.asList(BASE + "layer0/seg-1.m4s", BASE + "layer1/seg-1.m4s", BASE + "layer1/seg-2.m4s"),
+                urls.subList(0, 3));
+        assertEquals(1, window.size());
+
+        // Segments in flight are not prefetched twice
+        urls.forEach(cached::add);
+        urls.subList(0, 4).forEach(window::done);
+        PrefetchWindow.Slide slide = window.requested(res, top, proxy, 5, cached::contains);
+        assertEquals(5, slide.position);
+        assertEquals(Arrays.asList(BASE + "layer0/seg-16.m4s", BASE + "layer1/seg-16.m4s",
+                BASE + "layer0/seg-17.m4s", BASE + "layer1/seg-17.m4s",
+                BASE + "layer0/seg-18.m4s", BASE + "layer1/seg-18.m4s",
+                BASE + "layer0/seg-19.m4s", BASE + "layer1/seg-19.m4s"), urls(slide));
+        assertEquals(0, slide.tasks.get(0).layer);
+        assertEquals(1, slide.tasks.get(1).layer);
+        assertEquals(16, slide.tasks.get(1).index);
+
+        // The window stops at the last segment, a refresh slides it again
+        assertTrue(window.refresh(res, top, cached::contains).isEmpty());
+
+        window.forget(res);
+        assertEquals(0, window.size());
+    }
+
+    @Test
+    public void dropsIdleAndSwitchedWindows() throws Exception {
+        ResourceHTTPDASH res = svc();
+        RepresentationDASH base = res.getRepresentation(0);
+        RepresentationDASH top = res.getRepresentation(1);
+        AtomicLong now = new AtomicLong();
+        PrefetchWindow window = new PrefetchWindow(now::get);
+        Proxy a = new Proxy();
+        Proxy b = new Proxy();
+        Set<String> cached = new HashSet<>();
+
+        window.requested(res, top, a, 0, cached::contains);
+        window.requested(res, base, b, 0, cached::contains);
+        assertEquals(2, window.size());
+
+        // Switching representation leaves the previous window
+        window.requested(res, base, a, 1, cached::contains);
+        assertEquals(2, window.size());
+        assertTrue(window.refresh(res, top, cached::contains).isEmpty());
+
+        // A proxy that stopped requesting is dropped on requests of others
+        now.addAndGet(PrefetchWindow.IDLE_MS / 2);
+        window.requested(res, base, b, 1, cached::contains);
+        now.addAndGet(PrefetchWindow.IDLE_MS / 2 + 1);
+        window.requested(res, base, b, 2, cached::contains);
+        assertEquals(1, window.size());
+
+        // And on refreshes
+        now.addAndGet(PrefetchWindow.IDLE_MS + 1);
+        assertTrue(window.refresh(res, base, cached::contains).isEmpty());
+        assertEquals(0, window.size());
+    }
+}
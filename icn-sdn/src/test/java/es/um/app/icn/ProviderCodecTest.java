@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.Test;
+
+import java.util.regex.PatternSyntaxException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Set of tests of the provider JSON codec.
+ */
+public class ProviderCodecTest {
+
+    private static ObjectNode provider(String uripattern, String hostpattern) {
+        ObjectNode json = new ObjectMapper().createObjectNode()
+                .put("name", "bbb")
+                .put("description", "Big Buck Bunny")
+                .put("network", "10.0.0.0/8");
+        if (uripattern != null)
+            json.put("uripattern", uripattern);
+        if (hostpattern != null)
+            json.put("hostpattern", hostpattern);
+        return json;
+    }
+
+    @Test
+    public void decodesPatterns() {
+        Provider p = new ProviderCodec().decode(provider("^/bbb/.*\\.m4s$", null), null);
+        assertEquals("^/bbb/.*\\.m4s$", p.getUripattern());
+        assertNull(p.getHostpattern());
+        assertEquals("/bbb/seg-1.m4s", p.matchUriPattern("/bbb/seg-1.m4s"));
+    }
+
+    @Test
+    public void invalidPatternsNameTheField() {
+        try {
+            new ProviderCodec().decode(provider("^/bbb/", "video.(example"), null);
+            fail("An invalid hostpattern is rejected");
+        } catch (PatternSyntaxException e) {
+            assertTrue(e.getDescription().startsWith("hostpattern: "));
+            assertEquals("video.(example", e.getPattern());
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import org.onlab.packet.IPv4;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Provider lookup of a proxy request among 1k providers: 900 of them with
+ * their own /24 network and 100 catch-all ones told apart by host.
+ *   java -cp target/test-classes:... org.openjdk.jmh.Main ProviderMatcherBenchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProviderMatcherBenchmark {
+
+    private static final int NETWORKS = 900;
+    private static final int CATCH_ALL = 100;
+
+    private List<Provider> providers;
+    private ProviderMatcher matcher;
+    private int daddr;
+    private String host;
+    private String uri;
+
+    @Setup
+    public void setUp() {
+        providers = new ArrayList<>();
+        for (int i = 0; i < NETWORKS; i++)
+            providers.add(ProviderMatcherTest.provider("net" + i,
+                    String.format("10.%d.%d.0/24", i >> 8, i & 0xFF),
+                    "cdn\\d*\\.site" + i + "\\.com", "/video/\\S+/(\\S+)"));
+        for (int i = 0; i < CATCH_ALL; i++)
+            providers.add(ProviderMatcherTest.provider("any" + i, "0.0.0.0/0",
+                    "proxy.*site" + i + "\\.net", "/video/\\S+/(\\S+)"));
+        matcher = ProviderMatcherTest.matcher(providers);
+        // A request to one of the catch-all providers
+        daddr = IPv4.toIPv4Address("10.3.1.20");
+        host = "proxy-3.site77.net";
+        uri = "/video/abcdef/segment_42.m4s?token=1234";
+    }
+
+    /** Lookup as done before: parse every CIDR and compile every pattern. */
+    @Benchmark
+    public Object linearScan() {
+        Set<Provider> candidates = new HashSet<>();
+        for (Provider p : providers) {
+            if (containsIpAddress(p.getNetwork(), daddr))
+                candidates.add(p);
+        }
+        for (Provider p : candidates) {
+            if (find(p.getUripattern(), uri) != null && find(p.getHostpattern(), host) != null)
+                return find(p.getUripattern(), uri);
+        }
+        return null;
+    }
+
+    /** Lookup through the compiled matcher. */
+    @Benchmark
+    public Object compiled() {
+        ProviderMatcher.Match m = matcher.match(daddr, host, uri);
+        return m == null ? null : m.resource;
+    }
+
+    private static boolean containsIpAddress(String network, int addr) {
+        try {
+            int subnet = UtilIcn.subnetFromCidr(network);
+            int masklen = UtilIcn.masklenFromCidr(network);
+            int mask = masklen == 0 ? 0 : -1 << (32 - masklen);
+            return (subnet & mask) == (addr & mask);
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    private static String find(String regex, String s) {
+        Matcher matcher = Pattern.compile(regex).matcher(s);
+        return matcher.find() ? matcher.group(0) : null;
+    }
+}
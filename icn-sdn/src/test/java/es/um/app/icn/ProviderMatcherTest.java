@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import org.junit.Test;
+import org.onlab.packet.IPv4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests of the compiled provider matcher.
+ */
+public class ProviderMatcherTest {
+
+    static Provider provider(String name, String network, String hostpattern, String uripattern) {
+        Provider p = new Provider();
+        p.setName(name);
+        p.setNetwork(network);
+        p.setHostpattern(hostpattern);
+        p.setUripattern(uripattern);
+        return p;
+    }
+
+    static ProviderMatcher matcher(List<Provider> providers) {
+        Icn icn = new IcnClosestCache();
+        icn.setName("icn");
+        providers.forEach(icn::createProvider);
+        return new ProviderMatcher(Arrays.asList(icn));
+    }
+
+    private static int ip(String addr) {
+        return IPv4.toIPv4Address(addr);
+    }
+
+    @Test
+    public void mostSpecificNetworkFirst() {
+        Provider any = provider("any", "0.0.0.0/0", null, null);
+        Provider um = provider("um", "155.54.0.0/16", null, null);
+        Provider host = provider("host", "155.54.204.1/32", null, null);
+        Provider wrong = provider("wrong", "not a network", null, null);
+        ProviderMatcher matcher = matcher(Arrays.asList(any, um, host, wrong));
+
+        assertEquals(Arrays.asList(host, um, any), matcher.providersOf(ip("155.54.204.1")));
+        assertEquals(Arrays.asList(um, any), matcher.providersOf(ip("155.54.204.2")));
+        assertEquals(Arrays.asList(any), matcher.providersOf(ip("10.0.0.1")));
+        assertSame(host, matcher.match(ip("155.54.204.1"), "h", "/a").provider);
+        assertTrue(matcher.providersOf(ip("155.54.204.1")).stream()
+                .allMatch(p -> p.containsIpAddress(ip("155.54.204.1"))));
+    }
+
+    @Test
+    public void providersOfEveryIcn() {
+        Icn a = new IcnClosestCache();
+        a.createProvider(provider("a", "10.0.0.0/8", null, null));
+        Icn b = new IcnClosestCache();
+        Provider multi = provider("b", null, null, null);
+        multi.setNetworks(Arrays.asList("10.1.0.0/16", "192.168.0.0/16", "wrong"));
+        b.createProvider(multi);
+        ProviderMatcher matcher = new ProviderMatcher(Arrays.asList(a, b));
+
+        assertEquals(2, matcher.size());
+        assertEquals(3, matcher.networks());
+        assertSame(b, matcher.match(ip("10.1.2.3"), "h", "/").icn);
+        assertSame(a, matcher.match(ip("10.2.2.3"), "h", "/").icn);
+        assertSame(multi, matcher.match(ip("192.168.1.1"), "h", "/").provider);
+        assertTrue(multi.containsIpAddress(ip("192.168.1.1")));
+        assertNull(matcher.match(ip("172.16.0.1"), "h", "/"));
+    }
+
+    @Test
+    public void patternsAreCheckedInOrder() {
+        Provider dm = provider("dailymotion", "0.0.0.0/0",
+                "proxy.*dailymotion\\.com", "/video/\\S+/(\\S+)");
+        ProviderMatcher matcher = matcher(Arrays.asList(dm));
+
+        ProviderMatcher.Match m = matcher.match(ip("1.2.3.4"),
+                "proxy-42.dailymotion.com", "/video/abc/x.mp4");
+        assertSame(dm, m.provider);
+        assertEquals("/video/abc/x.mp4", m.resource);
+        assertNull(matcher.match(ip("1.2.3.4"), "www.dailymotion.com", "/video/abc/x.mp4"));
+        assertNull(matcher.match(ip("1.2.3.4"), "proxy.dailymotion.com", "/img/x.png"));
+        assertNull(matcher.match(ip("1.2.3.4"), null, "/video/abc/x.mp4"));
+    }
+
+    @Test
+    public void prefilteredHostsMatchLikeTheirPatterns() {
+        List<Provider> providers = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+            providers.add(provider("p" + i, "0.0.0.0/0", "cdn\\d*\\.site" + i + "\\.com$", null));
+        providers.add(provider("regex", "0.0.0.0/0", "^edge[0-9]+\\.", null));
+        providers.add(provider("hex", "0.0.0.0/0", "www\\x2eexample\\.com", null));
+        ProviderMatcher matcher = matcher(providers);
+
+        assertSame(providers.get(7), matcher.match(ip("1.2.3.4"), "cdn3.site7.com", "/").provider);
+        assertSame(providers.get(42), matcher.match(ip("1.2.3.4"), "cdn.site42.com", "/").provider);
+        assertSame(providers.get(50), matcher.match(ip("1.2.3.4"), "edge12.site7.org", "/").provider);
+        assertNull(matcher.match(ip("1.2.3.4"), "cdn3.site7.com.evil", "/"));
+        assertSame(providers.get(51), matcher.match(ip("1.2.3.4"), "www.example.com", "/").provider);
+        for (int i = 0; i < 50; i++) {
+            String host = "x.cdn1.site" + i + ".com";
+            assertSame(providers.get(i), matcher.match(ip("1.2.3.4"), host, "/").provider);
+        }
+    }
+
+    @Test
+    public void requiredLiterals() {
+        assertEquals("dailymotion.com", ProviderMatcher.requiredLiteral("proxy.*dailymotion\\.com"));
+        assertEquals("exampl", ProviderMatcher.requiredLiteral("^www\\d?example?\\.org"));
+        assertEquals("abc", ProviderMatcher.requiredLiteral("abcd*e{2}"));
+        assertNull(ProviderMatcher.requiredLiteral("(www|cdn)\\.example\\.com"));
+        assertNull(ProviderMatcher.requiredLiteral("[a-z]+\\.example\\.com"));
+        assertNull(ProviderMatcher.requiredLiteral("a.b.c"));
+        assertNull(ProviderMatcher.requiredLiteral(null));
+        assertEquals("example.com", ProviderMatcher.requiredLiteral("\\bwww\\Wexample\\.com\\z"));
+        // Escapes with operands are not literal text
+        assertNull(ProviderMatcher.requiredLiteral("www\\x2eexample\\.com"));
+        assertNull(ProviderMatcher.requiredLiteral("www\\u002eexample\\.com"));
+        assertNull(ProviderMatcher.requiredLiteral("www\\0101example"));
+        assertNull(ProviderMatcher.requiredLiteral("www\\cJexample"));
+        assertNull(ProviderMatcher.requiredLiteral("\\p{Alpha}+example"));
+        assertNull(ProviderMatcher.requiredLiteral("\\Qwww.example\\E"));
+    }
+}
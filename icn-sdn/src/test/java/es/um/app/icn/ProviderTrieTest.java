@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Set of tests of the provider network trie.
+ */
+public class ProviderTrieTest {
+
+    private static int mask(int len) {
+        return len == 0 ? 0 : -1 << (32 - len);
+    }
+
+    @Test
+    public void longestPrefixFirst() {
+        ProviderTrie trie = new ProviderTrie.Builder()
+                .add(0x0a000000, 8, 1)
+                .add(0x0a010000, 16, 2)
+                .add(0x0a010000, 16, 3)
+                .add(0x0a010203, 32, 4)
+                .add(0x0b000000, 8, 5)
+                .build();
+        assertEquals(4, trie.size());
+
+        ProviderTrie.Prefix p = trie.lookup(0x0a010203);
+        assertEquals(32, p.masklen());
+        assertEquals(4, p.value(0));
+        p = p.shorter();
+        assertEquals(16, p.masklen());
+        assertEquals(2, p.size());
+        assertEquals(8, p.shorter().masklen());
+        assertNull(p.shorter().shorter());
+
+        assertEquals(16, trie.lookup(0x0a0102ff).masklen());
+        assertEquals(8, trie.lookup(0x0a020000).masklen());
+        assertNull(trie.lookup(0x0c000000));
+        assertNull(ProviderTrie.EMPTY.lookup(0));
+    }
+
+    /** Every stored prefix containing an address is found, longest first */
+    @Test
+    public void sameAsLinearScan() {
+        Random random = new Random(42);
+        List<int[]> prefixes = new ArrayList<>();
+        ProviderTrie.Builder builder = new ProviderTrie.Builder();
+        for (int i = 0; i < 2000; i++) {
+            int len = random.nextInt(33);
+            // Few distinct high bits so that prefixes nest and diverge often
+            int subnet = (random.nextInt(4) << 30 | random.nextInt() >>> 2) & mask(len);
+            prefixes.add(new int[]{subnet, len});
+            builder.add(subnet, len, i);
+        }
+        ProviderTrie trie = builder.build();
+        for (int n = 0; n < 2000; n++) {
+            // Half of the addresses inside a stored prefix
+            int addr = random.nextInt();
+            if (n % 2 == 0) {
+                int[] prefix = prefixes.get(n);
+                addr = prefix[0] | (addr & ~mask(prefix[1]));
+            }
+            List<Integer> expected = new ArrayList<>();
+            for (int len = 32; len >= 0; len--) {
+                for (int i = 0; i < prefixes.size(); i++) {
+                    int[] prefix = prefixes.get(i);
+                    if (prefix[1] == len && prefix[0] == (addr & mask(len)))
+                        expected.add(i);
+                }
+            }
+            List<Integer> found = new ArrayList<>();
+            for (ProviderTrie.Prefix p = trie.lookup(addr); p != null; p = p.shorter()) {
+                for (int j = 0; j < p.size(); j++)
+                    found.add(p.value(j));
+            }
+            assertEquals(expected, found);
+        }
+    }
+}
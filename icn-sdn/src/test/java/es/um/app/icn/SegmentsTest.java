@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 University of Murcia (Spain)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package es.um.app.icn;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Set of tests of the compact segment storage.
+ */
+public class SegmentsTest {
+
+    private static void assertSame(List<String> paths, Segments segments) {
+        assertEquals(paths.size(), segments.size());
+        for (int i = 0; i < paths.size(); i++) {
+            assertEquals(paths.get(i), segments.path(i));
+            assertEquals(i, segments.indexOf(paths.get(i)));
+        }
+        assertEquals(paths, segments.paths());
+    }
+
+    @Test
+    public void numberedPathsAreATemplate() {
+        List<String> paths = new ArrayList<>();
+        for (int i = 1; i <= 1000; i++)
+            paths.add("video/bbb_1080p_" + i + ".mp4");
+        Segments segments = Segments.of(paths);
+        assertTrue(segments instanceof Segments.Template);
+        assertSame(paths, segments);
+        assertEquals(-1, segments.indexOf("video/bbb_1080p_0.mp4"));
+        assertEquals(-1, segments.indexOf("video/bbb_1080p_1001.mp4"));
+        assertEquals(-1, segments.indexOf("video/bbb_1080p_01.mp4"));
+        assertEquals(-1, segments.indexOf("video/bbb_720p_1.mp4"));
+        assertEquals(Arrays.asList("video/"), new ArrayList<>(segments.directories()));
+    }
+
+    @Test
+    public void paddedTemplate() {
+        List<String> paths = new ArrayList<>();
+        for (int i = 8; i <= 120; i++)
+            paths.add(String.format("seg%05d.m4s", i));
+        Segments segments = Segments.of(paths);
+        assertTrue(segments instanceof Segments.Template);
+        assertSame(paths, segments);
+        assertEquals(-1, segments.indexOf("seg9.m4s"));
+        assertEquals(-1, segments.indexOf("seg000009.m4s"));
+    }
+
+    @Test
+    public void otherPathsArePacked() {
+        List<String> paths = Arrays.asList("a/init.mp4", "a/x7f3.m4s", "b/91aa.m4s", "a/caf\u00e9.m4s", "\u4e2d.m4s");
+        Segments segments = Segments.of(paths);
+        assertTrue(segments instanceof Segments.Packed);
+        assertSame(paths, segments);
+        assertEquals(-1, segments.indexOf("a/missing.m4s"));
+        assertEquals(3, segments.directories().size());
+    }
+
+    @Test
+    public void appendKeepsOrderAndDropsDuplicates() {
+        Segments segments = Segments.of(Arrays.asList("s1.m4s", "s2.m4s"))
+                .append(Arrays.asList("s2.m4s", "s3.m4s"));
+        assertTrue(segments instanceof Segments.Template);
+        assertSame(Arrays.asList("s1.m4s", "s2.m4s", "s3.m4s"), segments);
+        assertEquals(2, segments.indexOf("http://host/s3.m4s", "http://host/".length()));
+    }
+
+    @Test
+    public void templatesAreExtendedWithoutExpanding() {
+        Segments live = Segments.numbered("seg-", ".m4s", 10, 5, 0);
+        Segments merged = live.append(Segments.numbered("seg-", ".m4s", 12, 6, 0));
+        assertTrue(merged instanceof Segments.Template);
+        assertEquals(8, merged.size());
+        assertEquals("seg-17.m4s", merged.path(7));
+
+        // Other shapes are merged path by path
+        merged = live.append(Segments.numbered("chunk-", ".m4s", 1, 2, 0));
+        assertEquals(7, merged.size());
+        assertEquals(6, merged.indexOf("chunk-2.m4s"));
+    }
+}